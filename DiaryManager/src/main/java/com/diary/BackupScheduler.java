@@ -0,0 +1,175 @@
+package com.diary;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Runs backups on a single background thread so saves never wait for them.
+ *
+ * Saves and deletes report their size through recordChange(); once the
+ * configured number of changed entries or bytes is reached a backup is
+ * queued. An optional timer queues one every interval if anything changed.
+ * Triggers that arrive while a backup is already queued are coalesced into
+ * it, and the single worker thread guarantees backups never overlap.
+ */
+public class BackupScheduler implements Closeable {
+    
+    public interface BackupTask {
+        Path run(DiaryBackup.ProgressListener progress) throws IOException;
+    }
+    
+    public interface BackupListener {
+        void backupStarted(String reason);
+        
+        /** Entries backed up so far, reported a few times per backup. */
+        default void backupProgress(long entriesDone, long totalEntries) {
+        }
+        
+        void backupFinished(Path backupPath, long elapsedMillis);
+        
+        void backupFailed(Exception error);
+    }
+    
+    private final BackupTask task;
+    private volatile BackupListener listener;
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean queued = new AtomicBoolean();
+    private final AtomicInteger changedEntries = new AtomicInteger();
+    private final AtomicLong changedBytes = new AtomicLong();
+    private volatile int entryThreshold;
+    private volatile long byteThreshold;
+    private ScheduledFuture<?> timer;
+    private volatile String lastResult = "No backup has run yet";
+    
+    public BackupScheduler(BackupTask task, BackupListener listener) {
+        this.task = task;
+        this.listener = listener;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "diary-auto-backup");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * Sets the triggers; a value of 0 disables that trigger.
+     */
+    public synchronized void configure(int everyEntries, long everyBytes, long intervalMinutes) {
+        this.entryThreshold = everyEntries;
+        this.byteThreshold = everyBytes;
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+        if (intervalMinutes > 0) {
+            timer = executor.scheduleAtFixedRate(() -> {
+                if (changedEntries.get() > 0) {
+                    request("interval elapsed");
+                }
+            }, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+        }
+    }
+    
+    public void recordChange(long bytes) {
+        int entries = changedEntries.incrementAndGet();
+        long total = changedBytes.addAndGet(bytes);
+        if (entryThreshold > 0 && entries >= entryThreshold) {
+            request(entries + " entries changed");
+        } else if (byteThreshold > 0 && total >= byteThreshold) {
+            request(total + " bytes changed");
+        }
+    }
+    
+    /**
+     * Queues a background backup unless one is already waiting to run.
+     */
+    public void request(String reason) {
+        if (executor.isShutdown()) {
+            return; // Closed, so there is no thread left to run it
+        }
+        if (queued.compareAndSet(false, true)) {
+            try {
+                executor.execute(() -> {
+                    if (changedEntries.get() == 0 && changedBytes.get() == 0) {
+                        // A manual backup already covered these changes
+                        queued.set(false);
+                        return;
+                    }
+                    try {
+                        runBackup(reason);
+                    } catch (IOException | RuntimeException e) {
+                        // Already reported to the listener
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Closed between the check and the submit
+                queued.set(false);
+            }
+        }
+    }
+    
+    /**
+     * Runs a backup on the scheduler thread and waits for it, so manual
+     * backups are serialized with automatic ones.
+     */
+    public Path runNow() throws IOException {
+        Future<Path> result = executor.submit(() -> runBackup("requested"));
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Backup interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Backup failed", e.getCause());
+        }
+    }
+    
+    public void setListener(BackupListener listener) {
+        this.listener = listener;
+    }
+    
+    public String getLastResult() {
+        return lastResult;
+    }
+    
+    private Path runBackup(String reason) throws IOException {
+        queued.set(false);
+        // Changes made while this backup runs count towards the next one
+        int entries = changedEntries.getAndSet(0);
+        long bytes = changedBytes.getAndSet(0);
+        BackupListener current = listener;
+        current.backupStarted(reason);
+        long start = System.nanoTime();
+        try {
+            Path backupPath = task.run(current::backupProgress);
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            lastResult = "Last backup: " + backupPath.getFileName() + " (" + elapsed + " ms)";
+            current.backupFinished(backupPath, elapsed);
+            return backupPath;
+        } catch (IOException | RuntimeException e) {
+            changedEntries.addAndGet(entries);
+            changedBytes.addAndGet(bytes);
+            lastResult = "Last backup failed: " + e.getMessage();
+            current.backupFailed(e);
+            throw e;
+        }
+    }
+    
+    /**
+     * Stops accepting triggers and waits for a running backup to finish.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,72 @@
+package com.diary;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.zip.*;
+
+/**
+ * Content-addressed store of deflated blobs, keyed by the SHA-256 of their
+ * content and spread over two-character subdirectories (ab/abcdef...).
+ * Storing content that is already present is a no-op, so identical bodies
+ * are kept once however many times they are referenced.
+ */
+public class BlobStore {
+    private final Path dir;
+    private final int level;
+    
+    public BlobStore(Path dir, int level) throws IOException {
+        this.dir = dir;
+        this.level = level;
+        Files.createDirectories(dir);
+    }
+    
+    /** Stores the content if it is new and returns its hash. */
+    public String put(byte[] content) throws IOException {
+        String hash = DiaryBackup.hash(content);
+        put(hash, content);
+        return hash;
+    }
+    
+    /** Returns false if a blob with this hash was already stored. */
+    public boolean put(String hash, byte[] content) throws IOException {
+        Path path = path(hash);
+        if (Files.exists(path)) {
+            return false;
+        }
+        Files.createDirectories(path.getParent());
+        Path tempPath = Files.createTempFile(path.getParent(), hash, ".tmp");
+        try {
+            Deflater deflater = new Deflater(level);
+            try (OutputStream out = new DeflaterOutputStream(Files.newOutputStream(tempPath), deflater)) {
+                out.write(content);
+            } finally {
+                deflater.end();
+            }
+            Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            // Stored concurrently by another thread; the content is the same
+            return false;
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+        return true;
+    }
+    
+    public byte[] get(String hash) throws IOException {
+        Path path = path(hash);
+        if (!Files.exists(path)) {
+            throw new FileNotFoundException("Blob not found: " + hash);
+        }
+        try (InputStream in = new InflaterInputStream(Files.newInputStream(path))) {
+            return in.readAllBytes();
+        }
+    }
+    
+    public boolean contains(String hash) {
+        return Files.exists(path(hash));
+    }
+    
+    private Path path(String hash) {
+        return dir.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+}
\ No newline at end of file
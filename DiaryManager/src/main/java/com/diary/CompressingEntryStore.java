@@ -0,0 +1,354 @@
+package com.diary;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Wraps another store and keeps entry bodies deflated at rest. Everything
+ * above the store (reading, search scans, backups, migration) sees plain
+ * UTF-8, because read() always decodes.
+ *
+ * Compressed records start with a header no UTF-8 text starts with:
+ * 0x00 'D' 'Z', a flags byte, the dictionary id when one was used, and the
+ * original length. Records without the header are returned as they are, so
+ * compression can be switched on or off without rewriting existing entries.
+ *
+ * Small entries compress poorly on their own, so a shared dictionary of
+ * frequent words and phrases can be trained from the store; it is given to
+ * the deflater as a preset dictionary for entries below SMALL_ENTRY bytes.
+ * Dictionaries are kept as .diary_dict_<id> files in the entries directory,
+ * numbered in training order, and never overwritten or deleted, so older
+ * entries stay readable after retraining.
+ */
+public class CompressingEntryStore implements EntryStore {
+    static final int SMALL_ENTRY = 4096;
+    static final int MAX_DICTIONARY = 16 * 1024;
+    private static final String DICTIONARY_PREFIX = ".diary_dict_";
+    private static final String CURRENT_DICTIONARY = ".diary_dict";
+    private static final byte[] MAGIC = {0, 'D', 'Z'};
+    private static final int FLAG_DICTIONARY = 1;
+    private static final int FLAG_STORED = 2;
+    // Deflate cannot expand a byte of input into more than 1032 bytes of output
+    private static final long MAX_INFLATE_RATIO = 1032;
+    
+    private final EntryStore delegate;
+    private final Path entriesDir;
+    private final boolean compress;
+    private final int level;
+    private final Map<Integer, byte[]> dictionaries = new HashMap<>();
+    private volatile int currentDictionary;
+    
+    public CompressingEntryStore(EntryStore delegate, Path entriesDir, boolean compress, int level)
+            throws IOException {
+        this.delegate = delegate;
+        this.entriesDir = entriesDir;
+        this.compress = compress;
+        this.level = level;
+        Path current = entriesDir.resolve(CURRENT_DICTIONARY);
+        if (Files.exists(current)) {
+            currentDictionary = Integer.parseUnsignedInt(Files.readString(current).trim(), 16);
+            dictionary(currentDictionary);
+        }
+    }
+    
+    @Override
+    public void write(String filename, byte[] content) throws IOException {
+        delegate.write(filename, encode(content));
+    }
+    
+    @Override
+    public void writeAll(Map<String, byte[]> entries) throws IOException {
+        Map<String, byte[]> encoded = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            encoded.put(entry.getKey(), encode(entry.getValue()));
+        }
+        delegate.writeAll(encoded);
+    }
+    
+    @Override
+    public byte[] read(String filename) throws IOException {
+        return decode(filename, delegate.read(filename));
+    }
+    
+    @Override
+    public boolean delete(String filename) throws IOException {
+        return delegate.delete(filename);
+    }
+    
+    @Override
+    public Snapshot snapshot() throws IOException {
+        Snapshot snapshot = delegate.snapshot();
+        return new Snapshot() {
+            @Override
+            public List<String> list() throws IOException {
+                return snapshot.list();
+            }
+            
+            @Override
+            public byte[] read(String filename) throws IOException {
+                return decode(filename, snapshot.read(filename));
+            }
+            
+            @Override
+            public long version(String filename) throws IOException {
+                return snapshot.version(filename);
+            }
+            
+            @Override
+            public void close() {
+                snapshot.close();
+            }
+        };
+    }
+    
+    @Override
+    public long version(String filename) throws IOException {
+        return delegate.version(filename);
+    }
+    
+    @Override
+    public boolean exists(String filename) throws IOException {
+        return delegate.exists(filename);
+    }
+    
+    @Override
+    public EntryCatalog catalog() {
+        return delegate.catalog();
+    }
+    
+    @Override
+    public void sync() throws IOException {
+        delegate.sync();
+    }
+    
+    @Override
+    public void clear() throws IOException {
+        delegate.clear();
+    }
+    
+    @Override
+    public void refresh() throws IOException {
+        delegate.refresh();
+    }
+    
+    @Override
+    public int relayout() throws IOException {
+        return delegate.relayout();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+    
+    /**
+     * Builds a dictionary from up to sampleSize small entries and uses it for
+     * entries written from now on. Returns the dictionary size in bytes.
+     */
+    public int trainDictionary(int sampleSize) throws IOException {
+        List<byte[]> samples = new ArrayList<>();
+        for (String filename : delegate.list()) {
+            if (samples.size() >= sampleSize) break;
+            byte[] content = read(filename);
+            if (content.length < SMALL_ENTRY) {
+                samples.add(content);
+            }
+        }
+        byte[] dictionary = buildDictionary(samples, MAX_DICTIONARY);
+        if (dictionary.length == 0) {
+            return 0;
+        }
+        int id = newDictionary(dictionary);
+        Path tempPath = entriesDir.resolve(CURRENT_DICTIONARY + ".tmp");
+        Files.writeString(tempPath, String.format("%08x", id));
+        Files.move(tempPath, entriesDir.resolve(CURRENT_DICTIONARY),
+                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        synchronized (dictionaries) {
+            dictionaries.put(id, dictionary);
+        }
+        currentDictionary = id;
+        return dictionary.length;
+    }
+    
+    /**
+     * Words and word pairs that recur across the samples, best scoring last:
+     * deflate reaches the end of a preset dictionary with the shortest
+     * distances.
+     */
+    static byte[] buildDictionary(List<byte[]> samples, int maxSize) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (byte[] sample : samples) {
+            String[] words = new String(sample, StandardCharsets.UTF_8).split("\\s+");
+            for (int i = 0; i < words.length; i++) {
+                if (words[i].length() >= 3) {
+                    counts.merge(words[i] + " ", 1, Integer::sum);
+                }
+                if (i + 1 < words.length && !words[i].isEmpty()) {
+                    counts.merge(words[i] + " " + words[i + 1] + " ", 1, Integer::sum);
+                }
+            }
+        }
+        List<Map.Entry<String, Integer>> candidates = new ArrayList<>();
+        for (Map.Entry<String, Integer> count : counts.entrySet()) {
+            if (count.getValue() > 1) {
+                candidates.add(count);
+            }
+        }
+        candidates.sort(Comparator.comparingLong(
+            (Map.Entry<String, Integer> c) -> (long) c.getValue() * c.getKey().length()).reversed());
+        
+        List<byte[]> chosen = new ArrayList<>();
+        int size = 0;
+        for (Map.Entry<String, Integer> candidate : candidates) {
+            byte[] bytes = candidate.getKey().getBytes(StandardCharsets.UTF_8);
+            if (size + bytes.length > maxSize) continue;
+            chosen.add(bytes);
+            size += bytes.length;
+        }
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream(size);
+        for (int i = chosen.size() - 1; i >= 0; i--) {
+            dictionary.writeBytes(chosen.get(i));
+        }
+        return dictionary.toByteArray();
+    }
+    
+    private byte[] encode(byte[] content) throws IOException {
+        boolean startsLikeHeader = content.length > 0 && content[0] == 0;
+        if (!compress) {
+            // Plain text never starts with a NUL byte, but keep it unambiguous if it does
+            return startsLikeHeader ? header(FLAG_STORED, 0, content, content) : content;
+        }
+        int dictionaryId = content.length < SMALL_ENTRY ? currentDictionary : 0;
+        byte[] dictionary = dictionaryId != 0 ? dictionary(dictionaryId) : null;
+        
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(content);
+            deflater.finish();
+            ByteArrayOutputStream deflated = new ByteArrayOutputStream(content.length / 2 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                deflated.write(buffer, 0, deflater.deflate(buffer));
+            }
+            if (deflated.size() + 12 < content.length) {
+                return header(dictionary != null ? FLAG_DICTIONARY : 0, dictionaryId, content,
+                              deflated.toByteArray());
+            }
+        } finally {
+            deflater.end();
+        }
+        return startsLikeHeader ? header(FLAG_STORED, 0, content, content) : content;
+    }
+    
+    private static byte[] header(int flags, int dictionaryId, byte[] content, byte[] body) {
+        boolean withDictionary = (flags & FLAG_DICTIONARY) != 0;
+        ByteBuffer record = ByteBuffer.allocate(MAGIC.length + 1 + (withDictionary ? 4 : 0) + 4 + body.length);
+        record.put(MAGIC).put((byte) flags);
+        if (withDictionary) {
+            record.putInt(dictionaryId);
+        }
+        record.putInt(content.length).put(body);
+        return record.array();
+    }
+    
+    private byte[] decode(String filename, byte[] stored) throws IOException {
+        if (stored.length < MAGIC.length + 5 || stored[0] != MAGIC[0]
+                || stored[1] != MAGIC[1] || stored[2] != MAGIC[2]) {
+            return stored;
+        }
+        ByteBuffer record = ByteBuffer.wrap(stored, MAGIC.length, stored.length - MAGIC.length);
+        int flags = record.get();
+        boolean withDictionary = (flags & FLAG_DICTIONARY) != 0;
+        if (record.remaining() < (withDictionary ? 8 : 4)) {
+            throw new IOException("Compressed entry is damaged: " + filename);
+        }
+        byte[] dictionary = withDictionary ? dictionary(record.getInt()) : null;
+        int length = record.getInt();
+        long maxLength = (flags & FLAG_STORED) != 0 ? record.remaining() : record.remaining() * MAX_INFLATE_RATIO;
+        if (length < 0 || length > maxLength) {
+            throw new IOException("Compressed entry is damaged: " + filename);
+        }
+        byte[] content = new byte[length];
+        if ((flags & FLAG_STORED) != 0) {
+            record.get(content);
+            return content;
+        }
+        
+        Inflater inflater = new Inflater(true);
+        try {
+            if (dictionary != null) {
+                inflater.setDictionary(dictionary);
+            }
+            inflater.setInput(stored, record.position(), record.remaining());
+            int inflated = 0;
+            while (inflated < content.length && !inflater.finished()) {
+                int n = inflater.inflate(content, inflated, content.length - inflated);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += n;
+            }
+            if (inflated != content.length) {
+                throw new IOException("Compressed entry is truncated: " + filename);
+            }
+            return content;
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed entry is damaged: " + filename, e);
+        } finally {
+            inflater.end();
+        }
+    }
+    
+    private byte[] dictionary(int id) throws IOException {
+        synchronized (dictionaries) {
+            byte[] dictionary = dictionaries.get(id);
+            if (dictionary == null) {
+                Path path = entriesDir.resolve(String.format("%s%08x", DICTIONARY_PREFIX, id));
+                if (!Files.exists(path)) {
+                    throw new FileNotFoundException("Compression dictionary missing: " + path.getFileName());
+                }
+                dictionary = Files.readAllBytes(path);
+                dictionaries.put(id, dictionary);
+            }
+            return dictionary;
+        }
+    }
+    
+    /**
+     * Writes the dictionary under the id after the highest one in use and
+     * returns that id. An existing dictionary file is never replaced.
+     */
+    private int newDictionary(byte[] dictionary) throws IOException {
+        int highest = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(entriesDir, DICTIONARY_PREFIX + "*")) {
+            for (Path path : stream) {
+                String suffix = path.getFileName().toString().substring(DICTIONARY_PREFIX.length());
+                try {
+                    int id = Integer.parseUnsignedInt(suffix, 16);
+                    highest = Integer.compareUnsigned(id, highest) > 0 ? id : highest;
+                } catch (NumberFormatException e) {
+                    // Some other file that happens to share the prefix
+                }
+            }
+        }
+        for (int id = highest + 1; ; id++) {
+            if (id == 0) {
+                continue; // 0 means "no dictionary" in encode()
+            }
+            try {
+                Files.write(entriesDir.resolve(String.format("%s%08x", DICTIONARY_PREFIX, id)), dictionary,
+                            StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                return id;
+            } catch (FileAlreadyExistsException e) {
+                // Ids wrapped around into ones still in use
+            }
+        }
+    }
+}
\ No newline at end of file
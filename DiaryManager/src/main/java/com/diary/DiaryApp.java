@@ -1,6 +1,7 @@
 package com.diary;
 
 import java.io.*;
+import java.nio.file.Paths;
 import java.util.*;
 
 public class DiaryApp {
@@ -10,6 +11,49 @@ public class DiaryApp {
         
         try {
             DiaryManager diaryManager = new DiaryManager();
+            
+            // Non-interactive storage migration: --migrate <files|segments>
+            if (args.length == 2 && args[0].equals("--migrate")) {
+                int migrated = diaryManager.setStorageMode(args[1]);
+                System.out.println("Storage mode is now " + diaryManager.getStorageMode() +
+                    " (" + migrated + " entries migrated)");
+                return;
+            }
+            
+            // Online relayout of the entries directory: --layout <flat|sharded>
+            if (args.length == 2 && args[0].equals("--layout")) {
+                int moved = diaryManager.setEntriesLayout(args[1]);
+                System.out.println("Entries layout is now " + diaryManager.getEntriesLayout() +
+                    " (" + moved + " entries moved)");
+                return;
+            }
+            
+            // Bulk transfer between machines: --export <file> / --import <file>
+            if (args.length == 2 && args[0].equals("--export")) {
+                long exported = diaryManager.exportEntries(Paths.get(args[1]));
+                System.out.println("Exported " + exported + " entries to " + args[1]);
+                return;
+            }
+            if (args.length == 2 && args[0].equals("--import")) {
+                long imported = diaryManager.importEntries(Paths.get(args[1]));
+                diaryManager.shutdown();
+                System.out.println("Imported " + imported + " entries from " + args[1]);
+                return;
+            }
+            
+            // Headless HTTP/JSON API on localhost: --serve [port]
+            if (args.length >= 1 && args[0].equals("--serve")) {
+                DiaryServer server = diaryManager.startServer(args.length >= 2 ? Integer.parseInt(args[1]) : -1);
+                System.out.println("Serving the diary API on http://localhost:" + server.getPort() +
+                    " (Ctrl+C to stop)");
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    server.close();
+                    diaryManager.saveConfiguration();
+                    diaryManager.shutdown();
+                }));
+                return;
+            }
+            
             Scanner scanner = new Scanner(System.in);
             DiaryMenu menu = new DiaryMenu(scanner, diaryManager);
             
@@ -17,6 +61,7 @@ public class DiaryApp {
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 System.out.println("\n\nApplication is shutting down...");
                 diaryManager.saveConfiguration();
+                diaryManager.shutdown();
                 scanner.close();
             }));
             
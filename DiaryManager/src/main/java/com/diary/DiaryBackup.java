@@ -0,0 +1,453 @@
+package com.diary;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Full and incremental ZIP backups of an entry store.
+ *
+ * Every backup updates backup_manifest.txt in the backup directory with the
+ * hash and store version (file mtime, or log position) of each entry it has
+ * seen. An incremental backup only reads entries whose version changed since
+ * then, and stores the ones whose content hash differs plus a list of deleted
+ * entries. Each archive carries a BACKUP_MANIFEST naming its parent, so a
+ * restore can replay the chain back to the last full backup.
+ *
+ * Archives are written by ParallelZipWriter, so entries are compressed on
+ * several threads with a configurable deflate level.
+ *
+ * Deduplicated backups store no entry content in the archive at all: bodies
+ * go to a content-addressed BlobStore under backupDir/blobs and the archive
+ * only lists which blob each entry points to. Unchanged entries are skipped
+ * by version and identical bodies are stored once, so the size and time of
+ * such a backup depend on the unique content that changed.
+ *
+ * Each backup reads from one store snapshot, so it captures the entries as
+ * they were when it started even while saves and deletes go on. Progress is
+ * reported as entries done out of the entries in the snapshot, at most once
+ * per tenth of the total.
+ */
+public class DiaryBackup {
+    static final String MANIFEST_FILE = "backup_manifest.txt";
+    static final String ARCHIVE_MANIFEST = "BACKUP_MANIFEST";
+    static final String BLOB_DIR = "blobs";
+    private static final DateTimeFormatter NAME_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss");
+    
+    private final EntryStore store;
+    private final Path backupDir;
+    private final int threads;
+    private final int compressionLevel;
+    
+    @FunctionalInterface
+    public interface ProgressListener {
+        ProgressListener NONE = (done, total) -> { };
+        
+        /** Called from backup worker threads, one call at a time. */
+        void progress(long entriesDone, long totalEntries);
+    }
+    
+    public DiaryBackup(EntryStore store, Path backupDir) {
+        this(store, backupDir, Runtime.getRuntime().availableProcessors(), Deflater.DEFAULT_COMPRESSION);
+    }
+    
+    public DiaryBackup(EntryStore store, Path backupDir, int threads, int compressionLevel) {
+        this.store = store;
+        this.backupDir = backupDir;
+        this.threads = Math.max(1, threads);
+        this.compressionLevel = compressionLevel;
+    }
+    
+    public Path createFull(ProgressListener listener) throws IOException {
+        Path backupPath = newBackupPath("");
+        Map<String, ManifestEntry> state = new ConcurrentHashMap<>();
+        
+        // Entries are read, hashed and compressed on the writer's worker threads
+        try (EntryStore.Snapshot snapshot = store.snapshot();
+             ParallelZipWriter zos = new ParallelZipWriter(backupPath, threads, compressionLevel)) {
+            List<String> entries = snapshot.list();
+            Progress progress = new Progress(listener, entries.size());
+            for (String entry : entries) {
+                zos.add(entry, () -> {
+                    long version = snapshot.version(entry);
+                    byte[] content = snapshot.read(entry);
+                    state.put(entry, new ManifestEntry(hash(content), version));
+                    progress.entryDone();
+                    return content;
+                });
+            }
+            writeArchiveManifest(zos, "full", null, Collections.emptyList());
+            writeConfig(zos);
+        }
+        
+        writeManifest(backupPath.getFileName().toString(), state);
+        return backupPath;
+    }
+    
+    /**
+     * Stores only the entries added, changed or deleted since the previous
+     * backup. Falls back to a full backup when there is no previous one.
+     */
+    public Path createIncremental(ProgressListener listener) throws IOException {
+        Manifest previous = readManifest();
+        if (previous == null || !Files.exists(backupDir.resolve(previous.last))) {
+            return createFull(listener);
+        }
+        
+        Path backupPath = newBackupPath("_incr");
+        Map<String, ManifestEntry> state = new HashMap<>();
+        List<String> changed = new ArrayList<>();
+        
+        try (EntryStore.Snapshot snapshot = store.snapshot();
+             ParallelZipWriter zos = new ParallelZipWriter(backupPath, threads, compressionLevel)) {
+            List<String> entries = snapshot.list();
+            Progress progress = new Progress(listener, entries.size());
+            for (String entry : entries) {
+                long version = snapshot.version(entry);
+                ManifestEntry known = previous.entries.get(entry);
+                progress.entryDone();
+                if (known != null && known.version == version) {
+                    state.put(entry, known);
+                    continue;
+                }
+                byte[] content = snapshot.read(entry);
+                String hash = hash(content);
+                state.put(entry, new ManifestEntry(hash, version));
+                if (known == null || !known.hash.equals(hash)) {
+                    zos.add(entry, content);
+                    changed.add(entry);
+                }
+            }
+            
+            List<String> deleted = new ArrayList<>();
+            for (String entry : previous.entries.keySet()) {
+                if (!state.containsKey(entry)) {
+                    deleted.add(entry);
+                }
+            }
+            writeArchiveManifest(zos, "incremental", previous.last, deleted);
+            writeConfig(zos);
+            System.out.println("Incremental backup: " + changed.size() + " changed, " +
+                deleted.size() + " deleted");
+        }
+        
+        writeManifest(backupPath.getFileName().toString(), state);
+        return backupPath;
+    }
+    
+    /**
+     * A complete snapshot whose archive only references content-addressed
+     * blobs. Only entries whose version changed since the last backup are
+     * read, and only content not already in the blob store is written.
+     */
+    public Path createDeduplicated(ProgressListener listener) throws IOException {
+        Manifest previous = readManifest();
+        Map<String, ManifestEntry> known = previous != null ? previous.entries : Collections.emptyMap();
+        BlobStore blobs = new BlobStore(backupDir.resolve(BLOB_DIR), compressionLevel);
+        Map<String, ManifestEntry> state = new ConcurrentHashMap<>();
+        
+        List<String> changed = new ArrayList<>();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try (EntryStore.Snapshot snapshot = store.snapshot()) {
+            List<String> entries = snapshot.list();
+            Progress progress = new Progress(listener, entries.size());
+            for (String entry : entries) {
+                ManifestEntry last = known.get(entry);
+                if (last != null && last.version == snapshot.version(entry) && blobs.contains(last.hash)) {
+                    state.put(entry, last);
+                    progress.entryDone();
+                } else {
+                    changed.add(entry);
+                }
+            }
+            pool.submit(() -> changed.parallelStream().forEach(entry -> {
+                try {
+                    long version = snapshot.version(entry);
+                    state.put(entry, new ManifestEntry(blobs.put(snapshot.read(entry)), version));
+                    progress.entryDone();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Backup interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IOException("Backup failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        
+        Path backupPath = newBackupPath("_dedup");
+        try (ParallelZipWriter zos = new ParallelZipWriter(backupPath, 1, compressionLevel)) {
+            StringBuilder manifest = new StringBuilder("type\tblobs\n");
+            for (Map.Entry<String, ManifestEntry> entry : new TreeMap<>(state).entrySet()) {
+                manifest.append("blob\t").append(entry.getKey()).append('\t')
+                        .append(entry.getValue().hash).append('\n');
+            }
+            zos.add(ARCHIVE_MANIFEST, manifest.toString().getBytes(StandardCharsets.UTF_8));
+            writeConfig(zos);
+        }
+        System.out.println("Deduplicated backup: " + changed.size() + " changed of " + state.size() + " entries");
+        
+        writeManifest(backupPath.getFileName().toString(), state);
+        return backupPath;
+    }
+    
+    /** Backup archive names, newest first. */
+    public List<String> listBackups() throws IOException {
+        Map<String, Long> backups = new HashMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(backupDir, "diary_backup_*.zip")) {
+            for (Path backup : stream) {
+                backups.put(backup.getFileName().toString(), Files.getLastModifiedTime(backup).toMillis());
+            }
+        }
+        List<String> names = new ArrayList<>(backups.keySet());
+        names.sort(Comparator.comparing((String name) -> backups.get(name))
+            .thenComparing(Comparator.naturalOrder()).reversed());
+        return names;
+    }
+    
+    /**
+     * Restores the store to the state captured by the given backup, replaying
+     * its chain of incremental backups on top of the last full one. Entries
+     * that did not exist at backup time are removed.
+     */
+    public int restore(String backupName) throws IOException {
+        Deque<Path> chain = new ArrayDeque<>();
+        Map<Path, ArchiveManifest> manifests = new HashMap<>();
+        String name = backupName;
+        while (name != null) {
+            Path archive = backupDir.resolve(name);
+            if (!Files.exists(archive)) {
+                throw new FileNotFoundException("Backup not found: " + name);
+            }
+            ArchiveManifest manifest = readArchiveManifest(archive);
+            manifests.put(archive, manifest);
+            chain.addFirst(archive);
+            name = manifest.incremental ? manifest.parent : null;
+        }
+        
+        // Latest archive holding each surviving entry; a deduplicated base
+        // backup contributes blob references instead
+        Map<String, Path> sources = new HashMap<>();
+        Map<String, String> blobSources = new HashMap<>(manifests.get(chain.getFirst()).blobs);
+        for (Path archive : chain) {
+            try (ZipFile zip = new ZipFile(archive.toFile())) {
+                for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+                    String entry = e.nextElement().getName();
+                    if (EntryCatalog.isEntryName(entry)) {
+                        sources.put(entry, archive);
+                        blobSources.remove(entry);
+                    }
+                }
+            }
+            for (String deleted : manifests.get(archive).deleted) {
+                sources.remove(deleted);
+                blobSources.remove(deleted);
+            }
+        }
+        
+        Map<Path, List<String>> byArchive = new HashMap<>();
+        for (Map.Entry<String, Path> source : sources.entrySet()) {
+            byArchive.computeIfAbsent(source.getValue(), k -> new ArrayList<>()).add(source.getKey());
+        }
+        for (Map.Entry<Path, List<String>> archive : byArchive.entrySet()) {
+            try (ZipFile zip = new ZipFile(archive.getKey().toFile())) {
+                for (String entry : archive.getValue()) {
+                    try (InputStream in = zip.getInputStream(zip.getEntry(entry))) {
+                        store.write(entry, in.readAllBytes());
+                    }
+                }
+            }
+        }
+        if (!blobSources.isEmpty()) {
+            BlobStore blobs = new BlobStore(backupDir.resolve(BLOB_DIR), compressionLevel);
+            for (Map.Entry<String, String> entry : blobSources.entrySet()) {
+                store.write(entry.getKey(), blobs.get(entry.getValue()));
+            }
+        }
+        for (String entry : new ArrayList<>(store.list())) {
+            if (!sources.containsKey(entry) && !blobSources.containsKey(entry)) {
+                store.delete(entry);
+            }
+        }
+        return sources.size() + blobSources.size();
+    }
+    
+    /**
+     * The config saved with the given backup, or null if it has none (or only
+     * the serialized config of older versions).
+     */
+    public DiaryConfig readConfig(String backupName) throws IOException {
+        Path archive = backupDir.resolve(backupName);
+        if (!Files.exists(archive)) {
+            throw new FileNotFoundException("Backup not found: " + backupName);
+        }
+        try (ZipFile zip = new ZipFile(archive.toFile())) {
+            ZipEntry entry = zip.getEntry(DiaryConfig.CONFIG_FILE);
+            return entry == null ? null : DiaryConfig.read(zip.getInputStream(entry));
+        }
+    }
+    
+    /** Counts finished entries and passes on every tenth of the total. */
+    private static final class Progress {
+        private final ProgressListener listener;
+        private final long total;
+        private long done;
+        private long lastTenth;
+        
+        Progress(ProgressListener listener, long total) {
+            this.listener = listener;
+            this.total = total;
+        }
+        
+        synchronized void entryDone() {
+            done++;
+            long tenth = done * 10 / total;
+            if (tenth > lastTenth) {
+                lastTenth = tenth;
+                listener.progress(done, total);
+            }
+        }
+    }
+    
+    private Path newBackupPath(String suffix) {
+        String stamp = LocalDateTime.now().format(NAME_FORMATTER);
+        Path path = backupDir.resolve("diary_backup_" + stamp + suffix + ".zip");
+        for (int n = 1; Files.exists(path); n++) {
+            path = backupDir.resolve("diary_backup_" + stamp + suffix + "_" + n + ".zip");
+        }
+        return path;
+    }
+    
+    private static void writeConfig(ParallelZipWriter zos) throws IOException {
+        // Also backup config if exists
+        Path configPath = Paths.get(DiaryConfig.CONFIG_FILE);
+        if (Files.exists(configPath)) {
+            zos.add(DiaryConfig.CONFIG_FILE, Files.readAllBytes(configPath));
+        }
+    }
+    
+    private static void writeArchiveManifest(ParallelZipWriter zos, String type, String parent,
+                                             List<String> deleted) throws IOException {
+        StringBuilder manifest = new StringBuilder("type\t").append(type).append('\n');
+        if (parent != null) {
+            manifest.append("parent\t").append(parent).append('\n');
+        }
+        for (String entry : deleted) {
+            manifest.append("deleted\t").append(entry).append('\n');
+        }
+        zos.add(ARCHIVE_MANIFEST, manifest.toString().getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private static ArchiveManifest readArchiveManifest(Path archive) throws IOException {
+        ArchiveManifest manifest = new ArchiveManifest();
+        try (ZipFile zip = new ZipFile(archive.toFile())) {
+            ZipEntry entry = zip.getEntry(ARCHIVE_MANIFEST);
+            if (entry == null) {
+                // Backups made before manifests existed are always full
+                return manifest;
+            }
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    zip.getInputStream(entry), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split("\t", 3);
+                    if (parts.length < 2) continue;
+                    switch (parts[0]) {
+                        case "type" -> manifest.incremental = parts[1].equals("incremental");
+                        case "parent" -> manifest.parent = parts[1];
+                        case "deleted" -> manifest.deleted.add(parts[1]);
+                        case "blob" -> {
+                            if (parts.length == 3) manifest.blobs.put(parts[1], parts[2]);
+                        }
+                    }
+                }
+            }
+        }
+        return manifest;
+    }
+    
+    private Manifest readManifest() throws IOException {
+        Path manifestPath = backupDir.resolve(MANIFEST_FILE);
+        if (!Files.exists(manifestPath)) {
+            return null;
+        }
+        Manifest manifest = new Manifest();
+        try (BufferedReader reader = Files.newBufferedReader(manifestPath, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("last=")) {
+                    manifest.last = line.substring("last=".length());
+                    continue;
+                }
+                String[] parts = line.split("\t");
+                if (parts.length == 3) {
+                    manifest.entries.put(parts[0], new ManifestEntry(parts[1], Long.parseLong(parts[2])));
+                }
+            }
+        }
+        return manifest.last == null ? null : manifest;
+    }
+    
+    private void writeManifest(String last, Map<String, ManifestEntry> state) throws IOException {
+        Path manifestPath = backupDir.resolve(MANIFEST_FILE);
+        Path tempPath = backupDir.resolve(MANIFEST_FILE + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+            writer.write("last=" + last);
+            writer.newLine();
+            for (Map.Entry<String, ManifestEntry> entry : state.entrySet()) {
+                writer.write(entry.getKey() + "\t" + entry.getValue().hash + "\t" + entry.getValue().version);
+                writer.newLine();
+            }
+        }
+        Files.move(tempPath, manifestPath, StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    static String hash(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+    
+    private static final class ManifestEntry {
+        final String hash;
+        final long version;
+        
+        ManifestEntry(String hash, long version) {
+            this.hash = hash;
+            this.version = version;
+        }
+    }
+    
+    private static final class Manifest {
+        String last;
+        final Map<String, ManifestEntry> entries = new HashMap<>();
+    }
+    
+    private static final class ArchiveManifest {
+        boolean incremental;
+        String parent;
+        final List<String> deleted = new ArrayList<>();
+        final Map<String, String> blobs = new HashMap<>();
+    }
+}
\ No newline at end of file
@@ -1,17 +1,34 @@
 package com.diary;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Application settings, stored in diary_config.bin: the magic bytes "DCFG", a
+ * format version, the two directories, the recent searches and the settings
+ * as key/value pairs. The file is written to a temporary file and renamed
+ * over the old one, and only when something changed since the last save.
+ *
+ * Configs written by older versions as serialized objects (diary_config.ser)
+ * are read once and converted. Settings missing from a stored config keep
+ * their defaults.
+ */
 public class DiaryConfig implements Serializable {
     private static final long serialVersionUID = 1L;
-    private static final String CONFIG_FILE = "diary_config.ser";
+    static final String CONFIG_FILE = "diary_config.bin";
+    private static final String LEGACY_CONFIG_FILE = "diary_config.ser";
+    private static final int MAGIC = 0x44434647; // "DCFG"
+    private static final int FORMAT_VERSION = 1;
     
     private String entriesDirectory;
     private String backupDirectory;
     private List<String> recentSearches;
     private Properties settings;
+    private transient Map<String, Integer> parsedInts = new ConcurrentHashMap<>();
+    private transient volatile boolean dirty;
     
     public DiaryConfig() {
         this.entriesDirectory = "entries";
@@ -23,14 +40,59 @@ public class DiaryConfig implements Serializable {
     
     private void initializeSettings() {
         settings.setProperty("autoBackup", "false");
+        settings.setProperty("autoBackupEntries", "10");  // 0 disables each trigger
+        settings.setProperty("autoBackupBytes", "0");
+        settings.setProperty("autoBackupMinutes", "0");
         settings.setProperty("maxEntriesPerPage", "10");
         settings.setProperty("defaultEncoding", "UTF-8");
+        settings.setProperty("searchIndex", "true");
+        settings.setProperty("fuzzyDistance", "2");
+        settings.setProperty("scanFilterBitsPerTerm", "10");  // scan filters used while searchIndex is off; 0 disables them
+        settings.setProperty("searchCacheSize", "10000");
+        settings.setProperty("storageMode", "files");
+        settings.setProperty("entriesLayout", "flat");        // files mode only: flat or sharded (yyyy/MM)
+        settings.setProperty("compression", "none");          // none or deflate; existing entries stay readable either way
+        settings.setProperty("compressionLevel", "-1");
+        settings.setProperty("compressionSamples", "2000");
+        settings.setProperty("backupMode", "full");          // full, incremental or dedup
+        settings.setProperty("writeBehind", "false");
+        settings.setProperty("writeBatchSize", "256");
+        settings.setProperty("writeBatchMillis", "5");       // how long a batch waits for more saves
+        settings.setProperty("writeDurability", "fsync");    // fsync: after sync to disk, flush: once written
+        settings.setProperty("backupThreads", String.valueOf(Runtime.getRuntime().availableProcessors()));
+        settings.setProperty("backupCompressionLevel", "-1"); // -1 = deflate default, 0-9 otherwise
+        settings.setProperty("serverPort", "8080");          // --serve, on the loopback address only
+        settings.setProperty("serverThreads", "64");          // requests handled at once; idle connections need none
     }
     
-    public void saveConfig() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(
-                new FileOutputStream(CONFIG_FILE))) {
-            oos.writeObject(this);
+    /** Writes the config if it changed since it was loaded or last saved. */
+    public synchronized void saveConfig() {
+        if (!dirty && Files.exists(Paths.get(CONFIG_FILE))) {
+            return;
+        }
+        Path configPath = Paths.get(CONFIG_FILE).toAbsolutePath();
+        Path tempPath = configPath.resolveSibling(CONFIG_FILE + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+                out.writeInt(MAGIC);
+                out.writeShort(FORMAT_VERSION);
+                writeString(out, entriesDirectory);
+                writeString(out, backupDirectory);
+                out.writeInt(recentSearches.size());
+                for (String search : recentSearches) {
+                    writeString(out, search);
+                }
+                Set<String> keys = settings.stringPropertyNames();
+                out.writeInt(keys.size());
+                for (String key : keys) {
+                    writeString(out, key);
+                    writeString(out, settings.getProperty(key));
+                }
+            }
+            Files.move(tempPath, configPath, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
         } catch (IOException e) {
             System.err.println("Warning: Could not save configuration: " + e.getMessage());
         }
@@ -39,9 +101,27 @@ public class DiaryConfig implements Serializable {
     public static DiaryConfig loadConfig() {
         Path configPath = Paths.get(CONFIG_FILE);
         if (Files.exists(configPath)) {
+            try {
+                return read(configPath);
+            } catch (IOException e) {
+                System.err.println("Warning: Could not load configuration, using defaults: " + e.getMessage());
+                return new DiaryConfig();
+            }
+        }
+        Path legacyPath = Paths.get(LEGACY_CONFIG_FILE);
+        if (Files.exists(legacyPath)) {
             try (ObjectInputStream ois = new ObjectInputStream(
-                    new FileInputStream(CONFIG_FILE))) {
-                return (DiaryConfig) ois.readObject();
+                    new BufferedInputStream(Files.newInputStream(legacyPath)))) {
+                DiaryConfig legacy = (DiaryConfig) ois.readObject();
+                DiaryConfig config = new DiaryConfig();
+                config.entriesDirectory = legacy.entriesDirectory;
+                config.backupDirectory = legacy.backupDirectory;
+                config.recentSearches.addAll(legacy.recentSearches);
+                config.settings.putAll(legacy.settings);
+                // The .ser file is left in place for older versions of the application
+                config.dirty = true;
+                config.saveConfig();
+                return config;
             } catch (IOException | ClassNotFoundException e) {
                 System.err.println("Warning: Could not load configuration, using defaults: " + e.getMessage());
             }
@@ -49,32 +129,134 @@ public class DiaryConfig implements Serializable {
         return new DiaryConfig();
     }
     
+    private static DiaryConfig read(Path configPath) throws IOException {
+        return read(Files.newInputStream(configPath));
+    }
+    
+    /** Reads a config in the diary_config.bin format, such as one kept in a backup. */
+    static DiaryConfig read(InputStream stream) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(stream))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a diary configuration file");
+            }
+            int version = in.readUnsignedShort();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported configuration version " + version);
+            }
+            DiaryConfig config = new DiaryConfig();
+            config.entriesDirectory = readString(in);
+            config.backupDirectory = readString(in);
+            int searches = in.readInt();
+            for (int i = 0; i < searches; i++) {
+                config.recentSearches.add(readString(in));
+            }
+            int settings = in.readInt();
+            for (int i = 0; i < settings; i++) {
+                config.settings.setProperty(readString(in), readString(in));
+            }
+            return config;
+        }
+    }
+    
+    // writeUTF is limited to 64 KiB, which a long recent search could exceed
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > 1 << 24) {
+            throw new IOException("Corrupt configuration file");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        parsedInts = new ConcurrentHashMap<>();
+    }
+    
+    /**
+     * Takes over the settings and recent searches of a config restored from a
+     * backup. The directories, storage mode and layout stay as they are,
+     * since they describe where and how the restored entries are now stored.
+     */
+    public synchronized void restoreSettings(DiaryConfig restored) {
+        Properties kept = new Properties();
+        for (String key : List.of("storageMode", "entriesLayout")) {
+            kept.setProperty(key, settings.getProperty(key));
+        }
+        synchronized (restored) {
+            settings.putAll(restored.settings);
+            recentSearches.clear();
+            recentSearches.addAll(restored.recentSearches);
+        }
+        settings.putAll(kept);
+        parsedInts.clear();
+        dirty = true;
+    }
+    
     // Getters and Setters
     public String getEntriesDirectory() { return entriesDirectory; }
-    public void setEntriesDirectory(String entriesDirectory) { 
+    public synchronized void setEntriesDirectory(String entriesDirectory) { 
         this.entriesDirectory = entriesDirectory; 
+        dirty = true;
     }
     
     public String getBackupDirectory() { return backupDirectory; }
-    public void setBackupDirectory(String backupDirectory) { 
+    public synchronized void setBackupDirectory(String backupDirectory) { 
         this.backupDirectory = backupDirectory; 
+        dirty = true;
     }
     
-    public List<String> getRecentSearches() { return recentSearches; }
+    /** A copy, since searches may be added from other threads meanwhile. */
+    public synchronized List<String> getRecentSearches() { return List.copyOf(recentSearches); }
     
-    public void addSearch(String keyword) {
+    public synchronized void addSearch(String keyword) {
         recentSearches.remove(keyword);
         recentSearches.add(0, keyword);
         if (recentSearches.size() > 10) {
             recentSearches.remove(recentSearches.size() - 1);
         }
+        dirty = true;
     }
     
     public String getSetting(String key) {
         return settings.getProperty(key);
     }
     
-    public void setSetting(String key, String value) {
-        settings.setProperty(key, value);
+    // Configs saved by older versions lack newer keys, so callers pass a default
+    public String getSetting(String key, String defaultValue) {
+        return settings.getProperty(key, defaultValue);
+    }
+    
+    /**
+     * A numeric setting, parsed once and cached until it is changed. Only
+     * stored values are cached, since callers may pass different defaults.
+     */
+    public int getIntSetting(String key, int defaultValue) {
+        Integer parsed = parsedInts.computeIfAbsent(key, k -> {
+            String value = settings.getProperty(k);
+            try {
+                return value == null ? null : Integer.valueOf(value.trim());
+            } catch (NumberFormatException e) {
+                System.err.println("Warning: Invalid value for " + k + ": " + value);
+                return null;
+            }
+        });
+        return parsed != null ? parsed : defaultValue;
+    }
+    
+    // Synchronized with saveConfig, which marks the config clean after writing it
+    public synchronized void setSetting(String key, String value) {
+        if (!value.equals(settings.getProperty(key))) {
+            settings.setProperty(key, value);
+            parsedInts.remove(key);
+            dirty = true;
+        }
     }
 }
\ No newline at end of file
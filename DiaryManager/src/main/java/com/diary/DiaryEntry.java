@@ -3,6 +3,7 @@ package com.diary;
 import java.io.Serializable;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.Objects;
 
 public class DiaryEntry implements Serializable {
@@ -32,6 +33,21 @@ public class DiaryEntry implements Serializable {
         return "diary_" + timestamp.format(FILENAME_FORMATTER) + ".txt";
     }
     
+    /**
+     * Parses the timestamp out of an entry filename, or returns null if the
+     * name does not follow the diary_yyyy_MM_dd_HH_mm_ss.txt pattern.
+     */
+    public static LocalDateTime parseFilename(String filename) {
+        if (!filename.startsWith("diary_") || !filename.endsWith(".txt")) {
+            return null;
+        }
+        try {
+            return LocalDateTime.parse(filename.substring(6, filename.length() - 4), FILENAME_FORMATTER);
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+    
     // Getters
     public LocalDateTime getTimestamp() { return timestamp; }
     public String getContent() { return content; }
@@ -40,6 +56,16 @@ public class DiaryEntry implements Serializable {
         return timestamp.format(DISPLAY_FORMATTER);
     }
     
+    static String formatTimestamp(LocalDateTime timestamp) {
+        return timestamp.format(DISPLAY_FORMATTER);
+    }
+    
+    /** The first 50 characters of the content, as shown in listings. */
+    private static String preview(String content) {
+        return content.substring(0, Math.min(50, content.length())) +
+            (content.length() > 50 ? "..." : "");
+    }
+    
     public void setContent(String content) {
         this.content = content;
     }
@@ -60,9 +86,6 @@ public class DiaryEntry implements Serializable {
     
     @Override
     public String toString() {
-        return String.format("[%s] %s", 
-            getFormattedTimestamp(), 
-            content.substring(0, Math.min(50, content.length())) + 
-            (content.length() > 50 ? "..." : ""));
+        return String.format("[%s] %s", getFormattedTimestamp(), preview(content));
     }
 }
\ No newline at end of file
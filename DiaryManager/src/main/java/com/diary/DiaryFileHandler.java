@@ -3,19 +3,89 @@ package com.diary;
 import java.io.*;
 import java.nio.file.*;
 import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.zip.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
-public class DiaryFileHandler {
+/**
+ * Safe for concurrent use. Reads take no locks; a save or delete holds the
+ * striped lock of its entry while it compares, writes and updates the index
+ * and statistics, so changes to one entry reach all three in the same order
+ * while different entries are saved in parallel.
+ *
+ * The index, statistics and scan filters each have their own lock for
+ * rebuilding and dropping them, which saves never wait for; saves only wait
+ * while a journal is first loaded (or found missing). Rebuilds read a
+ * snapshot and only hold every entry lock to replay the changes made meanwhile.
+ */
+public class DiaryFileHandler implements Closeable {
     private final Path entriesDir;
     private final Path backupDir;
+    private final EntryStore store;
+    private final EntryScanner scanner;
+    private final DiaryBackup backup;
+    private final boolean indexEnabled;
+    private final int filterBitsPerTerm;
+    private final int fuzzyDistance;
+    private final AtomicLong generation = new AtomicLong();
+    private final SearchCache<List<EntryHandle>> scanCache;
+    private final SearchCache<SearchResults> rankedCache;
+    private final String backupMode;
+    private final StripedLocks entryLocks = new StripedLocks(64);
+    private final Object indexLock = new Object();
+    private final Object statsLock = new Object();
+    private final Object filtersLock = new Object();
+    // Only held while a journal is first read, and never while taking another lock, as saves wait for it
+    private final Object loadLock = new Object();
+    private volatile DiaryIndex index;
+    private volatile DiaryStats stats;
+    private volatile ScanFilters filters;
+    // Set once the journal file was looked for, so a missing one is not looked for on every save
+    private volatile boolean indexLoaded;
+    private volatile boolean statsLoaded;
+    private volatile boolean filtersLoaded;
+    private volatile boolean closed;
+    /** Entries changed while each running rebuild reads its snapshot; see rebuildFromSnapshot. */
+    private final List<Set<String>> rebuildChanges = new CopyOnWriteArrayList<>();
     
     public DiaryFileHandler(String entriesDir, String backupDir) throws IOException {
         this.entriesDir = Paths.get(entriesDir);
         this.backupDir = Paths.get(backupDir);
+        this.indexEnabled = true;
+        this.filterBitsPerTerm = 0;
+        this.fuzzyDistance = 2;
+        this.scanCache = new SearchCache<>(10000);
+        this.rankedCache = new SearchCache<>(10000);
+        this.backupMode = "full";
         createDirectories();
+        this.store = new VersionedEntryStore(new FileEntryStore(this.entriesDir));
+        this.scanner = new EntryScanner();
+        this.backup = new DiaryBackup(store, this.backupDir);
+    }
+    
+    public DiaryFileHandler(DiaryConfig config) throws IOException {
+        this.entriesDir = Paths.get(config.getEntriesDirectory());
+        this.backupDir = Paths.get(config.getBackupDirectory());
+        this.indexEnabled = Boolean.parseBoolean(config.getSetting("searchIndex", "true"));
+        this.filterBitsPerTerm = config.getIntSetting("scanFilterBitsPerTerm", 10);
+        this.fuzzyDistance = Integer.parseInt(config.getSetting("fuzzyDistance", "2"));
+        long cacheSize = Long.parseLong(config.getSetting("searchCacheSize", "10000"));
+        this.scanCache = new SearchCache<>(cacheSize);
+        this.rankedCache = new SearchCache<>(cacheSize);
+        this.backupMode = config.getSetting("backupMode", "full");
+        createDirectories();
+        this.store = EntryStore.open(config.getSetting("storageMode", FileEntryStore.MODE), entriesDir, config);
+        this.scanner = new EntryScanner();
+        store.catalog().setExternalChangeListener(this::changedOutside);
+        this.backup = new DiaryBackup(store, backupDir,
+            Integer.parseInt(config.getSetting("backupThreads",
+                String.valueOf(Runtime.getRuntime().availableProcessors()))),
+            Integer.parseInt(config.getSetting("backupCompressionLevel", "-1")));
     }
     
     private void createDirectories() throws IOException {
@@ -23,102 +93,694 @@ public class DiaryFileHandler {
         Files.createDirectories(backupDir);
     }
     
-    public void saveEntry(DiaryEntry entry) throws IOException {
-        Path filePath = entriesDir.resolve(entry.getFilename());
-        try (BufferedWriter writer = Files.newBufferedWriter(filePath, StandardCharsets.UTF_8)) {
-            writer.write(entry.getContent());
+    /**
+     * Writes the entry unless the stored body is already identical, as when
+     * an edit is saved without changes. Returns whether anything was written.
+     */
+    public boolean saveEntry(DiaryEntry entry) throws IOException {
+        byte[] content = entry.getContent().getBytes(StandardCharsets.UTF_8);
+        ReentrantLock lock = entryLocks.lockFor(entry.getFilename());
+        lock.lock();
+        try {
+            byte[] previous = store.exists(entry.getFilename()) ? store.read(entry.getFilename()) : null;
+            if (previous != null && Arrays.equals(previous, content)) {
+                return false;
+            }
+            store.write(entry.getFilename(), content);
+            noteChanged(List.of(entry.getFilename()));
+            updateJournal(() -> {
+                DiaryIndex currentIndex = loadedIndex();
+                if (currentIndex != null) {
+                    currentIndex.update(entry.getFilename(), entry.getContent());
+                }
+            });
+            updateJournal(() -> {
+                DiaryStats currentStats = loadedStats();
+                if (currentStats != null) {
+                    currentStats.update(
+                        previous == null ? Map.of() : Map.of(entry.getFilename(), new String(previous, StandardCharsets.UTF_8)),
+                        Map.of(entry.getFilename(), entry.getContent()));
+                }
+            });
+            updateJournal(() -> {
+                ScanFilters currentFilters = loadedFilters();
+                if (currentFilters != null) {
+                    currentFilters.update(Map.of(entry.getFilename(), content));
+                }
+            });
+            generation.incrementAndGet();
+            return true;
+        } finally {
+            lock.unlock();
         }
     }
     
-    public String readEntry(String filename) throws IOException {
-        Path filePath = entriesDir.resolve(filename);
-        if (!Files.exists(filePath)) {
-            throw new FileNotFoundException("Entry not found: " + filename);
+    /**
+     * Saves the entry only if none with its filename exists yet, checked and
+     * written under the entry's lock. Returns whether it was saved.
+     */
+    public boolean createEntry(DiaryEntry entry) throws IOException {
+        ReentrantLock lock = entryLocks.lockFor(entry.getFilename());
+        lock.lock();
+        try {
+            return !store.exists(entry.getFilename()) && saveEntry(entry);
+        } finally {
+            lock.unlock();
         }
-        return Files.readString(filePath, StandardCharsets.UTF_8);
     }
     
-    public List<String> listEntries() throws IOException {
-        List<String> entries = new ArrayList<>();
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(entriesDir, "diary_*.txt")) {
-            for (Path entry : stream) {
-                entries.add(entry.getFileName().toString());
+    /**
+     * Writes a batch of entries with one store batch and one index append,
+     * then forces them to disk if sync is set. Used by the write-behind queue.
+     */
+    public void saveEntries(List<DiaryEntry> entries, boolean sync) throws IOException {
+        Map<String, byte[]> contents = new LinkedHashMap<>();
+        Map<String, String> texts = new LinkedHashMap<>();
+        for (DiaryEntry entry : entries) {
+            contents.put(entry.getFilename(), entry.getContent().getBytes(StandardCharsets.UTF_8));
+            texts.put(entry.getFilename(), entry.getContent());
+        }
+        List<ReentrantLock> held = entryLocks.lockAll(texts.keySet());
+        try {
+            DiaryStats currentStats = loadedStats();
+            Map<String, String> previous = new HashMap<>();
+            if (currentStats != null) {
+                // Overwritten entries are read once so their old words can be uncounted
+                for (String filename : texts.keySet()) {
+                    if (store.exists(filename)) {
+                        previous.put(filename, readEntry(filename));
+                    }
+                }
             }
+            store.writeAll(contents);
+            if (sync) {
+                store.sync();
+            }
+            noteChanged(texts.keySet());
+            updateJournal(() -> {
+                DiaryIndex currentIndex = loadedIndex();
+                if (currentIndex != null) {
+                    currentIndex.updateAll(texts);
+                }
+            });
+            if (currentStats != null) {
+                updateJournal(() -> currentStats.update(previous, texts));
+            }
+            updateJournal(() -> {
+                ScanFilters currentFilters = loadedFilters();
+                if (currentFilters != null) {
+                    currentFilters.update(contents);
+                }
+            });
+            generation.incrementAndGet();
+        } finally {
+            StripedLocks.unlockAll(held);
         }
-        entries.sort(Collections.reverseOrder());
-        return entries;
     }
     
-    public List<DiaryEntry> searchEntries(String keyword) throws IOException {
-        List<DiaryEntry> results = new ArrayList<>();
-        List<String> filenames = listEntries();
+    public String readEntry(String filename) throws IOException {
+        return new String(store.read(filename), StandardCharsets.UTF_8);
+    }
+    
+    public List<String> listEntries() throws IOException {
+        return store.list();
+    }
+    
+    public List<String> listEntries(int offset, int limit) throws IOException {
+        return store.page(offset, limit);
+    }
+    
+    public List<EntryHandle> searchEntries(String keyword) throws IOException {
+        List<EntryHandle> results = Collections.synchronizedList(new ArrayList<>());
+        searchEntries(keyword, results::add);
+        results.sort(Comparator.comparing(EntryHandle::getFilename).reversed());
+        return results;
+    }
+    
+    /**
+     * Streams matching entries to the consumer as they are found. Matches
+     * arrive from several threads and in no particular order.
+     */
+    public void searchEntries(String keyword, Consumer<EntryHandle> onMatch) throws IOException {
+        // Matching folds ASCII case only, so only ASCII keywords share a cache key across cases
+        String key = keyword.chars().allMatch(c -> c < 0x80) ? keyword.toLowerCase(Locale.ROOT) : keyword;
+        // Read after loading the index, since a first-time rebuild bumps the generation
+        DiaryIndex currentIndex = indexEnabled ? searchIndex() : null;
+        long searchedAt = generation.get();
+        List<EntryHandle> cached = scanCache.get(key, searchedAt);
+        if (cached != null) {
+            cached.forEach(onMatch);
+            return;
+        }
         
-        for (String filename : filenames) {
-            try {
-                String content = readEntry(filename);
-                if (content.toLowerCase().contains(keyword.toLowerCase())) {
-                    LocalDateTime timestamp = extractTimestampFromFilename(filename);
-                    results.add(new DiaryEntry(timestamp, content));
+        Set<String> candidates = currentIndex != null ? currentIndex.candidates(keyword) : null;
+        ScanFilters currentFilters = currentIndex == null ? scanFilters() : null;
+        List<EntryHandle> found = Collections.synchronizedList(new ArrayList<>());
+        // One snapshot for the listing and every read, so saves during the scan cannot tear it
+        try (EntryStore.Snapshot snapshot = store.snapshot()) {
+            List<String> filenames = candidates == null ? snapshot.list() : new ArrayList<>(candidates);
+            if (currentFilters != null) {
+                filenames = currentFilters.select(filenames, keyword);
+            }
+            scanner.scan(snapshot, filenames, keyword, (filename, content, offset) -> {
+                EntryHandle handle = EntryHandle.of(filename, extractTimestampFromFilename(filename),
+                                                    content, offset, keyword, this::readEntry);
+                found.add(handle);
+                onMatch.accept(handle);
+            });
+        }
+        if (currentFilters != null && ScanFilters.trigrams(keyword) != null) {
+            currentFilters.recordMatches(found.stream()
+                .filter(handle -> currentFilters.covers(handle.getFilename())).count());
+        }
+        scanCache.put(key, searchedAt, List.copyOf(found), found.size());
+    }
+    
+    /**
+     * Runs a ranked query (see DiaryQuery for the syntax) against the search
+     * index. Results are scored in memory and paged from the returned stream;
+     * no entry objects are built.
+     */
+    public SearchResults search(String query) throws IOException {
+        return search(query, false);
+    }
+    
+    /**
+     * Like search(), but every word also matches indexed terms within the
+     * configured edit distance. Misspelled words are resolved against the
+     * index vocabulary, so this reads no more entries than an exact search.
+     */
+    public SearchResults fuzzySearch(String query) throws IOException {
+        return search(query, true);
+    }
+    
+    private SearchResults search(String query, boolean fuzzy) throws IOException {
+        if (!indexEnabled) {
+            throw new IOException("Ranked search needs the search index to be enabled");
+        }
+        String key = (fuzzy ? "~" : "=") + SearchCache.normalize(query);
+        DiaryIndex currentIndex = searchIndex();
+        long searchedAt = generation.get();
+        SearchResults cached = rankedCache.get(key, searchedAt);
+        if (cached != null) {
+            return cached.restart();
+        }
+        SearchResults results = DiaryQuery.parse(query, fuzzyDistance, fuzzy).execute(currentIndex, this::readEntry);
+        rankedCache.put(key, searchedAt, results, results.getMatchCount());
+        return results.restart();
+    }
+    
+    /**
+     * Counter bumped by every change to the entries, made through this
+     * handler or picked up from outside by the catalog; cached search results
+     * are only valid for the generation they were computed at.
+     */
+    public long generation() {
+        return generation.get();
+    }
+    
+    /**
+     * Called by the catalog's watcher for an entry changed outside the
+     * application, or with null if any entry may have.
+     */
+    private void changedOutside(String filename) {
+        try {
+            if (filename == null) {
+                dropScanFilters();
+            } else {
+                ReentrantLock lock = entryLocks.lockFor(filename);
+                lock.lock();
+                try {
+                    // A running rebuild may have read the entry before it changed
+                    noteChanged(List.of(filename));
+                    ScanFilters currentFilters = loadedFilters();
+                    if (currentFilters != null) {
+                        // Its filter may no longer match the content; unfiltered entries are always read
+                        currentFilters.remove(filename);
+                    }
+                } finally {
+                    lock.unlock();
                 }
-            } catch (IOException e) {
-                System.err.println("Warning: Could not read file " + filename + ": " + e.getMessage());
             }
+        } catch (IOException e) {
+            System.err.println("Warning: Could not update scan filters: " + e.getMessage());
         }
-        
-        return results;
+        generation.incrementAndGet();
     }
     
-    LocalDateTime extractTimestampFromFilename(String filename) {
-        String timestampStr = filename
-            .replace("diary_", "")
-            .replace(".txt", "");
-        
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy_MM_dd_HH_mm_ss");
-        return LocalDateTime.parse(timestampStr, formatter);
+    public boolean isIndexEnabled() {
+        return indexEnabled;
     }
     
-    public void createBackup() throws IOException {
-        String backupName = "diary_backup_" + 
-            LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss")) + 
-            ".zip";
-        
-        Path backupPath = backupDir.resolve(backupName);
-        
-        try (ZipOutputStream zos = new ZipOutputStream(
-                new FileOutputStream(backupPath.toFile()))) {
-            
-            List<String> entries = listEntries();
-            for (String entry : entries) {
-                Path filePath = entriesDir.resolve(entry);
-                zos.putNextEntry(new ZipEntry(entry));
-                Files.copy(filePath, zos);
-                zos.closeEntry();
-            }
-            
-            // Also backup config if exists
-            Path configPath = Paths.get("diary_config.ser");
-            if (Files.exists(configPath)) {
-                zos.putNextEntry(new ZipEntry("diary_config.ser"));
-                Files.copy(configPath, zos);
-                zos.closeEntry();
+    /**
+     * Reloads the entry listing and rebuilds the search index from disk. Needed when the
+     * entries directory was changed outside the application.
+     */
+    public int rebuildIndex() throws IOException {
+        if (!indexEnabled) {
+            // The scan filters stand in for the index and may have missed the same changes
+            dropScanFilters();
+            return 0;
+        }
+        synchronized (indexLock) {
+            // Dropped first, so saves stop journaling into a file the rebuild is about to replace
+            dropIndex();
+            DiaryIndex rebuilt = rebuildFromSnapshot(
+                (filenames, reader) -> DiaryIndex.rebuild(entriesDir, filenames, reader), this::installIndex);
+            // The rebuild is for changes made outside the application, which the statistics missed too
+            dropStatistics();
+            generation.incrementAndGet();
+            return rebuilt.size();
+        }
+    }
+    
+    private DiaryIndex searchIndex() throws IOException {
+        DiaryIndex currentIndex = loadedIndex();
+        if (currentIndex != null) {
+            return currentIndex;
+        }
+        synchronized (indexLock) {
+            if (index == null) {
+                rebuildIndex();
             }
+            return index;
         }
-        
-        System.out.println("Backup created: " + backupPath);
+    }
+    
+    /**
+     * Deletes the on-disk search index. Used when indexing is switched off, so
+     * that switching it back on starts from a fresh rebuild.
+     */
+    public void dropIndex() throws IOException {
+        synchronized (indexLock) {
+            synchronized (loadLock) {
+                indexLoaded = true;
+            }
+            withEveryLock(() -> {
+                closeJournal(index);
+                index = null;
+                Files.deleteIfExists(entriesDir.resolve(DiaryIndex.INDEX_FILE));
+            });
+        }
+    }
+    
+    private void installIndex(DiaryIndex built, Map<String, String> oldContents,
+                              Map<String, String> newContents) throws IOException {
+        Map<String, String> present = new HashMap<>();
+        for (Map.Entry<String, String> entry : newContents.entrySet()) {
+            if (entry.getValue() != null) {
+                present.put(entry.getKey(), entry.getValue());
+            } else {
+                built.remove(entry.getKey());
+            }
+        }
+        if (!present.isEmpty()) {
+            built.updateAll(present);
+        }
+        index = built;
+    }
+    
+    /**
+     * Statistics over all entries, computed with a full read the first time
+     * and kept up to date on every change afterwards.
+     */
+    public DiaryStats statistics() throws IOException {
+        DiaryStats currentStats = loadedStats();
+        if (currentStats != null) {
+            return currentStats;
+        }
+        synchronized (statsLock) {
+            if (stats == null) {
+                rebuildFromSnapshot(
+                    (filenames, reader) -> DiaryStats.rebuild(entriesDir, filenames, reader), this::installStats);
+            }
+            return stats;
+        }
+    }
+    
+    private void installStats(DiaryStats built, Map<String, String> oldContents,
+                              Map<String, String> newContents) throws IOException {
+        if (!newContents.isEmpty()) {
+            built.update(oldContents, newContents);
+        }
+        stats = built;
+    }
+    
+    /**
+     * Filters that let keyword scans skip entries while the search index is
+     * off, built with a full read the first time. Null if the index is on or
+     * the filters are disabled.
+     */
+    public ScanFilters scanFilters() throws IOException {
+        ScanFilters currentFilters = loadedFilters();
+        if (currentFilters != null || indexEnabled || filterBitsPerTerm <= 0) {
+            return currentFilters;
+        }
+        synchronized (filtersLock) {
+            if (filters == null) {
+                // Versions come from the store, not the snapshot; entries changed since are replayed anyway
+                rebuildFromSnapshot((filenames, reader) -> ScanFilters.rebuild(
+                    entriesDir, filenames, reader, filterBitsPerTerm, store::version), this::installFilters);
+            }
+            return filters;
+        }
+    }
+    
+    private void installFilters(ScanFilters built, Map<String, String> oldContents,
+                                Map<String, String> newContents) throws IOException {
+        Map<String, byte[]> present = new HashMap<>();
+        for (Map.Entry<String, String> entry : newContents.entrySet()) {
+            if (entry.getValue() != null) {
+                present.put(entry.getKey(), entry.getValue().getBytes(StandardCharsets.UTF_8));
+            } else {
+                built.remove(entry.getKey());
+            }
+        }
+        if (!present.isEmpty()) {
+            built.update(present);
+        }
+        filters = built;
+    }
+    
+    /** Deletes the scan filters, which are not kept up to date while the search index is on. */
+    public void dropScanFilters() throws IOException {
+        synchronized (filtersLock) {
+            synchronized (loadLock) {
+                filtersLoaded = true;
+            }
+            withEveryLock(() -> {
+                closeJournal(filters);
+                filters = null;
+                Files.deleteIfExists(entriesDir.resolve(ScanFilters.FILTERS_FILE));
+            });
+        }
+    }
+    
+    private ScanFilters loadedFilters() throws IOException {
+        if (indexEnabled || filterBitsPerTerm <= 0) {
+            return null;
+        }
+        if (filtersLoaded) {
+            return filters;
+        }
+        synchronized (loadLock) {
+            if (!filtersLoaded) {
+                filters = loadJournal(() -> ScanFilters.load(entriesDir, filterBitsPerTerm, store::version), ScanFilters.FILTERS_FILE);
+                filtersLoaded = true;
+            }
+            return filters;
+        }
+    }
+    
+    /** Forgets the statistics after a bulk change; the next statistics() call rebuilds them. */
+    private void dropStatistics() throws IOException {
+        synchronized (statsLock) {
+            synchronized (loadLock) {
+                statsLoaded = true;
+            }
+            withEveryLock(() -> {
+                closeJournal(stats);
+                stats = null;
+                Files.deleteIfExists(entriesDir.resolve(DiaryStats.STATS_FILE));
+            });
+        }
+    }
+    
+    private DiaryStats loadedStats() throws IOException {
+        if (statsLoaded) {
+            return stats;
+        }
+        synchronized (loadLock) {
+            if (!statsLoaded) {
+                stats = loadJournal(() -> DiaryStats.load(entriesDir), DiaryStats.STATS_FILE);
+                statsLoaded = true;
+            }
+            return stats;
+        }
+    }
+    
+    private DiaryIndex loadedIndex() throws IOException {
+        if (!indexEnabled) {
+            return null;
+        }
+        if (indexLoaded) {
+            return index;
+        }
+        synchronized (loadLock) {
+            if (!indexLoaded) {
+                index = loadJournal(() -> DiaryIndex.load(entriesDir), DiaryIndex.INDEX_FILE);
+                indexLoaded = true;
+            }
+            return index;
+        }
+    }
+    
+    /**
+     * Loads a journal, or deletes a file that cannot be read and returns null,
+     * so that it is rebuilt rather than left behind the saves made meanwhile.
+     */
+    private <T> T loadJournal(Load<T> load, String file) throws IOException {
+        try {
+            return load.load();
+        } catch (IOException e) {
+            System.err.println("Warning: Could not load " + file + ", it will be rebuilt: " + e.getMessage());
+            Files.deleteIfExists(entriesDir.resolve(file));
+            return null;
+        }
+    }
+    
+    /**
+     * Brings the index, statistics or filters up to date with a change the
+     * store already made. A failure is reported rather than failing the save:
+     * the journal deletes its file (see JournalFile.append), so it is rebuilt
+     * on the next load.
+     */
+    private static void updateJournal(LockedAction update) {
+        try {
+            update.run();
+        } catch (IOException e) {
+            System.err.println("Warning: Could not update the search index or statistics: " + e.getMessage());
+        }
+    }
+    
+    private interface Load<T> {
+        T load() throws IOException;
+    }
+    
+    private interface Build<T> {
+        T build(List<String> filenames, DiaryIndex.EntryReader reader) throws IOException;
+    }
+    
+    private interface Install<T> {
+        /** Brings built up to date with the changed entries (null content if absent) and publishes it. */
+        void install(T built, Map<String, String> oldContents, Map<String, String> newContents) throws IOException;
+    }
+    
+    private interface LockedAction {
+        void run() throws IOException;
+    }
+    
+    /**
+     * Builds the index, statistics or filters from a snapshot, so saves go on
+     * while it reads every entry. The entries they change meanwhile are noted
+     * and, with every entry lock held, replayed into the result as it is
+     * installed, so each change reaches it exactly once.
+     */
+    private <T> T rebuildFromSnapshot(Build<T> build, Install<T> install) throws IOException {
+        if (closed) {
+            // A lock-free read can still reach a swapped-out handler; it is retried on the new one
+            throw new IOException("Diary file handler is closed");
+        }
+        store.refresh();
+        Set<String> changed = ConcurrentHashMap.newKeySet();
+        EntryStore.Snapshot[] taken = new EntryStore.Snapshot[1];
+        withEveryLock(() -> {
+            taken[0] = store.snapshot();
+            rebuildChanges.add(changed);
+        });
+        try (EntryStore.Snapshot snapshot = taken[0]) {
+            T built = build.build(snapshot.list(),
+                filename -> new String(snapshot.read(filename), StandardCharsets.UTF_8));
+            withEveryLock(() -> {
+                rebuildChanges.removeIf(changes -> changes == changed);
+                Map<String, String> oldContents = new HashMap<>();
+                Map<String, String> newContents = new HashMap<>();
+                for (String filename : changed) {
+                    try {
+                        oldContents.put(filename, new String(snapshot.read(filename), StandardCharsets.UTF_8));
+                    } catch (FileNotFoundException e) {
+                        // Created after the snapshot
+                    }
+                    newContents.put(filename, store.exists(filename) ? readEntry(filename) : null);
+                }
+                install.install(built, oldContents, newContents);
+            });
+            return built;
+        } finally {
+            rebuildChanges.removeIf(changes -> changes == changed);
+        }
+    }
+    
+    /** Called with the entries' locks held, after the store changed them. */
+    private void noteChanged(Collection<String> filenames) {
+        for (Set<String> changes : rebuildChanges) {
+            changes.addAll(filenames);
+        }
+    }
+    
+    /** Runs the action while no save or delete is part way through. */
+    private void withEveryLock(LockedAction action) throws IOException {
+        List<ReentrantLock> held = entryLocks.lockEvery();
+        try {
+            action.run();
+        } finally {
+            StripedLocks.unlockAll(held);
+        }
+    }
+    
+    LocalDateTime extractTimestampFromFilename(String filename) {
+        LocalDateTime timestamp = DiaryEntry.parseFilename(filename);
+        if (timestamp == null) {
+            throw new IllegalArgumentException("Not a diary entry filename: " + filename);
+        }
+        return timestamp;
+    }
+    
+    public List<String> entriesBetween(LocalDateTime from, LocalDateTime to) throws IOException {
+        return store.catalog().between(from, to);
+    }
+    
+    public List<String> entriesOn(LocalDate date) throws IOException {
+        return store.catalog().on(date);
+    }
+    
+    public List<String> latestEntries(int count) throws IOException {
+        return store.catalog().latest(count);
+    }
+    
+    /**
+     * The page of up to size entries that follows the cursor, newest first.
+     * A null cursor starts at the newest entry.
+     */
+    public EntryPage page(String cursor, int size) throws IOException {
+        LocalDateTime after = cursor == null ? null : extractTimestampFromFilename(cursor);
+        int limit = Math.max(size, 1);
+        // One extra entry tells whether another page follows
+        List<String> entries = store.catalog().after(after, limit + 1);
+        if (entries.size() <= limit) {
+            return new EntryPage(entries, null);
+        }
+        entries = entries.subList(0, limit);
+        return new EntryPage(entries, entries.get(limit - 1));
+    }
+    
+    public Path createBackup(DiaryBackup.ProgressListener progress) throws IOException {
+        return switch (backupMode) {
+            case "incremental" -> backup.createIncremental(progress);
+            case "dedup" -> backup.createDeduplicated(progress);
+            default -> backup.createFull(progress);
+        };
+    }
+    
+    public List<String> listBackups() throws IOException {
+        return backup.listBackups();
+    }
+    
+    public DiaryConfig backedUpConfig(String backupName) throws IOException {
+        return backup.readConfig(backupName);
+    }
+    
+    public int restoreBackup(String backupName) throws IOException {
+        int restored = backup.restore(backupName);
+        dropStatistics();
+        dropScanFilters();
+        generation.incrementAndGet();
+        if (indexEnabled) {
+            rebuildIndex();
+        }
+        return restored;
     }
     
     public boolean deleteEntry(String filename) throws IOException {
-        Path filePath = entriesDir.resolve(filename);
-        return Files.deleteIfExists(filePath);
+        ReentrantLock lock = entryLocks.lockFor(filename);
+        lock.lock();
+        try {
+            DiaryStats currentStats = loadedStats();
+            String previous = currentStats != null && store.exists(filename) ? readEntry(filename) : null;
+            boolean deleted = store.delete(filename);
+            if (deleted) {
+                noteChanged(List.of(filename));
+            }
+            updateJournal(() -> {
+                DiaryIndex currentIndex = loadedIndex();
+                if (currentIndex != null) {
+                    currentIndex.remove(filename);
+                }
+            });
+            updateJournal(() -> {
+                ScanFilters currentFilters = loadedFilters();
+                if (currentFilters != null) {
+                    currentFilters.remove(filename);
+                }
+            });
+            if (deleted && previous != null) {
+                updateJournal(() -> currentStats.update(Map.of(filename, previous), Collections.singletonMap(filename, null)));
+            }
+            if (deleted) {
+                generation.incrementAndGet();
+            }
+            return deleted;
+        } finally {
+            lock.unlock();
+        }
     }
     
     public long getTotalEntries() throws IOException {
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(entriesDir, "diary_*.txt")) {
-            long count = 0;
-            for (Path ignored : stream) {
-                count++;
+        return store.size();
+    }
+    
+    /**
+     * Moves entries into the configured layout of a file store; a no-op for
+     * other storage modes.
+     */
+    public int relayoutEntries() throws IOException {
+        return store.relayout();
+    }
+    
+    /**
+     * Trains a shared compression dictionary on existing entries. Returns its
+     * size in bytes, or 0 if the store was opened without compression support.
+     */
+    public int trainCompressionDictionary(int sampleSize) throws IOException {
+        return store instanceof CompressingEntryStore compressing ? compressing.trainDictionary(sampleSize) : 0;
+    }
+    
+    EntryStore getStore() {
+        return store;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        try {
+            // Lets running rebuilds finish their files first; later ones see closed and stop
+            synchronized (indexLock) {
+                synchronized (statsLock) {
+                    synchronized (filtersLock) {
+                        closed = true;
+                        closeJournal(index);
+                        closeJournal(stats);
+                        closeJournal(filters);
+                    }
+                }
             }
-            return count;
+        } finally {
+            store.close();
+        }
+    }
+    
+    private static void closeJournal(Closeable journal) throws IOException {
+        if (journal != null) {
+            journal.close();
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,387 @@
+package com.diary;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * On-disk inverted index (term -> entry filenames) used to answer keyword
+ * searches without reading the whole entries directory.
+ *
+ * The index is kept as an append-only journal of "+" (index entry) and "-"
+ * (remove entry) records that is replayed on load and compacted once it
+ * grows well past the number of indexed entries.
+ *
+ * Term frequencies and entry lengths are kept alongside the postings so the
+ * index can also rank entries with BM25 (see DiaryQuery). For fuzzy lookups
+ * a trigram index over the terms is built in memory on first use and then
+ * kept up to date as terms come and go.
+ */
+public class DiaryIndex implements Closeable {
+    static final String INDEX_FILE = ".diary_index";
+    private static final double BM25_K1 = 1.2;
+    private static final double BM25_B = 0.75;
+    
+    private final Path indexPath;
+    private final JournalFile journal;
+    private final TreeMap<String, Map<String, Integer>> postings = new TreeMap<>();
+    private final Map<String, Set<String>> documents = new HashMap<>();
+    private final Map<String, Integer> lengths = new HashMap<>();
+    private long totalLength;
+    private TrigramIndex trigrams;
+    private long journalRecords;
+    
+    private DiaryIndex(Path indexPath) {
+        this.indexPath = indexPath;
+        this.journal = new JournalFile(indexPath);
+    }
+    
+    /**
+     * Loads the index stored in the given entries directory, or returns null
+     * if none exists yet or it is damaged (in which case it needs a rebuild).
+     */
+    public static DiaryIndex load(Path entriesDir) throws IOException {
+        DiaryIndex index = new DiaryIndex(entriesDir.resolve(INDEX_FILE));
+        if (!Files.exists(index.indexPath)) {
+            return null;
+        }
+        index.journalRecords = index.journal.read(index::replay);
+        return index.journalRecords < 0 ? null : index;
+    }
+    
+    /**
+     * Builds a fresh index over the given entries and writes it to disk,
+     * replacing any existing index file.
+     */
+    public static DiaryIndex rebuild(Path entriesDir, List<String> filenames,
+                                     EntryReader reader) throws IOException {
+        DiaryIndex index = new DiaryIndex(entriesDir.resolve(INDEX_FILE));
+        for (String filename : filenames) {
+            try {
+                index.add(filename, termFrequencies(reader.read(filename)));
+            } catch (IOException e) {
+                System.err.println("Warning: Could not index file " + filename + ": " + e.getMessage());
+            }
+        }
+        index.compact();
+        return index;
+    }
+    
+    public void update(String filename, String content) throws IOException {
+        updateAll(Map.of(filename, content));
+    }
+    
+    /**
+     * Indexes a batch of entries with a single journal append. Entries are
+     * tokenized before taking the lock, so concurrent saves only wait for
+     * each other while the postings change.
+     */
+    public void updateAll(Map<String, String> contents) throws IOException {
+        Map<String, Map<String, Integer>> tokenized = new LinkedHashMap<>();
+        List<String> records = new ArrayList<>(contents.size());
+        for (Map.Entry<String, String> entry : contents.entrySet()) {
+            Map<String, Integer> terms = termFrequencies(entry.getValue());
+            tokenized.put(entry.getKey(), terms);
+            records.add(addRecord(entry.getKey(), terms));
+        }
+        synchronized (this) {
+            for (Map.Entry<String, Map<String, Integer>> entry : tokenized.entrySet()) {
+                removeDocument(entry.getKey());
+                add(entry.getKey(), entry.getValue());
+            }
+            appendRecords(records);
+        }
+    }
+    
+    public synchronized void remove(String filename) throws IOException {
+        if (removeDocument(filename)) {
+            appendRecords(List.of("-\t" + filename));
+        }
+    }
+    
+    public synchronized int size() {
+        return documents.size();
+    }
+    
+    /** Closes the journal file; a later change opens it again. */
+    @Override
+    public synchronized void close() throws IOException {
+        journal.close();
+    }
+    
+    /** Entries containing the exact term. */
+    public synchronized Set<String> matching(String term) {
+        Map<String, Integer> posting = postings.get(term);
+        return posting == null ? new HashSet<>() : new HashSet<>(posting.keySet());
+    }
+    
+    public synchronized Set<String> allEntries() {
+        return new HashSet<>(documents.keySet());
+    }
+    
+    /** Indexed terms within maxDistance edits of the word, with their distance. */
+    public synchronized Map<String, Integer> similarTerms(String word, int maxDistance) {
+        if (maxDistance <= 0) {
+            return postings.containsKey(word) ? Map.of(word, 0) : Map.of();
+        }
+        if (trigrams == null) {
+            trigrams = new TrigramIndex(postings.keySet());
+        }
+        return trigrams.similar(word, maxDistance, postings.keySet());
+    }
+    
+    /** Indexed terms starting with the prefix. */
+    public synchronized List<String> termsWithPrefix(String prefix) {
+        List<String> terms = new ArrayList<>();
+        for (String term : postings.tailMap(prefix, true).keySet()) {
+            if (!term.startsWith(prefix)) break;
+            terms.add(term);
+        }
+        return terms;
+    }
+    
+    /**
+     * BM25 scores of the given entries for the weighted query terms (weight =
+     * how often the term occurs in the query, less for fuzzy matches). Each
+     * term's posting or the entry set is walked, whichever is smaller.
+     */
+    public synchronized Map<String, Double> score(Set<String> entries, Map<String, Double> terms) {
+        Map<String, Double> scores = new HashMap<>(entries.size() * 2);
+        for (String entry : entries) {
+            scores.put(entry, 0.0);
+        }
+        if (documents.isEmpty()) {
+            return scores;
+        }
+        double averageLength = Math.max(1.0, (double) totalLength / documents.size());
+        for (Map.Entry<String, Double> term : terms.entrySet()) {
+            Map<String, Integer> posting = postings.get(term.getKey());
+            if (posting == null) {
+                continue;
+            }
+            double idf = Math.log(1 + (documents.size() - posting.size() + 0.5) / (posting.size() + 0.5));
+            double weight = idf * term.getValue();
+            if (posting.size() <= scores.size()) {
+                for (Map.Entry<String, Integer> p : posting.entrySet()) {
+                    if (scores.containsKey(p.getKey())) {
+                        scores.merge(p.getKey(), weight * bm25(p.getValue(), p.getKey(), averageLength), Double::sum);
+                    }
+                }
+            } else {
+                for (Map.Entry<String, Double> s : scores.entrySet()) {
+                    Integer tf = posting.get(s.getKey());
+                    if (tf != null) {
+                        s.setValue(s.getValue() + weight * bm25(tf, s.getKey(), averageLength));
+                    }
+                }
+            }
+        }
+        return scores;
+    }
+    
+    private double bm25(int tf, String entry, double averageLength) {
+        double norm = 1 - BM25_B + BM25_B * lengths.getOrDefault(entry, 0) / averageLength;
+        return tf * (BM25_K1 + 1) / (tf + BM25_K1 * norm);
+    }
+    
+    /**
+     * Returns the entries that may contain the keyword as a substring, or null
+     * if the keyword has no indexable terms and a full scan is required.
+     * Candidates still have to be verified against the entry content.
+     */
+    public synchronized Set<String> candidates(String keyword) {
+        List<String> tokens = tokenize(keyword);
+        if (tokens.isEmpty()) {
+            return null;
+        }
+        
+        boolean openLeft = isTermChar(keyword.codePointAt(0));
+        boolean openRight = isTermChar(keyword.codePointBefore(keyword.length()));
+        
+        Set<String> result = null;
+        for (int i = 0; i < tokens.size(); i++) {
+            boolean left = i == 0 && openLeft;
+            boolean right = i == tokens.size() - 1 && openRight;
+            Set<String> matches = entriesForToken(tokens.get(i), left, right);
+            if (result == null) {
+                result = matches;
+            } else {
+                result.retainAll(matches);
+            }
+            if (result.isEmpty()) {
+                break;
+            }
+        }
+        return result;
+    }
+    
+    private Set<String> entriesForToken(String token, boolean openLeft, boolean openRight) {
+        Set<String> entries = new HashSet<>();
+        if (!openLeft && !openRight) {
+            Map<String, Integer> posting = postings.get(token);
+            if (posting != null) {
+                entries.addAll(posting.keySet());
+            }
+        } else if (!openLeft) {
+            // Prefix match: walk the sorted term range starting at the token
+            for (Map.Entry<String, Map<String, Integer>> e : postings.tailMap(token, true).entrySet()) {
+                if (!e.getKey().startsWith(token)) break;
+                entries.addAll(e.getValue().keySet());
+            }
+        } else {
+            for (Map.Entry<String, Map<String, Integer>> e : postings.entrySet()) {
+                String term = e.getKey();
+                boolean match = openRight ? term.contains(token) : term.endsWith(token);
+                if (match) {
+                    entries.addAll(e.getValue().keySet());
+                }
+            }
+        }
+        return entries;
+    }
+    
+    private void add(String filename, Map<String, Integer> terms) {
+        for (Map.Entry<String, Integer> term : terms.entrySet()) {
+            Map<String, Integer> posting = postings.get(term.getKey());
+            if (posting == null) {
+                posting = new HashMap<>();
+                postings.put(term.getKey(), posting);
+                if (trigrams != null) {
+                    trigrams.add(term.getKey());
+                }
+            }
+            posting.put(filename, term.getValue());
+        }
+        documents.put(filename, new HashSet<>(terms.keySet()));
+        int length = 0;
+        for (int tf : terms.values()) {
+            length += tf;
+        }
+        lengths.put(filename, length);
+        totalLength += length;
+    }
+    
+    private boolean removeDocument(String filename) {
+        Set<String> terms = documents.remove(filename);
+        if (terms == null) {
+            return false;
+        }
+        Integer length = lengths.remove(filename);
+        if (length != null) {
+            totalLength -= length;
+        }
+        for (String term : terms) {
+            Map<String, Integer> posting = postings.get(term);
+            if (posting != null) {
+                posting.remove(filename);
+                if (posting.isEmpty()) {
+                    postings.remove(term);
+                    if (trigrams != null) {
+                        trigrams.remove(term);
+                    }
+                }
+            }
+        }
+        return true;
+    }
+    
+    /** Applies one journal record; see JournalFile.Replay for malformed ones. */
+    private boolean replay(String line) {
+        String[] parts = line.split("\t", 3);
+        if (parts.length == 2 && parts[0].equals("-")) {
+            removeDocument(parts[1]);
+            return true;
+        }
+        if (parts.length < 3 || !parts[0].equals("+")) {
+            return false;
+        }
+        // Parsed in full before anything changes, so a torn record is not half applied
+        Map<String, Integer> terms = new HashMap<>();
+        if (!parts[2].isEmpty()) {
+            for (String pair : parts[2].split(" ")) {
+                int sep = pair.lastIndexOf(':');
+                if (sep <= 0) {
+                    return false;
+                }
+                terms.put(pair.substring(0, sep), Integer.parseInt(pair.substring(sep + 1)));
+            }
+        }
+        removeDocument(parts[1]);
+        add(parts[1], terms);
+        return true;
+    }
+    
+    private void appendRecords(List<String> records) throws IOException {
+        journal.append(records);
+        journalRecords += records.size();
+        if (journalRecords > 1000 && journalRecords > documents.size() * 2L) {
+            compact();
+        }
+    }
+    
+    private void compact() throws IOException {
+        Map<String, Map<String, Integer>> byDocument = new HashMap<>();
+        for (String filename : documents.keySet()) {
+            byDocument.put(filename, new TreeMap<>());
+        }
+        for (Map.Entry<String, Map<String, Integer>> term : postings.entrySet()) {
+            for (Map.Entry<String, Integer> posting : term.getValue().entrySet()) {
+                byDocument.get(posting.getKey()).put(term.getKey(), posting.getValue());
+            }
+        }
+        
+        journal.rewrite(() -> byDocument.entrySet().stream()
+            .map(doc -> addRecord(doc.getKey(), doc.getValue())).iterator());
+        journalRecords = byDocument.size();
+    }
+    
+    private static String addRecord(String filename, Map<String, Integer> terms) {
+        StringBuilder record = new StringBuilder("+\t").append(filename).append('\t');
+        boolean first = true;
+        for (Map.Entry<String, Integer> term : terms.entrySet()) {
+            if (!first) record.append(' ');
+            record.append(term.getKey()).append(':').append(term.getValue());
+            first = false;
+        }
+        return record.toString();
+    }
+    
+    static Map<String, Integer> termFrequencies(String content) {
+        Map<String, Integer> terms = new HashMap<>();
+        for (String token : tokenize(content)) {
+            terms.merge(token, 1, Integer::sum);
+        }
+        return terms;
+    }
+    
+    /**
+     * Splits text into lowercase terms made of letters and digits.
+     */
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i < text.length(); ) {
+            int cp = text.codePointAt(i);
+            if (isTermChar(cp)) {
+                if (start < 0) start = i;
+            } else if (start >= 0) {
+                tokens.add(text.substring(start, i).toLowerCase());
+                start = -1;
+            }
+            i += Character.charCount(cp);
+        }
+        if (start >= 0) {
+            tokens.add(text.substring(start).toLowerCase());
+        }
+        return tokens;
+    }
+    
+    static boolean isTermChar(int codePoint) {
+        return Character.isLetterOrDigit(codePoint);
+    }
+    
+    @FunctionalInterface
+    public interface EntryReader {
+        String read(String filename) throws IOException;
+    }
+}
\ No newline at end of file
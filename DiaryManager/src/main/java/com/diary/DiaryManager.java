@@ -2,58 +2,358 @@ package com.diary;
 
 import java.io.*;
 import java.nio.file.*;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 
+/**
+ * Safe to share between threads. Reads go straight to the current file
+ * handler without locking. Saves and deletes hold the shared side of a
+ * read-write lock (and the handler's per-entry locks), so they only wait for
+ * each other when they touch the same entry; a configuration change takes
+ * the exclusive side to swap in a new handler once in-flight saves are done.
+ */
 public class DiaryManager {
     private DiaryConfig config;
-    private DiaryFileHandler fileHandler;
+    private volatile DiaryFileHandler fileHandler;
+    private final ReentrantReadWriteLock handlerLock = new ReentrantReadWriteLock();
+    private final BackupScheduler backupScheduler;
+    private volatile WriteBehindQueue writeQueue;  // null while saves are synchronous
+    private final Object writeQueueLock = new Object();  // held while the write queue is replaced
     
     public DiaryManager() throws IOException {
-        this.config = DiaryConfig.loadConfig();
+        this(DiaryConfig.loadConfig());
+    }
+    
+    DiaryManager(DiaryConfig config) throws IOException {
+        this.config = config;
         initializeFileHandler();
+        this.backupScheduler = new BackupScheduler(this::runBackup, new ConsoleBackupListener());
+        configureAutoBackup();
+        configureWriteBehind();
+    }
+    
+    @FunctionalInterface
+    private interface HandlerCall<T> {
+        T apply(DiaryFileHandler handler) throws IOException;
     }
     
     private void initializeFileHandler() throws IOException {
+        reconfigure(handler -> null);
+    }
+    
+    /**
+     * Applies a configuration change with saves held off, then replaces the
+     * file handler so the change takes effect. Reads carry on against the old
+     * handler until the new one is in place.
+     */
+    private <T> T reconfigure(HandlerCall<T> change) throws IOException {
+        // Queued saves need the shared lock, so they must be in before taking it exclusively
+        flushWrites();
+        handlerLock.writeLock().lock();
+        try {
+            DiaryFileHandler previous = this.fileHandler;
+            T result = change.apply(previous);
+            try {
+                this.fileHandler = new DiaryFileHandler(config);
+            } catch (IOException e) {
+                System.err.println("Error initializing file handler: " + e.getMessage());
+                throw e;
+            }
+            if (previous != null) {
+                previous.close();
+                // Only dropped once closed, so a search still reaching the old handler cannot rebuild them;
+                // switching back then starts from a rebuild
+                if (previous.isIndexEnabled() && !fileHandler.isIndexEnabled()) {
+                    previous.dropIndex();
+                } else if (!previous.isIndexEnabled() && fileHandler.isIndexEnabled()) {
+                    previous.dropScanFilters();
+                }
+            }
+            return result;
+        } finally {
+            handlerLock.writeLock().unlock();
+        }
+    }
+    
+    /** Runs a save, delete or backup; a handler swap waits until it is done. */
+    private <T> T pinned(HandlerCall<T> call) throws IOException {
+        handlerLock.readLock().lock();
         try {
-            this.fileHandler = new DiaryFileHandler(
-                config.getEntriesDirectory(),
-                config.getBackupDirectory()
-            );
+            return call.apply(fileHandler);
+        } finally {
+            handlerLock.readLock().unlock();
+        }
+    }
+    
+    /** Runs a read without locking, once more on the new handler if it was swapped meanwhile. */
+    private <T> T read(HandlerCall<T> call) throws IOException {
+        DiaryFileHandler handler = fileHandler;
+        try {
+            return call.apply(handler);
         } catch (IOException e) {
-            System.err.println("Error initializing file handler: " + e.getMessage());
-            throw e;
+            DiaryFileHandler current = fileHandler;
+            if (current == handler) {
+                throw e;
+            }
+            return call.apply(current);
         }
     }
     
     public void saveEntry(DiaryEntry entry) throws IOException {
-        fileHandler.saveEntry(entry);
-        checkAutoBackup();
+        if (writeQueue == null) {
+            saveDirectly(entry);
+            return;
+        }
+        // Keep ordering with queued saves and wait for the group commit
+        try {
+            saveEntryAsync(entry).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Save interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Save failed", e.getCause());
+        }
+    }
+    
+    private void saveDirectly(DiaryEntry entry) throws IOException {
+        if (pinned(handler -> handler.saveEntry(entry))) {
+            backupScheduler.recordChange(entry.getContent().length());
+        }
+    }
+    
+    /**
+     * Saves a new entry unless one with the same timestamp (and so the same
+     * filename) already exists, and returns whether it was saved. Unlike
+     * saveEntry it never replaces an entry.
+     */
+    public boolean createEntry(DiaryEntry entry) throws IOException {
+        // A queued save of the same entry must be visible to the check
+        flushWrites();
+        if (pinned(handler -> handler.createEntry(entry))) {
+            backupScheduler.recordChange(entry.getContent().length());
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Saves an entry without waiting for the disk. With write-behind enabled
+     * the entry is group-committed with other queued saves and the future
+     * completes once its batch is durable; otherwise it is saved right away.
+     */
+    public CompletableFuture<DiaryEntry> saveEntryAsync(DiaryEntry entry) {
+        WriteBehindQueue queue = writeQueue;
+        CompletableFuture<DiaryEntry> queued = queue == null ? null : queue.submit(entry);
+        if (queued == null) {
+            try {
+                if (queue != null) {
+                    // Closed while being replaced; what it still holds is written before this save
+                    queue.flush();
+                }
+                saveDirectly(entry);
+                return CompletableFuture.completedFuture(entry);
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        backupScheduler.recordChange(entry.getContent().length());
+        return queued;
+    }
+    
+    /**
+     * Saves a batch of entries with one store write, one index append and
+     * one sync, and returns once they are on disk.
+     */
+    public void saveEntries(List<DiaryEntry> entries) throws IOException {
+        // A queued save of one of these entries must not land after the batch
+        flushWrites();
+        pinned(handler -> {
+            handler.saveEntries(entries, true);
+            return null;
+        });
+        for (DiaryEntry entry : entries) {
+            backupScheduler.recordChange(entry.getContent().length());
+        }
+    }
+    
+    /** Waits until every queued save has been committed. */
+    public void flushWrites() throws IOException {
+        WriteBehindQueue queue = writeQueue;
+        if (queue != null) {
+            queue.flush();
+        }
     }
     
     public List<String> listEntries() throws IOException {
-        return fileHandler.listEntries();
+        return read(DiaryFileHandler::listEntries);
+    }
+    
+    public List<String> listEntries(int offset, int limit) throws IOException {
+        return read(handler -> handler.listEntries(offset, limit));
+    }
+    
+    /**
+     * Cursor-based paging that only reads the entries for the requested page.
+     * Pass null for the first page and getNextCursor() for each following one.
+     */
+    public EntryPage page(String cursor, int size) throws IOException {
+        return read(handler -> handler.page(cursor, size));
     }
     
     public String readEntry(String filename) throws IOException {
-        return fileHandler.readEntry(filename);
+        WriteBehindQueue queue = writeQueue;
+        DiaryEntry queued = queue == null ? null : queue.pending(filename);
+        if (queued != null) {
+            return queued.getContent();
+        }
+        return read(handler -> handler.readEntry(filename));
+    }
+    
+    /** Streams every entry to a JSONL file; see DiaryTransfer for the format. */
+    public long exportEntries(Path file) throws IOException {
+        flushWrites();
+        return pinned(handler -> DiaryTransfer.exportTo(handler, file,
+            count -> System.out.println("Exported " + count + " entries...")));
     }
     
-    public List<DiaryEntry> searchEntries(String keyword) throws IOException {
+    /** Imports a JSONL export, replacing entries that have the same timestamp. */
+    public long importEntries(Path file) throws IOException {
+        flushWrites();
+        return DiaryTransfer.importFrom(file, (batch, sync) -> {
+            pinned(handler -> {
+                handler.saveEntries(batch, sync);
+                return null;
+            });
+            for (DiaryEntry entry : batch) {
+                backupScheduler.recordChange(entry.getContent().length());
+            }
+        }, count -> System.out.println("Imported " + count + " entries..."));
+    }
+    
+    public List<EntryHandle> searchEntries(String keyword) throws IOException {
+        // Queued saves are not in the store yet
+        flushWrites();
         config.addSearch(keyword);
-        return fileHandler.searchEntries(keyword);
+        return read(handler -> handler.searchEntries(keyword));
+    }
+    
+    /** Ranked, paged search; see DiaryQuery for the query syntax. */
+    public SearchResults search(String query) throws IOException {
+        // Queued saves are not indexed yet
+        flushWrites();
+        config.addSearch(query);
+        return read(handler -> handler.search(query));
+    }
+    
+    /** Ranked search that tolerates misspelled words; see DiaryFileHandler.fuzzySearch. */
+    public SearchResults fuzzySearch(String query) throws IOException {
+        flushWrites();
+        config.addSearch(query);
+        return read(handler -> handler.fuzzySearch(query));
+    }
+    
+    public Path createBackup() throws IOException {
+        flushWrites();
+        return backupScheduler.runNow();
+    }
+    
+    /**
+     * Receives start, progress, finish and failure notifications for manual
+     * and automatic backups. By default they are printed to the console.
+     */
+    public void setBackupListener(BackupScheduler.BackupListener listener) {
+        backupScheduler.setListener(listener);
+    }
+    
+    public String getBackupStatus() {
+        return backupScheduler.getLastResult();
     }
     
-    public void createBackup() throws IOException {
-        fileHandler.createBackup();
+    public List<String> listBackups() throws IOException {
+        return read(DiaryFileHandler::listBackups);
+    }
+    
+    /**
+     * Restores the entries of a backup, and the settings and recent searches
+     * saved with it (see DiaryConfig.restoreSettings).
+     */
+    public int restoreBackup(String backupName) throws IOException {
+        DiaryConfig saved = read(handler -> handler.backedUpConfig(backupName));
+        if (saved != null) {
+            reconfigure(handler -> {
+                config.restoreSettings(saved);
+                saveConfiguration();
+                return null;
+            });
+            configureAutoBackup();
+            configureWriteBehind();
+        }
+        flushWrites();
+        return pinned(handler -> handler.restoreBackup(backupName));
     }
     
     public boolean deleteEntry(String filename) throws IOException {
-        return fileHandler.deleteEntry(filename);
+        // A queued save of this entry must not land after the delete
+        flushWrites();
+        boolean deleted = pinned(handler -> handler.deleteEntry(filename));
+        if (deleted) {
+            backupScheduler.recordChange(0);
+        }
+        return deleted;
+    }
+    
+    public void searchEntries(String keyword, Consumer<EntryHandle> onMatch) throws IOException {
+        flushWrites();
+        config.addSearch(keyword);
+        // A retry on a swapped handler scans again; entries already passed on are skipped
+        Set<String> delivered = ConcurrentHashMap.newKeySet();
+        read(handler -> {
+            handler.searchEntries(keyword, match -> {
+                if (delivered.add(match.getFilename())) {
+                    onMatch.accept(match);
+                }
+            });
+            return null;
+        });
+    }
+    
+    public int rebuildSearchIndex() throws IOException {
+        return pinned(DiaryFileHandler::rebuildIndex);
+    }
+    
+    public DiaryStats getStatistics() throws IOException {
+        flushWrites();
+        return read(DiaryFileHandler::statistics);
+    }
+    
+    /** The keyword scan filters, or null while the search index is on. */
+    public ScanFilters getScanFilters() throws IOException {
+        flushWrites();
+        return read(DiaryFileHandler::scanFilters);
     }
     
     public long getTotalEntries() throws IOException {
-        return fileHandler.getTotalEntries();
+        return read(DiaryFileHandler::getTotalEntries);
+    }
+    
+    /** Entries written between from and to (inclusive), newest first. */
+    public List<String> entriesBetween(LocalDateTime from, LocalDateTime to) throws IOException {
+        return read(handler -> handler.entriesBetween(from, to));
+    }
+    
+    public List<String> entriesOn(LocalDate date) throws IOException {
+        return read(handler -> handler.entriesOn(date));
+    }
+    
+    public List<String> latest(int count) throws IOException {
+        return read(handler -> handler.latestEntries(count));
     }
     
     public LocalDateTime extractTimestamp(String filename) {
@@ -64,27 +364,176 @@ public class DiaryManager {
         config.saveConfig();
     }
     
+    /**
+     * Waits for a running background backup and releases the store.
+     */
+    public void shutdown() {
+        try {
+            synchronized (writeQueueLock) {
+                if (writeQueue != null) {
+                    writeQueue.close();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Warning: Could not save queued entries: " + e.getMessage());
+        }
+        backupScheduler.close();
+        try {
+            fileHandler.close();
+        } catch (IOException e) {
+            System.err.println("Warning: Could not close entry store: " + e.getMessage());
+        }
+    }
+    
     // Configuration management methods
     public void setEntriesDirectory(String dir) throws IOException {
-        config.setEntriesDirectory(dir);
-        saveConfiguration();
-        initializeFileHandler();
+        reconfigure(handler -> {
+            config.setEntriesDirectory(dir);
+            saveConfiguration();
+            return null;
+        });
     }
     
     public void setBackupDirectory(String dir) throws IOException {
-        config.setBackupDirectory(dir);
-        saveConfiguration();
-        initializeFileHandler();
+        reconfigure(handler -> {
+            config.setBackupDirectory(dir);
+            saveConfiguration();
+            return null;
+        });
     }
     
     public boolean toggleAutoBackup() {
         boolean current = Boolean.parseBoolean(config.getSetting("autoBackup"));
         config.setSetting("autoBackup", String.valueOf(!current));
+        configureAutoBackup();
         return !current;
     }
     
+    /**
+     * Selects how backups are taken: "full" archives, "incremental" archives
+     * of what changed, or "dedup" snapshots that reference shared blobs.
+     */
+    public void setBackupMode(String mode) throws IOException {
+        if (!mode.equals("full") && !mode.equals("incremental") && !mode.equals("dedup")) {
+            throw new IOException("Unknown backup mode: " + mode);
+        }
+        reconfigure(handler -> {
+            config.setSetting("backupMode", mode);
+            return null;
+        });
+    }
+    
+    public String getBackupMode() {
+        return config.getSetting("backupMode", "full");
+    }
+    
+    public boolean isCompressionEnabled() {
+        return config.getSetting("compression", "none").equals("deflate");
+    }
+    
+    /**
+     * Switches compression of newly written entries. Existing entries are
+     * left as they are and read either way.
+     */
+    public boolean toggleCompression() throws IOException {
+        return reconfigure(handler -> {
+            boolean enabled = !isCompressionEnabled();
+            config.setSetting("compression", enabled ? "deflate" : "none");
+            saveConfiguration();
+            return enabled;
+        });
+    }
+    
+    /** Trains the shared dictionary used to compress small entries. */
+    public int trainCompressionDictionary() throws IOException {
+        flushWrites();
+        return pinned(handler -> handler.trainCompressionDictionary(
+            Integer.parseInt(config.getSetting("compressionSamples", "2000"))));
+    }
+    
+    public boolean isSearchIndexEnabled() {
+        return Boolean.parseBoolean(config.getSetting("searchIndex", "true"));
+    }
+    
+    public boolean toggleSearchIndex() throws IOException {
+        return reconfigure(handler -> {
+            boolean enabled = !isSearchIndexEnabled();
+            config.setSetting("searchIndex", String.valueOf(enabled));
+            return enabled;
+        });
+    }
+    
+    public String getStorageMode() {
+        return config.getSetting("storageMode", FileEntryStore.MODE);
+    }
+    
+    /**
+     * Switches the storage backend ("files" or "segments"), migrating all
+     * existing entries into the new layout first.
+     */
+    public int setStorageMode(String mode) throws IOException {
+        if (mode.equals(getStorageMode())) {
+            return 0;
+        }
+        // Saves are held off for the whole migration so none is left behind in the old store
+        return reconfigure(handler -> {
+            int migrated;
+            try (EntryStore target = EntryStore.open(mode, Paths.get(config.getEntriesDirectory()), config)) {
+                migrated = StoreMigration.migrate(handler.getStore(), target);
+            }
+            config.setSetting("storageMode", mode);
+            saveConfiguration();
+            return migrated;
+        });
+    }
+    
+    public String getEntriesLayout() {
+        return config.getSetting("entriesLayout", EntryLayout.FLAT);
+    }
+    
+    /**
+     * Switches the files store between a flat entries directory and yyyy/MM
+     * shards. The new layout takes effect at once; existing entries are then
+     * moved one at a time and stay readable throughout.
+     */
+    public int setEntriesLayout(String layout) throws IOException {
+        if (!layout.equals(EntryLayout.FLAT) && !layout.equals(EntryLayout.SHARDED)) {
+            throw new IOException("Unknown entries layout: " + layout);
+        }
+        reconfigure(handler -> {
+            config.setSetting("entriesLayout", layout);
+            saveConfiguration();
+            return null;
+        });
+        return pinned(DiaryFileHandler::relayoutEntries);
+    }
+    
+    public boolean isWriteBehindEnabled() {
+        return writeQueue != null;
+    }
+    
+    public boolean toggleWriteBehind() throws IOException {
+        synchronized (writeQueueLock) {
+            boolean enabled = !isWriteBehindEnabled();
+            config.setSetting("writeBehind", String.valueOf(enabled));
+            configureWriteBehind();
+            return enabled;
+        }
+    }
+    
+    /**
+     * Starts the HTTP/JSON API (see DiaryServer) on the given port, or on
+     * the configured one if port is negative.
+     */
+    public DiaryServer startServer(int port) throws IOException {
+        DiaryServer server = new DiaryServer(this, port < 0 ? config.getIntSetting("serverPort", 8080) : port,
+                                             config.getIntSetting("serverThreads", 64));
+        server.start();
+        return server;
+    }
+    
     public int getPageSize() {
-        return Integer.parseInt(config.getSetting("maxEntriesPerPage"));
+        return config.getIntSetting("maxEntriesPerPage", 10);
     }
     
     public List<String> getRecentSearches() {
@@ -99,12 +548,78 @@ public class DiaryManager {
         return config.getEntriesDirectory();
     }
     
-    private void checkAutoBackup() throws IOException {
+    private Path runBackup(DiaryBackup.ProgressListener progress) throws IOException {
+        // Backups copy the config file, so it must hold the current settings
+        saveConfiguration();
+        return pinned(handler -> handler.createBackup(progress));
+    }
+    
+    private void configureAutoBackup() {
         if (Boolean.parseBoolean(config.getSetting("autoBackup"))) {
-            if (getTotalEntries() % 10 == 0) { // Backup every 10 entries
-                System.out.println("Auto-backup triggered...");
-                createBackup();
+            backupScheduler.configure(
+                Integer.parseInt(config.getSetting("autoBackupEntries", "10")),
+                Long.parseLong(config.getSetting("autoBackupBytes", "0")),
+                Long.parseLong(config.getSetting("autoBackupMinutes", "0")));
+        } else {
+            backupScheduler.configure(0, 0, 0);
+        }
+    }
+    
+    /**
+     * Replaces the write queue, one caller at a time. The old queue is closed
+     * first, outside the handler lock since its writer needs the shared side;
+     * saves that find it closed meanwhile wait for it to drain and are then
+     * made directly. The new queue is swapped in under the handler lock.
+     */
+    private void configureWriteBehind() throws IOException {
+        synchronized (writeQueueLock) {
+            WriteBehindQueue previous = writeQueue;
+            if (previous != null) {
+                previous.close();
+            }
+            WriteBehindQueue next = null;
+            if (Boolean.parseBoolean(config.getSetting("writeBehind", "false"))) {
+                next = new WriteBehindQueue((batch, sync) -> pinned(handler -> {
+                        handler.saveEntries(batch, sync);
+                        return null;
+                    }),
+                    Integer.parseInt(config.getSetting("writeBatchSize", "256")),
+                    Long.parseLong(config.getSetting("writeBatchMillis", "5")),
+                    config.getSetting("writeDurability", WriteBehindQueue.DURABILITY_FSYNC));
+            }
+            handlerLock.writeLock().lock();
+            try {
+                writeQueue = next;
+            } finally {
+                handlerLock.writeLock().unlock();
             }
         }
     }
+    
+    private static class ConsoleBackupListener implements BackupScheduler.BackupListener {
+        @Override
+        public void backupStarted(String reason) {
+            if (!reason.equals("requested")) {
+                System.out.println("\nAuto-backup triggered (" + reason + ")...");
+            }
+        }
+        
+        @Override
+        public void backupProgress(long entriesDone, long totalEntries) {
+            // Small backups finish before progress would be of any use
+            if (totalEntries >= DiaryTransfer.PROGRESS_INTERVAL) {
+                System.out.println("Backup progress: " + entriesDone + " of " + totalEntries + " entries");
+            }
+        }
+        
+        @Override
+        public void backupFinished(Path backupPath, long elapsedMillis) {
+            System.out.println("Backup created: " + backupPath + " (" + elapsedMillis + " ms)");
+        }
+        
+        @Override
+        public void backupFailed(Exception error) {
+            System.err.println("Backup failed: " + error.getMessage());
+        }
+    }
 }
\ No newline at end of file
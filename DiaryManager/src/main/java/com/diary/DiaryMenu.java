@@ -1,6 +1,8 @@
 package com.diary;
 
 import java.io.*;
+import java.time.LocalDate;
+import java.time.YearMonth;
 import java.util.*;
 
 public class DiaryMenu {
@@ -72,28 +74,22 @@ public class DiaryMenu {
     
     private void readEntries() throws IOException {
         System.out.println("\n=== Read Previous Entries ===");
-        List<String> entries = diaryManager.listEntries();
+        String filename = selectEntry("Select an entry to read (0 to return): ");
         
-        if (entries.isEmpty()) {
-            System.out.println("No diary entries found.");
-            return;
+        if (filename != null) {
+            showEntry(filename);
         }
+    }
+    
+    private void showEntry(String filename) throws IOException {
+        String content = diaryManager.readEntry(filename);
+        System.out.println("\n--- Entry: " + filename + " ---");
+        System.out.println(content);
+        System.out.println("--- End of Entry ---");
         
-        int choice = displayPaginatedList(entries, "Select an entry to read (0 to return): ");
-        
-        if (choice == 0) return;
-        
-        if (choice > 0 && choice <= entries.size()) {
-            String filename = entries.get(choice - 1);
-            String content = diaryManager.readEntry(filename);
-            System.out.println("\n--- Entry: " + filename + " ---");
-            System.out.println(content);
-            System.out.println("--- End of Entry ---");
-            
-            System.out.println("\nOptions: [D]elete this entry, [E]dit, [R]eturn");
-            String option = scanner.nextLine().toLowerCase();
-            handleEntryOptions(option, filename);
-        }
+        System.out.println("\nOptions: [D]elete this entry, [E]dit, [R]eturn");
+        String option = scanner.nextLine().toLowerCase();
+        handleEntryOptions(option, filename);
     }
     
     private void handleEntryOptions(String option, String filename) throws IOException {
@@ -134,40 +130,171 @@ public class DiaryMenu {
     
     private void searchEntries() throws IOException {
         System.out.println("\n=== Search Entries ===");
-        System.out.print("Enter search keyword: ");
+        if (diaryManager.isSearchIndexEnabled()) {
+            System.out.println("All words must match; use OR, NOT or -word, and \"quotes\" for phrases.");
+            System.out.println("End a word with * to match its prefix, or ~ to allow typos.");
+        }
+        List<String> recent = diaryManager.getRecentSearches();
+        for (int i = 0; i < recent.size(); i++) {
+            System.out.println("#" + (i + 1) + " " + recent.get(i));
+        }
+        System.out.print("Enter search keyword" + (recent.isEmpty() ? "" : " or #number to repeat a recent search") + ": ");
         String keyword = scanner.nextLine().trim();
         
+        if (keyword.matches("#\\d+")) {
+            int selection = Integer.parseInt(keyword.substring(1));
+            if (selection >= 1 && selection <= recent.size()) {
+                // Unchanged since the last run, this is answered from the search cache
+                keyword = recent.get(selection - 1);
+            }
+        }
         if (keyword.isEmpty()) {
             System.out.println("Search keyword cannot be empty!");
             return;
         }
         
+        if (diaryManager.isSearchIndexEnabled()) {
+            showRankedResults(keyword);
+            return;
+        }
+        
         diaryManager.addRecentSearch(keyword);
-        List<DiaryEntry> results = diaryManager.searchEntries(keyword);
+        List<EntryHandle> results = diaryManager.searchEntries(keyword);
         
         if (results.isEmpty()) {
             System.out.println("No entries found containing: " + keyword);
         } else {
             System.out.println("\nFound " + results.size() + " entries:");
             for (int i = 0; i < results.size(); i++) {
-                System.out.println((i + 1) + ". " + results.get(i));
+                EntryHandle hit = results.get(i);
+                System.out.println((i + 1) + ". [" + DiaryEntry.formatTimestamp(hit.getTimestamp()) + "] "
+                    + highlight(hit.getSnippet()));
+            }
+            System.out.print("\nNumber to read, or Enter to return: ");
+            try {
+                int selection = Integer.parseInt(scanner.nextLine().trim());
+                if (selection >= 1 && selection <= results.size()) {
+                    // Only the selected entry's body is read
+                    showEntry(results.get(selection - 1).getFilename());
+                }
+            } catch (NumberFormatException e) {
+                // Not a number, return to the menu
+            }
+        }
+    }
+    
+    private void showRankedResults(String query) throws IOException {
+        SearchResults results = diaryManager.search(query);
+        List<SearchHit> page = results.nextPage(diaryManager.getPageSize());
+        if (page.isEmpty()) {
+            results = diaryManager.fuzzySearch(query);
+            page = results.nextPage(diaryManager.getPageSize());
+            if (page.isEmpty()) {
+                System.out.println("No entries found matching: " + query);
+                return;
             }
+            System.out.println("No exact matches; showing similar spellings.");
+        }
+        System.out.println("\n" + (results.isExact() ? "Found " : "Up to ")
+            + results.getMatchCount() + " entries, best matches first:");
+        
+        List<SearchHit> shown = new ArrayList<>();
+        while (true) {
+            for (SearchHit hit : page) {
+                shown.add(hit);
+                System.out.printf("%d. [%s] (%.2f) %s%n", shown.size(),
+                    DiaryEntry.formatTimestamp(hit.getTimestamp()), hit.getScore(), highlight(hit.getSnippet()));
+            }
+            
+            boolean more = results.hasMore();
+            System.out.print("\n" + (more ? "[N]ext page, " : "") + "number to read, 0 to return: ");
+            String choice = scanner.nextLine().trim().toLowerCase();
+            if (choice.equals("n") && more) {
+                page = results.nextPage(diaryManager.getPageSize());
+                continue;
+            }
+            try {
+                int selection = Integer.parseInt(choice);
+                if (selection >= 1 && selection <= shown.size()) {
+                    showEntry(shown.get(selection - 1).getFilename());
+                }
+            } catch (NumberFormatException e) {
+                // Not a number, fall through and return
+            }
+            return;
         }
     }
     
     private void createBackup() throws IOException {
         System.out.println("\n=== Create Backup ===");
-        System.out.print("Are you sure you want to create a backup? (y/n): ");
-        if (scanner.nextLine().equalsIgnoreCase("y")) {
+        System.out.println("Mode: " + diaryManager.getBackupMode());
+        System.out.print("Create a backup, or restore one? (y = create, r = restore, n = cancel): ");
+        String option = scanner.nextLine();
+        if (option.equalsIgnoreCase("y")) {
             diaryManager.createBackup();
+        } else if (option.equalsIgnoreCase("r")) {
+            restoreBackup();
+        }
+    }
+    
+    private void restoreBackup() throws IOException {
+        List<String> backups = diaryManager.listBackups();
+        if (backups.isEmpty()) {
+            System.out.println("No backups found.");
+            return;
+        }
+        
+        int choice = displayPaginatedList(backups, "Select a backup to restore (0 to return): ");
+        if (choice == 0) return;
+        
+        String backupName = backups.get(choice - 1);
+        System.out.print("Restoring replaces all current entries with " + backupName + ". Continue? (y/n): ");
+        if (scanner.nextLine().equalsIgnoreCase("y")) {
+            int restored = diaryManager.restoreBackup(backupName);
+            System.out.println("Restored " + restored + " entries from " + backupName);
         }
     }
     
     private void showStatistics() throws IOException {
         System.out.println("\n=== Diary Statistics ===");
-        System.out.println("Total entries: " + diaryManager.getTotalEntries());
+        DiaryStats stats = diaryManager.getStatistics();
+        int entries = stats.getEntryCount();
+        System.out.println("Total entries: " + entries);
+        System.out.println("Total words: " + stats.getTotalWords()
+            + (entries > 0 ? " (" + stats.getTotalWords() / entries + " per entry)" : ""));
+        System.out.println("Current streak: " + stats.getCurrentStreak(LocalDate.now()) + " days, longest: "
+            + stats.getLongestStreak() + " days");
+        
+        SortedMap<LocalDate, DiaryStats.Counts> days = stats.perDay();
+        System.out.println("Days written on: " + days.size());
+        System.out.println("\nEntries per year:");
+        for (Map.Entry<Integer, DiaryStats.Counts> year : stats.perYear().entrySet()) {
+            System.out.printf("  %d: %d entries, %d words%n", year.getKey(),
+                year.getValue().getEntries(), year.getValue().getWords());
+        }
+        System.out.println("\nLast 12 months:");
+        YearMonth thisMonth = YearMonth.now();
+        SortedMap<YearMonth, DiaryStats.Counts> months = stats.perMonth().subMap(thisMonth.minusMonths(11), thisMonth.plusMonths(1));
+        for (Map.Entry<YearMonth, DiaryStats.Counts> month : months.entrySet()) {
+            System.out.printf("  %s: %d entries, %d words%n", month.getKey(),
+                month.getValue().getEntries(), month.getValue().getWords());
+        }
+        System.out.println("\nTop words:");
+        for (Map.Entry<String, Long> term : stats.topTerms(10)) {
+            System.out.println("  " + term.getKey() + " (" + term.getValue() + ")");
+        }
+        System.out.println();
         System.out.println("Entries directory: " + diaryManager.getEntriesDirectory());
+        System.out.println(diaryManager.getBackupStatus());
         System.out.println("Recent searches: " + diaryManager.getRecentSearches());
+        ScanFilters filters = diaryManager.getScanFilters();
+        if (filters != null) {
+            double rate = filters.getFalsePositiveRate();
+            System.out.printf("Scan filters: %d entries, %d KB at %d bits per term, false positives: %s%n",
+                filters.getEntryCount(), filters.getSizeInBytes() / 1024, filters.getBitsPerTerm(),
+                rate < 0 ? "none measured yet" : String.format("%.2f%% of %d checked entries",
+                    rate * 100, filters.getChecked()));
+        }
     }
     
     private void showSettings() {
@@ -176,8 +303,15 @@ public class DiaryMenu {
         System.out.println("2. Change backup directory");
         System.out.println("3. Toggle auto-backup");
         System.out.println("4. View recent searches");
-        System.out.println("5. Back to main menu");
-        System.out.print("Choose an option (1-5): ");
+        System.out.println("5. Rebuild search index");
+        System.out.println("6. Toggle search index");
+        System.out.println("7. Change storage mode (current: " + diaryManager.getStorageMode() + ")");
+        System.out.println("8. Change backup mode (current: " + diaryManager.getBackupMode() + ")");
+        System.out.println("9. Change entries layout (current: " + diaryManager.getEntriesLayout() + ")");
+        System.out.println("10. Toggle write-behind saves");
+        System.out.println("11. Toggle entry compression");
+        System.out.println("12. Back to main menu");
+        System.out.print("Choose an option (1-12): ");
         
         try {
             int choice = Integer.parseInt(scanner.nextLine());
@@ -209,6 +343,106 @@ public class DiaryMenu {
                     System.out.println("- " + search);
                 }
             }
+            case 5 -> {
+                if (!diaryManager.isSearchIndexEnabled()) {
+                    System.out.println("Search index is disabled.");
+                    return;
+                }
+                System.out.println("Rebuilding search index...");
+                int indexed = diaryManager.rebuildSearchIndex();
+                System.out.println("Search index rebuilt: " + indexed + " entries indexed.");
+            }
+            case 6 -> {
+                boolean indexed = diaryManager.toggleSearchIndex();
+                System.out.println("Search index: " + (indexed ? "ENABLED" : "DISABLED (full scan)"));
+            }
+            case 7 -> {
+                System.out.print("Enter storage mode (files/segments): ");
+                String mode = scanner.nextLine().trim().toLowerCase();
+                int migrated = diaryManager.setStorageMode(mode);
+                System.out.println("Storage mode: " + diaryManager.getStorageMode() + " (" + migrated + " entries migrated)");
+            }
+            case 8 -> {
+                System.out.print("Enter backup mode (full/incremental/dedup): ");
+                diaryManager.setBackupMode(scanner.nextLine().trim().toLowerCase());
+                System.out.println("Backup mode: " + diaryManager.getBackupMode());
+            }
+            case 9 -> {
+                System.out.print("Enter entries layout (flat/sharded): ");
+                String layout = scanner.nextLine().trim().toLowerCase();
+                int moved = diaryManager.setEntriesLayout(layout);
+                System.out.println("Entries layout: " + diaryManager.getEntriesLayout() + " (" + moved + " entries moved)");
+            }
+            case 10 -> {
+                boolean writeBehind = diaryManager.toggleWriteBehind();
+                System.out.println("Write-behind saves: " + (writeBehind ? "ENABLED (group commit)" : "DISABLED"));
+            }
+            case 11 -> {
+                boolean compressed = diaryManager.toggleCompression();
+                System.out.println("Entry compression: " + (compressed ? "ENABLED" : "DISABLED"));
+                if (compressed) {
+                    System.out.print("Train a shared dictionary for small entries? (y/n): ");
+                    if (scanner.nextLine().equalsIgnoreCase("y")) {
+                        int size = diaryManager.trainCompressionDictionary();
+                        System.out.println(size > 0 ? "Dictionary trained (" + size + " bytes)."
+                                                    : "Not enough entries to train a dictionary.");
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Pages through the entries a page at a time using cursors, so only the
+     * entries on screen are ever listed. Returns the chosen entry or null.
+     */
+    private String selectEntry(String prompt) throws IOException {
+        int pageSize = diaryManager.getPageSize();
+        Deque<String> previousCursors = new ArrayDeque<>();
+        String cursor = null;
+        
+        while (true) {
+            EntryPage page = diaryManager.page(cursor, pageSize);
+            List<String> entries = page.getEntries();
+            if (entries.isEmpty() && cursor != null) {
+                // Everything after the cursor was deleted meanwhile
+                previousCursors.clear();
+                cursor = null;
+                continue;
+            }
+            if (entries.isEmpty()) {
+                System.out.println("No diary entries found.");
+                return null;
+            }
+            
+            System.out.println("\nPage " + (previousCursors.size() + 1) + (page.hasNext() ? "" : " (last)"));
+            System.out.println("---");
+            
+            for (int i = 0; i < entries.size(); i++) {
+                System.out.println((i + 1) + ". " + entries.get(i));
+            }
+            
+            System.out.println("\n[N]ext page, [P]revious page, " + prompt);
+            System.out.print("Your choice: ");
+            String choice = scanner.nextLine().toLowerCase();
+            
+            if (choice.equals("n") && page.hasNext()) {
+                previousCursors.push(cursor == null ? "" : cursor);
+                cursor = page.getNextCursor();
+            } else if (choice.equals("p") && !previousCursors.isEmpty()) {
+                String previous = previousCursors.pop();
+                cursor = previous.isEmpty() ? null : previous;
+            } else {
+                try {
+                    int selection = Integer.parseInt(choice);
+                    if (selection == 0) return null;
+                    if (selection >= 1 && selection <= entries.size()) {
+                        return entries.get(selection - 1);
+                    }
+                } catch (NumberFormatException e) {
+                    // Not a number, continue pagination
+                }
+            }
         }
     }
     
@@ -259,4 +493,11 @@ public class DiaryMenu {
         System.out.println("Thank you for using Personal Diary Manager!");
         running = false;
     }
+    
+    /** Marks matches in bold on a terminal, and with asterisks otherwise. */
+    private static String highlight(Snippet snippet) {
+        return System.console() != null
+            ? snippet.highlight("\u001B[1m", "\u001B[0m")
+            : snippet.highlight("*", "*");
+    }
 }
\ No newline at end of file
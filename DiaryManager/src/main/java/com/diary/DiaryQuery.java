@@ -0,0 +1,545 @@
+package com.diary;
+
+import java.util.*;
+
+/**
+ * A parsed search query, answered from the search index and ranked with BM25.
+ *
+ * Syntax: words separated by spaces must all occur (AND is implied and may
+ * also be written out); OR between two parts accepts either; NOT or a
+ * leading '-' excludes; "quoted words" must occur as a phrase; parentheses
+ * group. Operators are only recognised in upper case, and the parser is
+ * lenient: stray operators and unbalanced parentheses are ignored. A word
+ * ending in '*' matches every term with that prefix, and a word ending in
+ * '~' (or '~N') also matches terms within the default (or N) edits.
+ *
+ * Words, phrases and boolean combinations are resolved from the postings
+ * alone. Phrases only narrow the candidates to entries containing all their
+ * words, so queries with phrases are verified against the entry text, and
+ * only as far as the caller pages through the results.
+ */
+public class DiaryQuery {
+    private final Node root;
+    
+    private DiaryQuery(Node root) {
+        this.root = root;
+    }
+    
+    public static DiaryQuery parse(String text) {
+        return parse(text, 0, false);
+    }
+    
+    /**
+     * Parses with the given distance for '~' words. With fuzzyWords set,
+     * every plain word is matched as if it ended in '~'.
+     */
+    public static DiaryQuery parse(String text, int fuzzyDistance, boolean fuzzyWords) {
+        Parser parser = new Parser(lex(text), fuzzyDistance, fuzzyWords);
+        List<Node> parts = new ArrayList<>();
+        while (!parser.atEnd()) {
+            Node part = parser.parseOr();
+            if (part != null) {
+                parts.add(part);
+            }
+            parser.skip(); // A ')' without its '('
+        }
+        return new DiaryQuery(And.of(parts));
+    }
+    
+    /** True if the query has no searchable words. */
+    public boolean isEmpty() {
+        return root == null;
+    }
+    
+    /**
+     * Finds and scores the matching entries. Scoring happens in memory on the
+     * index; entries are only read, for snippets and to verify phrases, as
+     * results are taken from the returned stream.
+     */
+    public SearchResults execute(DiaryIndex index, DiaryIndex.EntryReader reader) {
+        if (root == null) {
+            return SearchResults.empty();
+        }
+        Set<String> candidates = root.candidates(index);
+        Map<String, Double> terms = new HashMap<>();
+        root.collectTerms(index, terms, false);
+        Map<String, Double> scores = index.score(candidates, terms);
+        SearchResults.Verifier verifier = root.exact() ? null
+            : content -> root.matches(DiaryIndex.tokenize(content));
+        return new SearchResults(scores, Set.copyOf(terms.keySet()), reader, verifier);
+    }
+    
+    private abstract static class Node {
+        /** Entries that may match; exactly the matching ones if exact(). */
+        abstract Set<String> candidates(DiaryIndex index);
+        
+        abstract boolean exact();
+        
+        abstract boolean matches(List<String> tokens);
+        
+        /** Adds the words that count towards the score: those not under a NOT. */
+        abstract void collectTerms(DiaryIndex index, Map<String, Double> terms, boolean negated);
+    }
+    
+    private static final class Term extends Node {
+        final String term;
+        
+        Term(String term) {
+            this.term = term;
+        }
+        
+        @Override
+        Set<String> candidates(DiaryIndex index) {
+            return index.matching(term);
+        }
+        
+        @Override
+        boolean exact() {
+            return true;
+        }
+        
+        @Override
+        boolean matches(List<String> tokens) {
+            return tokens.contains(term);
+        }
+        
+        @Override
+        void collectTerms(DiaryIndex index, Map<String, Double> terms, boolean negated) {
+            if (!negated) {
+                terms.merge(term, 1.0, Double::sum);
+            }
+        }
+    }
+    
+    /** A word standing for several indexed terms: a prefix or fuzzy word. */
+    private abstract static class Expansion extends Node {
+        private Map<String, Double> expanded;
+        
+        /** The matching terms with their weight in the score. */
+        abstract Map<String, Double> expand(DiaryIndex index);
+        
+        private Map<String, Double> expanded(DiaryIndex index) {
+            if (expanded == null) {
+                expanded = expand(index);
+            }
+            return expanded;
+        }
+        
+        @Override
+        Set<String> candidates(DiaryIndex index) {
+            Set<String> result = new HashSet<>();
+            for (String term : expanded(index).keySet()) {
+                result.addAll(index.matching(term));
+            }
+            return result;
+        }
+        
+        @Override
+        boolean exact() {
+            return true;
+        }
+        
+        @Override
+        boolean matches(List<String> tokens) {
+            // Only evaluated during verification, after collectTerms() expanded the word
+            for (String token : tokens) {
+                if (expanded.containsKey(token)) return true;
+            }
+            return false;
+        }
+        
+        @Override
+        void collectTerms(DiaryIndex index, Map<String, Double> terms, boolean negated) {
+            Map<String, Double> matches = expanded(index);
+            if (!negated) {
+                for (Map.Entry<String, Double> match : matches.entrySet()) {
+                    terms.merge(match.getKey(), match.getValue(), Double::sum);
+                }
+            }
+        }
+    }
+    
+    private static final class Prefix extends Expansion {
+        final String prefix;
+        
+        Prefix(String prefix) {
+            this.prefix = prefix;
+        }
+        
+        @Override
+        Map<String, Double> expand(DiaryIndex index) {
+            Map<String, Double> result = new HashMap<>();
+            for (String term : index.termsWithPrefix(prefix)) {
+                result.put(term, 1.0);
+            }
+            return result;
+        }
+    }
+    
+    private static final class Fuzzy extends Expansion {
+        final String word;
+        final int maxDistance;
+        
+        Fuzzy(String word, int maxDistance) {
+            this.word = word;
+            this.maxDistance = maxDistance;
+        }
+        
+        @Override
+        Map<String, Double> expand(DiaryIndex index) {
+            // Each edit halves the weight, so exact spellings rank first
+            Map<String, Double> result = new HashMap<>();
+            for (Map.Entry<String, Integer> match : index.similarTerms(word, maxDistance).entrySet()) {
+                result.put(match.getKey(), 1.0 / (1 << match.getValue()));
+            }
+            return result;
+        }
+    }
+    
+    private static final class Phrase extends Node {
+        final List<String> words;
+        
+        Phrase(List<String> words) {
+            this.words = words;
+        }
+        
+        @Override
+        Set<String> candidates(DiaryIndex index) {
+            Set<String> result = null;
+            for (String word : words) {
+                Set<String> matches = index.matching(word);
+                if (result == null) {
+                    result = matches;
+                } else {
+                    result.retainAll(matches);
+                }
+                if (result.isEmpty()) {
+                    break;
+                }
+            }
+            return result;
+        }
+        
+        @Override
+        boolean exact() {
+            return false;
+        }
+        
+        @Override
+        boolean matches(List<String> tokens) {
+            for (int i = 0; i + words.size() <= tokens.size(); i++) {
+                if (tokens.subList(i, i + words.size()).equals(words)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        @Override
+        void collectTerms(DiaryIndex index, Map<String, Double> terms, boolean negated) {
+            if (!negated) {
+                for (String word : words) {
+                    terms.merge(word, 1.0, Double::sum);
+                }
+            }
+        }
+    }
+    
+    private static final class Not extends Node {
+        final Node inner;
+        
+        Not(Node inner) {
+            this.inner = inner;
+        }
+        
+        @Override
+        Set<String> candidates(DiaryIndex index) {
+            Set<String> result = index.allEntries();
+            if (inner.exact()) {
+                result.removeAll(inner.candidates(index));
+            }
+            return result;
+        }
+        
+        @Override
+        boolean exact() {
+            return inner.exact();
+        }
+        
+        @Override
+        boolean matches(List<String> tokens) {
+            return !inner.matches(tokens);
+        }
+        
+        @Override
+        void collectTerms(DiaryIndex index, Map<String, Double> terms, boolean negated) {
+            inner.collectTerms(index, terms, !negated);
+        }
+    }
+    
+    private static final class And extends Node {
+        final List<Node> parts;
+        
+        private And(List<Node> parts) {
+            this.parts = parts;
+        }
+        
+        static Node of(List<Node> parts) {
+            if (parts.isEmpty()) {
+                return null;
+            }
+            return parts.size() == 1 ? parts.get(0) : new And(parts);
+        }
+        
+        @Override
+        Set<String> candidates(DiaryIndex index) {
+            // Intersect the positive parts first, then subtract exclusions
+            // instead of materialising "everything except" sets
+            Set<String> result = null;
+            for (Node part : parts) {
+                if (part instanceof Not) continue;
+                Set<String> matches = part.candidates(index);
+                if (result == null) {
+                    result = matches;
+                } else {
+                    result.retainAll(matches);
+                }
+            }
+            if (result == null) {
+                result = index.allEntries();
+            }
+            for (Node part : parts) {
+                if (part instanceof Not && ((Not) part).inner.exact() && !result.isEmpty()) {
+                    result.removeAll(((Not) part).inner.candidates(index));
+                }
+            }
+            return result;
+        }
+        
+        @Override
+        boolean exact() {
+            for (Node part : parts) {
+                if (!part.exact()) return false;
+            }
+            return true;
+        }
+        
+        @Override
+        boolean matches(List<String> tokens) {
+            for (Node part : parts) {
+                if (!part.matches(tokens)) return false;
+            }
+            return true;
+        }
+        
+        @Override
+        void collectTerms(DiaryIndex index, Map<String, Double> terms, boolean negated) {
+            for (Node part : parts) {
+                part.collectTerms(index, terms, negated);
+            }
+        }
+    }
+    
+    private static final class Or extends Node {
+        final List<Node> parts;
+        
+        Or(List<Node> parts) {
+            this.parts = parts;
+        }
+        
+        @Override
+        Set<String> candidates(DiaryIndex index) {
+            Set<String> result = new HashSet<>();
+            for (Node part : parts) {
+                result.addAll(part.candidates(index));
+            }
+            return result;
+        }
+        
+        @Override
+        boolean exact() {
+            for (Node part : parts) {
+                if (!part.exact()) return false;
+            }
+            return true;
+        }
+        
+        @Override
+        boolean matches(List<String> tokens) {
+            for (Node part : parts) {
+                if (part.matches(tokens)) return true;
+            }
+            return false;
+        }
+        
+        @Override
+        void collectTerms(DiaryIndex index, Map<String, Double> terms, boolean negated) {
+            for (Node part : parts) {
+                part.collectTerms(index, terms, negated);
+            }
+        }
+    }
+    
+    private enum Kind { WORD, PHRASE, AND, OR, NOT, OPEN, CLOSE }
+    
+    private static final class Lexeme {
+        final Kind kind;
+        final String text;
+        
+        Lexeme(Kind kind, String text) {
+            this.kind = kind;
+            this.text = text;
+        }
+    }
+    
+    private static List<Lexeme> lex(String text) {
+        List<Lexeme> lexemes = new ArrayList<>();
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(' || c == ')') {
+                lexemes.add(new Lexeme(c == '(' ? Kind.OPEN : Kind.CLOSE, null));
+                i++;
+            } else if (c == '"') {
+                int end = text.indexOf('"', i + 1);
+                if (end < 0) end = text.length();
+                lexemes.add(new Lexeme(Kind.PHRASE, text.substring(i + 1, end)));
+                i = end + 1;
+            } else if (c == '-' && i + 1 < text.length()
+                    && (text.charAt(i + 1) == '"' || text.charAt(i + 1) == '('
+                        || DiaryIndex.isTermChar(text.codePointAt(i + 1)))) {
+                lexemes.add(new Lexeme(Kind.NOT, null));
+                i++;
+            } else {
+                int start = i;
+                while (i < text.length() && !Character.isWhitespace(text.charAt(i))
+                        && "()\"".indexOf(text.charAt(i)) < 0) {
+                    i++;
+                }
+                String word = text.substring(start, i);
+                switch (word) {
+                    case "AND" -> lexemes.add(new Lexeme(Kind.AND, null));
+                    case "OR" -> lexemes.add(new Lexeme(Kind.OR, null));
+                    case "NOT" -> lexemes.add(new Lexeme(Kind.NOT, null));
+                    default -> lexemes.add(new Lexeme(Kind.WORD, word));
+                }
+            }
+        }
+        return lexemes;
+    }
+    
+    private static final class Parser {
+        private final List<Lexeme> lexemes;
+        private final int fuzzyDistance;
+        private final boolean fuzzyWords;
+        private int pos;
+        
+        Parser(List<Lexeme> lexemes, int fuzzyDistance, boolean fuzzyWords) {
+            this.lexemes = lexemes;
+            this.fuzzyDistance = fuzzyDistance;
+            this.fuzzyWords = fuzzyWords;
+        }
+        
+        boolean atEnd() {
+            return pos >= lexemes.size();
+        }
+        
+        void skip() {
+            pos++;
+        }
+        
+        private Kind peek() {
+            return atEnd() ? null : lexemes.get(pos).kind;
+        }
+        
+        Node parseOr() {
+            List<Node> parts = new ArrayList<>();
+            addIfPresent(parts, parseAnd());
+            while (peek() == Kind.OR) {
+                pos++;
+                addIfPresent(parts, parseAnd());
+            }
+            if (parts.isEmpty()) {
+                return null;
+            }
+            return parts.size() == 1 ? parts.get(0) : new Or(parts);
+        }
+        
+        private Node parseAnd() {
+            List<Node> parts = new ArrayList<>();
+            while (!atEnd() && peek() != Kind.OR && peek() != Kind.CLOSE) {
+                if (peek() == Kind.AND) {
+                    pos++;
+                    continue;
+                }
+                addIfPresent(parts, parseUnary());
+            }
+            return And.of(parts);
+        }
+        
+        private Node parseUnary() {
+            if (peek() == Kind.NOT) {
+                pos++;
+                Node inner = parseUnary();
+                return inner == null ? null : new Not(inner);
+            }
+            if (atEnd() || peek() == Kind.OR || peek() == Kind.CLOSE || peek() == Kind.AND) {
+                return null;
+            }
+            Lexeme lexeme = lexemes.get(pos++);
+            if (lexeme.kind == Kind.OPEN) {
+                Node inner = parseOr();
+                if (peek() == Kind.CLOSE) {
+                    pos++;
+                }
+                return inner;
+            }
+            String text = lexeme.text;
+            int distance = -1;
+            boolean prefix = false;
+            if (lexeme.kind == Kind.WORD) {
+                int tilde = text.lastIndexOf('~');
+                if (tilde > 0 && text.substring(tilde + 1).matches("\\d?")) {
+                    distance = tilde + 1 < text.length()
+                        ? Integer.parseInt(text.substring(tilde + 1)) : fuzzyDistance(text.substring(0, tilde));
+                    text = text.substring(0, tilde);
+                } else if (text.length() > 1 && text.endsWith("*")) {
+                    prefix = true;
+                    text = text.substring(0, text.length() - 1);
+                } else if (fuzzyWords) {
+                    distance = fuzzyDistance(text);
+                }
+            }
+            List<String> words = DiaryIndex.tokenize(text);
+            if (words.isEmpty()) {
+                return null;
+            }
+            if (words.size() > 1) {
+                // Words the tokenizer splits, such as "don't", are matched as phrases
+                return new Phrase(words);
+            }
+            String word = words.get(0);
+            if (prefix) {
+                return new Prefix(word);
+            }
+            return distance > 0 ? new Fuzzy(word, distance) : new Term(word);
+        }
+        
+        /**
+         * The default distance, reduced for short words, which would otherwise
+         * match most short terms: none up to 2 characters, one up to 5.
+         */
+        private int fuzzyDistance(String word) {
+            int length = word.codePointCount(0, word.length());
+            return Math.min(fuzzyDistance, length <= 2 ? 0 : length <= 5 ? 1 : fuzzyDistance);
+        }
+        
+        private static void addIfPresent(List<Node> parts, Node node) {
+            if (node != null) {
+                parts.add(node);
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,360 @@
+package com.diary;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Headless HTTP/JSON front end to a DiaryManager, listening on the loopback
+ * address only:
+ *
+ *   POST /entries                        save {"content": ..., "timestamp": optional}; 409 if the
+ *                                        timestamp was left out and an entry for this second exists
+ *   POST /entries/batch                  save one such object per line (the export format)
+ *   GET  /entries?cursor=&limit=         entry names, newest first
+ *   GET  /entries/{filename}             one entry
+ *   GET  /search?q=&fuzzy=&offset=&limit=  ranked search, or a substring scan with the index off
+ *   POST /backup                         back up now
+ *   GET  /stats                          totals, streaks and top words
+ *
+ * Requests run on a fixed pool of threads, one per request in flight; the
+ * JDK server keeps connections alive between requests, so idle clients hold
+ * no thread. A batch is saved with one store write, index append and sync.
+ */
+public class DiaryServer implements Closeable {
+    private static final int BACKLOG = 1024;
+    private static final int MAX_BODY = 64 << 20;
+    private static final int MAX_LIMIT = 1000;
+    
+    private final DiaryManager diaryManager;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    
+    public DiaryServer(DiaryManager diaryManager, int port, int threads) throws IOException {
+        this.diaryManager = diaryManager;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "diary-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/entries", exchange -> serve(exchange, this::entries));
+        server.createContext("/search", exchange -> serve(exchange, this::search));
+        server.createContext("/backup", exchange -> serve(exchange, this::backup));
+        server.createContext("/stats", exchange -> serve(exchange, this::stats));
+    }
+    
+    public void start() {
+        server.start();
+    }
+    
+    /** The bound port, which the system picks when 0 was asked for. */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+    
+    /** Stops accepting requests, lets running ones finish for up to a second and closes. */
+    @Override
+    public void close() {
+        server.stop(1);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    @FunctionalInterface
+    private interface Route {
+        Reply handle(HttpExchange exchange) throws IOException;
+    }
+    
+    private static final class Reply {
+        final int status;
+        final String json;
+        
+        Reply(int status, String json) {
+            this.status = status;
+            this.json = json;
+        }
+    }
+    
+    private void serve(HttpExchange exchange, Route route) {
+        Reply reply;
+        try {
+            reply = route.handle(exchange);
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            reply = error(400, e.getMessage());
+        } catch (FileNotFoundException e) {
+            reply = error(404, e.getMessage());
+        } catch (IOException | RuntimeException | Error e) {
+            // Errors too, so the client still gets an answer and the exchange is closed
+            reply = error(500, e.getMessage());
+        }
+        try {
+            byte[] body = reply.json.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(reply.status, body.length);
+            exchange.getResponseBody().write(body);
+        } catch (IOException e) {
+            // The client went away; nothing left to tell it
+        } finally {
+            exchange.close();
+        }
+    }
+    
+    private Reply entries(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String method = exchange.getRequestMethod();
+        if (path.equals("/entries") || path.equals("/entries/")) {
+            if (method.equals("POST")) {
+                return saveEntry(readBody(exchange));
+            }
+            return method.equals("GET") ? listEntries(parameters(exchange)) : notAllowed(method);
+        }
+        if (path.equals("/entries/batch")) {
+            return method.equals("POST") ? saveBatch(readBody(exchange)) : notAllowed(method);
+        }
+        return method.equals("GET") ? readEntry(path.substring("/entries/".length())) : notAllowed(method);
+    }
+    
+    private Reply saveEntry(String body) throws IOException {
+        Map<String, String> fields = DiaryTransfer.parseObject(body.trim());
+        String content = fields.get("content");
+        if (content == null) {
+            throw new IllegalArgumentException("missing content");
+        }
+        String timestamp = fields.get("timestamp");
+        DiaryEntry entry;
+        if (timestamp == null) {
+            // Names have one-second precision, so a second client posting in the same second must not replace it
+            entry = new DiaryEntry(content);
+            if (!diaryManager.createEntry(entry)) {
+                return error(409, "An entry already exists for " + entry.getFilename() + ", try again");
+            }
+        } else {
+            // An explicit timestamp saves or replaces that entry, which is how edits are made
+            entry = new DiaryEntry(LocalDateTime.parse(timestamp, DiaryTransfer.TIMESTAMP_FORMAT), content);
+            diaryManager.saveEntry(entry);
+        }
+        StringBuilder json = new StringBuilder();
+        appendName(json.append('{'), entry.getFilename());
+        return new Reply(201, json.append('}').toString());
+    }
+    
+    private Reply saveBatch(String body) throws IOException {
+        List<DiaryEntry> entries = new ArrayList<>();
+        String[] lines = body.split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            if (lines[i].isBlank()) {
+                continue;
+            }
+            try {
+                entries.add(DiaryTransfer.parseEntry(lines[i]));
+            } catch (IllegalArgumentException | DateTimeParseException e) {
+                throw new IllegalArgumentException("Invalid entry on line " + (i + 1) + ": " + e.getMessage());
+            }
+        }
+        if (!entries.isEmpty()) {
+            diaryManager.saveEntries(entries);
+        }
+        return new Reply(200, "{\"saved\":" + entries.size() + "}");
+    }
+    
+    private Reply listEntries(Map<String, String> parameters) throws IOException {
+        EntryPage page = diaryManager.page(parameters.get("cursor"), limit(parameters));
+        StringBuilder json = new StringBuilder("{\"entries\":[");
+        for (int i = 0; i < page.getEntries().size(); i++) {
+            if (i > 0) json.append(',');
+            appendName(json.append('{'), page.getEntries().get(i)).append('}');
+        }
+        json.append("],\"next\":");
+        if (page.hasNext()) {
+            DiaryTransfer.appendString(json, page.getNextCursor());
+        } else {
+            json.append("null");
+        }
+        return new Reply(200, json.append('}').toString());
+    }
+    
+    private Reply readEntry(String filename) throws IOException {
+        if (DiaryEntry.parseFilename(filename) == null) {
+            throw new IllegalArgumentException("Not a diary entry filename: " + filename);
+        }
+        String content = diaryManager.readEntry(filename);
+        StringBuilder json = new StringBuilder("{");
+        appendName(json, filename).append(",\"content\":");
+        DiaryTransfer.appendString(json, content);
+        return new Reply(200, json.append('}').toString());
+    }
+    
+    private Reply search(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            return notAllowed(exchange.getRequestMethod());
+        }
+        Map<String, String> parameters = parameters(exchange);
+        String query = parameters.get("q");
+        if (query == null || query.isBlank()) {
+            throw new IllegalArgumentException("missing q");
+        }
+        int offset = Integer.parseInt(parameters.getOrDefault("offset", "0"));
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset must not be negative");
+        }
+        int limit = limit(parameters);
+        StringBuilder json = new StringBuilder("{\"hits\":[");
+        if (diaryManager.isSearchIndexEnabled()) {
+            SearchResults results = Boolean.parseBoolean(parameters.get("fuzzy"))
+                ? diaryManager.fuzzySearch(query) : diaryManager.search(query);
+            results.skip(Math.min(offset, results.getMatchCount()));
+            List<SearchHit> page = results.nextPage(limit);
+            for (int i = 0; i < page.size(); i++) {
+                SearchHit hit = page.get(i);
+                if (i > 0) json.append(',');
+                appendName(json.append('{'), hit.getFilename())
+                    .append(",\"score\":").append(String.format(Locale.ROOT, "%.4f", hit.getScore()));
+                appendSnippet(json, hit.getSnippet()).append('}');
+            }
+            json.append("],\"matches\":").append(results.getMatchCount())
+                .append(",\"exact\":").append(results.isExact())
+                .append(",\"more\":").append(results.hasMore());
+        } else {
+            List<EntryHandle> handles = diaryManager.searchEntries(query);
+            int start = Math.min(offset, handles.size());
+            int end = start + Math.min(limit, handles.size() - start);
+            for (int i = start; i < end; i++) {
+                EntryHandle handle = handles.get(i);
+                if (i > start) json.append(',');
+                appendName(json.append('{'), handle.getFilename());
+                appendSnippet(json, handle.getSnippet()).append('}');
+            }
+            json.append("],\"matches\":").append(handles.size())
+                .append(",\"exact\":true,\"more\":").append(end < handles.size());
+        }
+        return new Reply(200, json.append('}').toString());
+    }
+    
+    private Reply backup(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            return notAllowed(exchange.getRequestMethod());
+        }
+        StringBuilder json = new StringBuilder("{\"backup\":");
+        DiaryTransfer.appendString(json, String.valueOf(diaryManager.createBackup().getFileName()));
+        return new Reply(200, json.append('}').toString());
+    }
+    
+    private Reply stats(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            return notAllowed(exchange.getRequestMethod());
+        }
+        DiaryStats stats = diaryManager.getStatistics();
+        StringBuilder json = new StringBuilder("{\"entries\":").append(stats.getEntryCount())
+            .append(",\"words\":").append(stats.getTotalWords())
+            .append(",\"currentStreak\":").append(stats.getCurrentStreak(LocalDate.now()))
+            .append(",\"longestStreak\":").append(stats.getLongestStreak())
+            .append(",\"years\":{");
+        boolean first = true;
+        for (Map.Entry<Integer, DiaryStats.Counts> year : stats.perYear().entrySet()) {
+            if (!first) json.append(',');
+            json.append('"').append(year.getKey()).append("\":{\"entries\":").append(year.getValue().getEntries())
+                .append(",\"words\":").append(year.getValue().getWords()).append('}');
+            first = false;
+        }
+        json.append("},\"topTerms\":[");
+        first = true;
+        for (Map.Entry<String, Long> term : stats.topTerms(10)) {
+            if (!first) json.append(',');
+            DiaryTransfer.appendString(json.append("{\"term\":"), term.getKey());
+            json.append(",\"count\":").append(term.getValue()).append('}');
+            first = false;
+        }
+        json.append(']');
+        ScanFilters filters = diaryManager.getScanFilters();
+        if (filters != null) {
+            json.append(",\"scanFilters\":{\"entries\":").append(filters.getEntryCount())
+                .append(",\"bytes\":").append(filters.getSizeInBytes())
+                .append(",\"bitsPerTerm\":").append(filters.getBitsPerTerm())
+                .append(",\"checked\":").append(filters.getChecked())
+                .append(",\"falsePositives\":").append(filters.getFalsePositives())
+                .append(",\"falsePositiveRate\":").append(Math.max(filters.getFalsePositiveRate(), 0))
+                .append(",\"expectedFalsePositiveRate\":").append(filters.getExpectedFalsePositiveRate())
+                .append('}');
+        }
+        return new Reply(200, json.append('}').toString());
+    }
+    
+    private int limit(Map<String, String> parameters) {
+        int limit = Integer.parseInt(parameters.getOrDefault("limit", String.valueOf(diaryManager.getPageSize())));
+        return Math.max(1, Math.min(limit, MAX_LIMIT));
+    }
+    
+    private static StringBuilder appendName(StringBuilder json, String filename) {
+        json.append("\"filename\":");
+        DiaryTransfer.appendString(json, filename);
+        LocalDateTime timestamp = DiaryEntry.parseFilename(filename);
+        if (timestamp != null) {
+            json.append(",\"timestamp\":\"").append(timestamp.format(DiaryTransfer.TIMESTAMP_FORMAT)).append('"');
+        }
+        return json;
+    }
+    
+    /** The snippet text and the [start, end) character ranges of its matches. */
+    private static StringBuilder appendSnippet(StringBuilder json, Snippet snippet) {
+        if (snippet == null) {
+            return json;
+        }
+        json.append(",\"snippet\":");
+        DiaryTransfer.appendString(json, snippet.getText());
+        json.append(",\"matches\":[");
+        for (int i = 0; i < snippet.getMatchCount(); i++) {
+            if (i > 0) json.append(',');
+            json.append('[').append(snippet.getMatchStart(i)).append(',').append(snippet.getMatchEnd(i)).append(']');
+        }
+        return json.append(']');
+    }
+    
+    private static Reply notAllowed(String method) {
+        return error(405, "Method not allowed: " + method);
+    }
+    
+    private static Reply error(int status, String message) {
+        StringBuilder json = new StringBuilder("{\"error\":");
+        DiaryTransfer.appendString(json, message == null ? "Internal error" : message);
+        return new Reply(status, json.append('}').toString());
+    }
+    
+    private static String readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] body = in.readNBytes(MAX_BODY + 1);
+            if (body.length > MAX_BODY) {
+                throw new IllegalArgumentException("Request body over " + (MAX_BODY >> 20) + " MB");
+            }
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+    
+    private static Map<String, String> parameters(HttpExchange exchange) {
+        Map<String, String> parameters = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return parameters;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            parameters.put(URLDecoder.decode(key, StandardCharsets.UTF_8),
+                           URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return parameters;
+    }
+}
\ No newline at end of file
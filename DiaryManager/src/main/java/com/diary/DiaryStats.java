@@ -0,0 +1,326 @@
+package com.diary;
+
+import java.io.*;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.*;
+
+/**
+ * Writing statistics kept up to date on every save, edit and delete, so the
+ * statistics screen never has to read the entries.
+ *
+ * Like the search index, the state is kept as an append-only journal that is
+ * replayed on load and compacted once it grows well past the number of
+ * entries. Records are "e" (entry now has n words), "x" (entry removed) and
+ * "t" (term count deltas). Per day, month and year totals are derived from
+ * the entry records on load; only term counts need their own records. Very
+ * common words and words under three letters are not counted as terms.
+ */
+public class DiaryStats implements Closeable {
+    static final String STATS_FILE = ".diary_stats";
+    private static final Set<String> STOP_WORDS = Set.of(
+        "the", "and", "for", "are", "but", "not", "you", "all", "any", "can", "had", "her", "was",
+        "one", "our", "out", "day", "get", "has", "him", "his", "how", "man", "new", "now", "old",
+        "see", "two", "way", "who", "did", "its", "let", "put", "say", "she", "too", "use", "that",
+        "with", "have", "this", "will", "your", "from", "they", "know", "want", "been", "good",
+        "much", "some", "time", "very", "when", "come", "here", "just", "like", "long", "make",
+        "many", "more", "only", "over", "such", "take", "than", "them", "well", "were", "what",
+        "then", "there", "their", "would", "could", "should", "about", "which", "these", "other",
+        "into", "also", "after", "because", "being", "again", "really", "today", "didn", "don",
+        "doesn", "isn", "wasn", "couldn", "wouldn", "went", "got", "off", "still", "even");
+    
+    private final Path statsPath;
+    private final JournalFile journal;
+    private final Map<String, Integer> entryWords = new HashMap<>();
+    private final TreeMap<LocalDate, Counts> days = new TreeMap<>();
+    private final TreeMap<YearMonth, Counts> months = new TreeMap<>();
+    private final TreeMap<Integer, Counts> years = new TreeMap<>();
+    private final Map<String, Long> termCounts = new HashMap<>();
+    private long totalWords;
+    private long journalRecords;
+    
+    private DiaryStats(Path statsPath) {
+        this.statsPath = statsPath;
+        this.journal = new JournalFile(statsPath);
+    }
+    
+    /** Loads the stored statistics, or returns null if none exist yet or they are damaged. */
+    public static DiaryStats load(Path entriesDir) throws IOException {
+        DiaryStats stats = new DiaryStats(entriesDir.resolve(STATS_FILE));
+        if (!Files.exists(stats.statsPath)) {
+            return null;
+        }
+        stats.journalRecords = stats.journal.read(stats::replay);
+        return stats.journalRecords < 0 ? null : stats;
+    }
+    
+    /**
+     * Computes the statistics from the given entries and writes them to disk.
+     * Only needed the first time, or after the entries changed outside the
+     * application.
+     */
+    public static DiaryStats rebuild(Path entriesDir, List<String> filenames,
+                                     DiaryIndex.EntryReader reader) throws IOException {
+        DiaryStats stats = new DiaryStats(entriesDir.resolve(STATS_FILE));
+        for (String filename : filenames) {
+            try {
+                String content = reader.read(filename);
+                stats.apply(filename, null, DiaryIndex.tokenize(content), new HashMap<>());
+            } catch (IOException e) {
+                System.err.println("Warning: Could not read file " + filename + " for statistics: " + e.getMessage());
+            }
+        }
+        stats.compact();
+        return stats;
+    }
+    
+    /**
+     * Records that entries changed from their old content (absent or null if
+     * new) to their new content (null if deleted), with one journal append.
+     * The contents are tokenized before the lock is taken.
+     */
+    public void update(Map<String, String> oldContents, Map<String, String> newContents)
+            throws IOException {
+        Map<String, List<String>> oldTerms = new HashMap<>();
+        Map<String, List<String>> newTerms = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : newContents.entrySet()) {
+            String oldContent = oldContents.get(entry.getKey());
+            if (oldContent != null) {
+                oldTerms.put(entry.getKey(), DiaryIndex.tokenize(oldContent));
+            }
+            newTerms.put(entry.getKey(), entry.getValue() == null ? null : DiaryIndex.tokenize(entry.getValue()));
+        }
+        synchronized (this) {
+            Map<String, Long> termDeltas = new HashMap<>();
+            List<String> records = new ArrayList<>(newTerms.size() + 1);
+            for (Map.Entry<String, List<String>> entry : newTerms.entrySet()) {
+                String filename = entry.getKey();
+                if (apply(filename, oldTerms.get(filename), entry.getValue(), termDeltas)) {
+                    Integer words = entryWords.get(filename);
+                    records.add(words == null ? "x\t" + filename : "e\t" + filename + "\t" + words);
+                }
+            }
+            termDeltas.values().removeIf(delta -> delta == 0);
+            if (!termDeltas.isEmpty()) {
+                records.add(termRecord(termDeltas));
+            }
+            if (!records.isEmpty()) {
+                appendRecords(records);
+            }
+        }
+    }
+    
+    /** Takes tokenized contents; returns false for names that are not diary entries. */
+    private boolean apply(String filename, List<String> oldTerms, List<String> newTerms,
+                          Map<String, Long> termDeltas) {
+        LocalDateTime timestamp = DiaryEntry.parseFilename(filename);
+        if (timestamp == null) {
+            return false;
+        }
+        if (oldTerms != null) {
+            countTerms(oldTerms, -1, termDeltas);
+        }
+        if (newTerms != null) {
+            countTerms(newTerms, 1, termDeltas);
+        }
+        setWords(filename, timestamp.toLocalDate(), newTerms == null ? null : newTerms.size());
+        return true;
+    }
+    
+    private void countTerms(List<String> terms, int sign, Map<String, Long> termDeltas) {
+        for (String term : terms) {
+            if (term.length() >= 3 && !STOP_WORDS.contains(term)) {
+                termDeltas.merge(term, (long) sign, Long::sum);
+                addTerm(term, sign);
+            }
+        }
+    }
+    
+    private void addTerm(String term, long delta) {
+        if (delta == 0) {
+            return;
+        }
+        long count = termCounts.getOrDefault(term, 0L) + delta;
+        if (count <= 0) {
+            termCounts.remove(term);
+        } else {
+            termCounts.put(term, count);
+        }
+    }
+    
+    /** Sets (or with null, removes) an entry's word count and adjusts the period totals. */
+    private void setWords(String filename, LocalDate day, Integer words) {
+        Integer previous = words == null ? entryWords.remove(filename) : entryWords.put(filename, words);
+        int entryDelta = (words != null ? 1 : 0) - (previous != null ? 1 : 0);
+        long wordDelta = (words != null ? words : 0) - (previous != null ? previous : 0);
+        totalWords += wordDelta;
+        adjust(days, day, entryDelta, wordDelta);
+        adjust(months, YearMonth.from(day), entryDelta, wordDelta);
+        adjust(years, day.getYear(), entryDelta, wordDelta);
+    }
+    
+    private static <K> void adjust(Map<K, Counts> totals, K key, int entryDelta, long wordDelta) {
+        Counts counts = totals.getOrDefault(key, Counts.ZERO).plus(entryDelta, wordDelta);
+        if (counts.getEntries() <= 0) {
+            totals.remove(key);
+        } else {
+            totals.put(key, counts);
+        }
+    }
+    
+    public synchronized int getEntryCount() {
+        return entryWords.size();
+    }
+    
+    /** Closes the journal file; a later change opens it again. */
+    @Override
+    public synchronized void close() throws IOException {
+        journal.close();
+    }
+    
+    public synchronized long getTotalWords() {
+        return totalWords;
+    }
+    
+    public synchronized SortedMap<LocalDate, Counts> perDay() {
+        return new TreeMap<>(days);
+    }
+    
+    public synchronized SortedMap<YearMonth, Counts> perMonth() {
+        return new TreeMap<>(months);
+    }
+    
+    public synchronized SortedMap<Integer, Counts> perYear() {
+        return new TreeMap<>(years);
+    }
+    
+    /**
+     * Consecutive days with at least one entry, ending today, or yesterday
+     * if nothing has been written yet today.
+     */
+    public synchronized int getCurrentStreak(LocalDate today) {
+        LocalDate day = days.containsKey(today) ? today : today.minusDays(1);
+        int streak = 0;
+        while (days.containsKey(day)) {
+            streak++;
+            day = day.minusDays(1);
+        }
+        return streak;
+    }
+    
+    public synchronized int getLongestStreak() {
+        int longest = 0;
+        int streak = 0;
+        LocalDate previous = null;
+        for (LocalDate day : days.keySet()) {
+            streak = previous != null && previous.plusDays(1).equals(day) ? streak + 1 : 1;
+            longest = Math.max(longest, streak);
+            previous = day;
+        }
+        return longest;
+    }
+    
+    /** The most used terms, most frequent first. */
+    public synchronized List<Map.Entry<String, Long>> topTerms(int count) {
+        PriorityQueue<Map.Entry<String, Long>> top = new PriorityQueue<>(Map.Entry.comparingByValue());
+        for (Map.Entry<String, Long> term : termCounts.entrySet()) {
+            if (top.size() < count) {
+                top.add(Map.entry(term.getKey(), term.getValue()));
+            } else if (count > 0 && term.getValue() > top.peek().getValue()) {
+                top.poll();
+                top.add(Map.entry(term.getKey(), term.getValue()));
+            }
+        }
+        List<Map.Entry<String, Long>> result = new ArrayList<>(top);
+        result.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        return result;
+    }
+    
+    /** Applies one journal record; see JournalFile.Replay for malformed ones. */
+    private boolean replay(String line) {
+        String[] parts = line.split("\t", 3);
+        switch (parts[0]) {
+            case "e", "x" -> {
+                boolean words = parts[0].equals("e");
+                LocalDateTime timestamp = parts.length >= 2 ? DiaryEntry.parseFilename(parts[1]) : null;
+                if (timestamp == null || parts.length != (words ? 3 : 2)) {
+                    return false;
+                }
+                setWords(parts[1], timestamp.toLocalDate(), words ? Integer.valueOf(parts[2]) : null);
+                return true;
+            }
+            case "t" -> {
+                if (parts.length != 2) {
+                    return false;
+                }
+                // Parsed in full before anything changes, so a torn record is not half applied
+                Map<String, Long> deltas = new HashMap<>();
+                for (String pair : parts[1].isEmpty() ? new String[0] : parts[1].split(" ")) {
+                    int sep = pair.lastIndexOf(':');
+                    if (sep <= 0) {
+                        return false;
+                    }
+                    deltas.merge(pair.substring(0, sep), Long.parseLong(pair.substring(sep + 1)), Long::sum);
+                }
+                deltas.forEach(this::addTerm);
+                return true;
+            }
+            default -> {
+                return false;
+            }
+        }
+    }
+    
+    private void appendRecords(List<String> records) throws IOException {
+        journal.append(records);
+        journalRecords += records.size();
+        if (journalRecords > 1000 && journalRecords > entryWords.size() * 2L) {
+            compact();
+        }
+    }
+    
+    private void compact() throws IOException {
+        List<String> records = new ArrayList<>(entryWords.size() + 1);
+        for (Map.Entry<String, Integer> entry : entryWords.entrySet()) {
+            records.add("e\t" + entry.getKey() + "\t" + entry.getValue());
+        }
+        if (!termCounts.isEmpty()) {
+            records.add(termRecord(termCounts));
+        }
+        journal.rewrite(records);
+        journalRecords = entryWords.size() + 1;
+    }
+    
+    private static String termRecord(Map<String, Long> terms) {
+        StringBuilder record = new StringBuilder("t\t");
+        boolean first = true;
+        for (Map.Entry<String, Long> term : terms.entrySet()) {
+            if (!first) record.append(' ');
+            record.append(term.getKey()).append(':').append(term.getValue());
+            first = false;
+        }
+        return record.toString();
+    }
+    
+    /** Number of entries and words in a day, month or year. */
+    public static final class Counts {
+        static final Counts ZERO = new Counts(0, 0);
+        
+        private final int entries;
+        private final long words;
+        
+        Counts(int entries, long words) {
+            this.entries = entries;
+            this.words = words;
+        }
+        
+        Counts plus(int entryDelta, long wordDelta) {
+            return new Counts(entries + entryDelta, words + wordDelta);
+        }
+        
+        public int getEntries() { return entries; }
+        public long getWords() { return words; }
+    }
+}
\ No newline at end of file
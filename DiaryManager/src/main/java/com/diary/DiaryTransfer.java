@@ -0,0 +1,298 @@
+package com.diary;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.LongConsumer;
+
+/**
+ * Streaming bulk export and import of entries as JSON Lines, one entry per
+ * line: {"timestamp":"2024-01-31T21:15:00","content":"..."}.
+ *
+ * Both directions work in chunks: export pages through the catalog with
+ * cursors and import reads a chunk of lines at a time, and each chunk is
+ * read/encoded or parsed on the common fork-join pool while earlier chunks
+ * are written in order. Only a bounded number of chunks is in flight, so
+ * memory use does not grow with the size of the diary.
+ */
+public class DiaryTransfer {
+    static final int CHUNK_SIZE = 1024;
+    static final int PROGRESS_INTERVAL = 10000;
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int MAX_IN_FLIGHT = Runtime.getRuntime().availableProcessors() * 2;
+    static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+    
+    /** Writes every entry, newest first, and returns how many were exported. */
+    public static long exportTo(DiaryFileHandler handler, Path file, LongConsumer progress) throws IOException {
+        Deque<CompletableFuture<Chunk>> inFlight = new ArrayDeque<>();
+        long exported = 0;
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                Files.newOutputStream(file), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            String cursor = null;
+            do {
+                EntryPage page = handler.page(cursor, CHUNK_SIZE);
+                List<String> names = page.getEntries();
+                inFlight.add(CompletableFuture.supplyAsync(() -> encodeChunk(handler, names)));
+                if (inFlight.size() >= MAX_IN_FLIGHT) {
+                    exported = writeChunk(out, await(inFlight.removeFirst()), exported, progress);
+                }
+                cursor = page.getNextCursor();
+            } while (cursor != null);
+            while (!inFlight.isEmpty()) {
+                exported = writeChunk(out, await(inFlight.removeFirst()), exported, progress);
+            }
+        }
+        return exported;
+    }
+    
+    /**
+     * Reads entries from a JSONL export and hands them to the writer in
+     * batches, syncing after the last one. Entries with the same timestamp
+     * as an existing one replace it. Returns how many were imported.
+     */
+    public static long importFrom(Path file, WriteBehindQueue.BatchWriter writer, LongConsumer progress)
+            throws IOException {
+        Deque<CompletableFuture<List<DiaryEntry>>> inFlight = new ArrayDeque<>();
+        long imported = 0;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                Files.newInputStream(file), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            long lineNumber = 0;
+            while (true) {
+                List<String> lines = new ArrayList<>(CHUNK_SIZE);
+                String line;
+                while (lines.size() < CHUNK_SIZE && (line = in.readLine()) != null) {
+                    lines.add(line);
+                }
+                if (lines.isEmpty()) {
+                    break;
+                }
+                long firstLine = lineNumber + 1;
+                lineNumber += lines.size();
+                inFlight.add(CompletableFuture.supplyAsync(() -> parseChunk(lines, firstLine)));
+                if (inFlight.size() >= MAX_IN_FLIGHT) {
+                    int saved = saveChunk(writer, await(inFlight.removeFirst()), false);
+                    imported += saved;
+                    report(progress, imported, saved);
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                int saved = saveChunk(writer, await(inFlight.removeFirst()), inFlight.isEmpty());
+                imported += saved;
+                report(progress, imported, saved);
+            }
+        }
+        return imported;
+    }
+    
+    private static int saveChunk(WriteBehindQueue.BatchWriter writer, List<DiaryEntry> entries,
+                                 boolean last) throws IOException {
+        if (!entries.isEmpty() || last) {
+            writer.write(entries, last);
+        }
+        return entries.size();
+    }
+    
+    private static void report(LongConsumer progress, long done, int step) {
+        // Called once per chunk; only pass on every PROGRESS_INTERVAL entries
+        if (done / PROGRESS_INTERVAL != (done - step) / PROGRESS_INTERVAL) {
+            progress.accept(done);
+        }
+    }
+    
+    /** Entries skipped because they were deleted meanwhile are not counted. */
+    private static long writeChunk(Writer out, Chunk chunk, long exported, LongConsumer progress)
+            throws IOException {
+        out.write(chunk.text);
+        report(progress, exported + chunk.entries, chunk.entries);
+        return exported + chunk.entries;
+    }
+    
+    private static Chunk encodeChunk(DiaryFileHandler handler, List<String> names) {
+        StringBuilder chunk = new StringBuilder(names.size() * 256);
+        int entries = 0;
+        for (String name : names) {
+            String content;
+            try {
+                content = handler.readEntry(name);
+            } catch (FileNotFoundException e) {
+                continue; // Deleted since the page was listed
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            chunk.append("{\"timestamp\":\"")
+                 .append(handler.extractTimestampFromFilename(name).format(TIMESTAMP_FORMAT))
+                 .append("\",\"content\":");
+            appendString(chunk, content);
+            chunk.append("}\n");
+            entries++;
+        }
+        return new Chunk(chunk.toString(), entries);
+    }
+    
+    /** The JSONL of one page of entries and how many entries it holds. */
+    private static final class Chunk {
+        final String text;
+        final int entries;
+        
+        Chunk(String text, int entries) {
+            this.text = text;
+            this.entries = entries;
+        }
+    }
+    
+    private static List<DiaryEntry> parseChunk(List<String> lines, long firstLine) {
+        List<DiaryEntry> entries = new ArrayList<>(lines.size());
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (line.isBlank()) {
+                continue;
+            }
+            try {
+                entries.add(parseEntry(line));
+            } catch (IllegalArgumentException | DateTimeParseException e) {
+                throw new UncheckedIOException(new IOException(
+                    "Invalid entry on line " + (firstLine + i) + ": " + e.getMessage()));
+            }
+        }
+        return entries;
+    }
+    
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Transfer interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IOException("Transfer failed", e.getCause());
+        }
+    }
+    
+    static void appendString(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> out.append("\\\"");
+                case '\\' -> out.append("\\\\");
+                case '\n' -> out.append("\\n");
+                case '\r' -> out.append("\\r");
+                case '\t' -> out.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+                }
+            }
+        }
+        out.append('"');
+    }
+    
+    /**
+     * Parses one entry object. Only "timestamp" and "content" are used;
+     * other fields are ignored.
+     */
+    static DiaryEntry parseEntry(String line) {
+        Map<String, String> fields = parseObject(line);
+        String timestamp = fields.get("timestamp");
+        String content = fields.get("content");
+        if (timestamp == null || content == null) {
+            throw new IllegalArgumentException("missing timestamp or content");
+        }
+        return new DiaryEntry(LocalDateTime.parse(timestamp, TIMESTAMP_FORMAT), content);
+    }
+    
+    /** Parses one flat JSON object with string values. */
+    static Map<String, String> parseObject(String line) {
+        Map<String, String> fields = new HashMap<>();
+        int[] pos = {skipSpace(line, 0)};
+        expect(line, pos, '{');
+        if (peek(line, pos) != '}') {
+            do {
+                String key = readString(line, pos);
+                expect(line, pos, ':');
+                fields.put(key, readString(line, pos));
+            } while (tryConsume(line, pos, ','));
+        }
+        expect(line, pos, '}');
+        return fields;
+    }
+    
+    private static String readString(String line, int[] pos) {
+        expect(line, pos, '"');
+        StringBuilder value = new StringBuilder();
+        int i = pos[0];
+        while (true) {
+            if (i >= line.length()) {
+                throw new IllegalArgumentException("unterminated string");
+            }
+            char c = line.charAt(i++);
+            if (c == '"') {
+                break;
+            }
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            if (i >= line.length()) {
+                throw new IllegalArgumentException("unterminated escape");
+            }
+            char escape = line.charAt(i++);
+            switch (escape) {
+                case 'n' -> value.append('\n');
+                case 'r' -> value.append('\r');
+                case 't' -> value.append('\t');
+                case 'b' -> value.append('\b');
+                case 'f' -> value.append('\f');
+                case 'u' -> {
+                    if (i + 4 > line.length()) {
+                        throw new IllegalArgumentException("bad unicode escape");
+                    }
+                    value.append((char) Integer.parseInt(line.substring(i, i + 4), 16));
+                    i += 4;
+                }
+                default -> value.append(escape);
+            }
+        }
+        pos[0] = skipSpace(line, i);
+        return value.toString();
+    }
+    
+    private static char peek(String line, int[] pos) {
+        if (pos[0] >= line.length()) {
+            throw new IllegalArgumentException("unexpected end of line");
+        }
+        return line.charAt(pos[0]);
+    }
+    
+    private static void expect(String line, int[] pos, char c) {
+        if (!tryConsume(line, pos, c)) {
+            throw new IllegalArgumentException("expected '" + c + "' at column " + (pos[0] + 1));
+        }
+    }
+    
+    private static boolean tryConsume(String line, int[] pos, char c) {
+        if (pos[0] < line.length() && line.charAt(pos[0]) == c) {
+            pos[0] = skipSpace(line, pos[0] + 1);
+            return true;
+        }
+        return false;
+    }
+    
+    private static int skipSpace(String line, int i) {
+        while (i < line.length() && Character.isWhitespace(line.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,369 @@
+package com.diary;
+
+import java.io.*;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.*;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * In-memory, newest-first index of entries keyed by their timestamp.
+ *
+ * Listing, counting, paging and time-range queries are answered from the
+ * sorted map without touching the store. A catalog created for a directory
+ * reads it on first use and is then patched by our own writes and by a
+ * WatchService thread that picks up changes made outside the application;
+ * if the watcher overflows the directory is simply reloaded on next use.
+ * Changes the watcher finds are passed to the external-change listener, so
+ * caches built from the entries know to drop their results.
+ * Stores that keep their own records (the segment log) use an in-memory
+ * catalog instead.
+ *
+ * Entries in month shards (yyyy/MM) are loaded a shard at a time: range
+ * queries and latest() only read the shards they need, while list() and
+ * size() load them all.
+ */
+public class EntryCatalog implements Closeable {
+    private final EntryLayout layout;
+    private final TreeMap<LocalDateTime, String> entries = new TreeMap<>(Comparator.reverseOrder());
+    private List<String> snapshot;
+    private boolean rootLoaded;
+    // Known month shards and whether each has been read; null until discovered
+    private TreeMap<YearMonth, Boolean> shards;
+    private WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirs = new HashMap<>();
+    private Thread watcher;
+    private volatile Consumer<String> externalChangeListener = name -> { };
+    
+    /** Catalog of the diary_*.txt files under a directory. */
+    public EntryCatalog(EntryLayout layout) {
+        this.layout = layout;
+        startWatcher();
+    }
+    
+    /** Catalog maintained entirely through added() and removed(). */
+    public EntryCatalog() {
+        this.layout = null;
+        this.rootLoaded = true;
+        this.shards = new TreeMap<>(Comparator.reverseOrder());
+    }
+    
+    /**
+     * Called from the watcher thread with the name of each entry created,
+     * deleted or modified outside the application, or with null when the
+     * whole directory may have changed.
+     */
+    public void setExternalChangeListener(Consumer<String> listener) {
+        this.externalChangeListener = listener;
+    }
+    
+    static boolean isEntryName(String name) {
+        return name.startsWith("diary_") && name.endsWith(".txt");
+    }
+    
+    /**
+     * Returns all entry names, newest first. The list is a shared read-only
+     * snapshot that is only rebuilt after the set has changed.
+     */
+    public synchronized List<String> list() throws IOException {
+        ensureLoaded();
+        if (snapshot == null) {
+            snapshot = Collections.unmodifiableList(new ArrayList<>(entries.values()));
+        }
+        return snapshot;
+    }
+    
+    public synchronized List<String> page(int offset, int limit) throws IOException {
+        List<String> all = list();
+        int from = Math.min(Math.max(offset, 0), all.size());
+        int to = Math.min(from + Math.max(limit, 0), all.size());
+        return all.subList(from, to);
+    }
+    
+    public synchronized int size() throws IOException {
+        ensureLoaded();
+        return entries.size();
+    }
+    
+    /** Entries with from <= timestamp <= to, newest first. */
+    public synchronized List<String> between(LocalDateTime from, LocalDateTime to) throws IOException {
+        if (from.isAfter(to)) {
+            return Collections.emptyList();
+        }
+        ensureLoaded(from, to);
+        // The map is in descending order, so the later bound comes first
+        return new ArrayList<>(entries.subMap(to, true, from, true).values());
+    }
+    
+    public List<String> on(LocalDate date) throws IOException {
+        return between(date.atStartOfDay(), date.atTime(23, 59, 59));
+    }
+    
+    public List<String> latest(int count) throws IOException {
+        return after(null, count);
+    }
+    
+    /**
+     * Up to count entries older than the cursor timestamp (or the newest
+     * ones if it is null), newest first.
+     */
+    public synchronized List<String> after(LocalDateTime cursor, int count) throws IOException {
+        loadRoot();
+        discoverShards();
+        NavigableMap<LocalDateTime, String> older = cursor == null ? entries : entries.tailMap(cursor, false);
+        Map<YearMonth, Boolean> candidates = cursor == null ? shards : shards.tailMap(YearMonth.from(cursor), true);
+        // Read shards newest first until they alone hold enough older entries
+        for (Map.Entry<YearMonth, Boolean> shard : candidates.entrySet()) {
+            if (!shard.getValue()) {
+                loadShard(shard.getKey());
+            }
+            LocalDateTime shardStart = shard.getKey().atDay(1).atStartOfDay();
+            if (countAtLeast(older.headMap(shardStart, true).values(), count)) {
+                break;
+            }
+        }
+        List<String> page = new ArrayList<>(Math.min(count, 64));
+        for (String name : older.values()) {
+            if (page.size() >= count) break;
+            page.add(name);
+        }
+        return page;
+    }
+    
+    /** Returns whether the entry was new to the catalog. */
+    public synchronized boolean added(String name) {
+        LocalDateTime timestamp = DiaryEntry.parseFilename(name);
+        if (timestamp != null && entries.put(timestamp, name) == null) {
+            snapshot = null;
+            return true;
+        }
+        return false;
+    }
+    
+    /** Returns whether the entry was in the catalog. */
+    public synchronized boolean removed(String name) {
+        LocalDateTime timestamp = DiaryEntry.parseFilename(name);
+        if (timestamp != null && entries.remove(timestamp) != null) {
+            snapshot = null;
+            return true;
+        }
+        return false;
+    }
+    
+    public synchronized void clear() {
+        entries.clear();
+        snapshot = null;
+    }
+    
+    /** Drops the listing of a directory catalog so it is reloaded on next use. */
+    public synchronized void invalidate() {
+        if (layout == null) {
+            return;
+        }
+        rootLoaded = false;
+        shards = null;
+        entries.clear();
+        snapshot = null;
+    }
+    
+    private void ensureLoaded() throws IOException {
+        loadRoot();
+        discoverShards();
+        for (Map.Entry<YearMonth, Boolean> shard : shards.entrySet()) {
+            if (!shard.getValue()) {
+                loadShard(shard.getKey());
+            }
+        }
+    }
+    
+    /** Loads only the shards that can hold entries between from and to. */
+    private void ensureLoaded(LocalDateTime from, LocalDateTime to) throws IOException {
+        loadRoot();
+        discoverShards();
+        for (Map.Entry<YearMonth, Boolean> shard
+                : shards.subMap(YearMonth.from(to), true, YearMonth.from(from), true).entrySet()) {
+            if (!shard.getValue()) {
+                loadShard(shard.getKey());
+            }
+        }
+    }
+    
+    private void loadRoot() throws IOException {
+        if (rootLoaded) {
+            return;
+        }
+        loadDirectory(layout.root());
+        rootLoaded = true;
+    }
+    
+    private void discoverShards() throws IOException {
+        if (shards != null) {
+            return;
+        }
+        shards = new TreeMap<>(Comparator.reverseOrder());
+        for (YearMonth shard : layout.shards()) {
+            shards.put(shard, false);
+        }
+    }
+    
+    private void loadShard(YearMonth shard) throws IOException {
+        try {
+            loadDirectory(layout.shardDir(shard));
+        } catch (NoSuchFileException e) {
+            // Removed since it was discovered; nothing to read
+        }
+        shards.put(shard, true);
+    }
+    
+    private void loadDirectory(Path dir) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "diary_*.txt")) {
+            for (Path entry : stream) {
+                String name = entry.getFileName().toString();
+                LocalDateTime timestamp = DiaryEntry.parseFilename(name);
+                if (timestamp != null) {
+                    entries.put(timestamp, name);
+                }
+            }
+        }
+        snapshot = null;
+    }
+    
+    private static boolean countAtLeast(Collection<String> names, int count) {
+        int seen = 0;
+        for (Iterator<String> it = names.iterator(); seen < count && it.hasNext(); it.next()) {
+            seen++;
+        }
+        return seen >= count;
+    }
+    
+    /** Called by the watcher when a month directory appears. */
+    private synchronized void shardCreated(YearMonth shard) {
+        if (shards != null) {
+            // Reading it later also picks up files written before it was watched
+            shards.put(shard, false);
+        }
+    }
+    
+    private void startWatcher() {
+        try {
+            watchService = layout.root().getFileSystem().newWatchService();
+            watch(layout.root());
+            for (YearMonth shard : layout.shards()) {
+                watch(layout.shardDir(shard).getParent());
+                watch(layout.shardDir(shard));
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            System.err.println("Warning: Could not watch " + layout.root() + ", external changes need a refresh: " + e.getMessage());
+            watchService = null;
+            return;
+        }
+        watcher = new Thread(this::watchLoop, "diary-entries-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+    
+    private void watch(Path dir) throws IOException {
+        synchronized (watchedDirs) {
+            if (!watchedDirs.containsValue(dir)) {
+                watchedDirs.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+            }
+        }
+    }
+    
+    private void watchLoop() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path dir;
+                synchronized (watchedDirs) {
+                    dir = watchedDirs.get(key);
+                }
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) {
+                        invalidate();
+                        externalChangeListener.accept(null);
+                        continue;
+                    }
+                    Path path = dir.resolve((Path) event.context());
+                    if (event.kind() == ENTRY_CREATE && Files.isDirectory(path)) {
+                        directoryCreated(path);
+                        continue;
+                    }
+                    String name = path.getFileName().toString();
+                    if (!isEntryName(name)) {
+                        continue;
+                    }
+                    boolean changed;
+                    if (event.kind() == ENTRY_CREATE) {
+                        // Our own writes are in the catalog before their event arrives
+                        changed = addedOnDisk(name);
+                    } else if (event.kind() == ENTRY_MODIFY) {
+                        // Our own writes replace the file with a rename, which is a create
+                        changed = true;
+                    } else {
+                        // Not just moved between the flat and sharded layouts
+                        changed = layout.locate(name) == null && removed(name);
+                    }
+                    if (changed) {
+                        externalChangeListener.accept(name);
+                    }
+                }
+                if (!key.reset()) {
+                    synchronized (watchedDirs) {
+                        watchedDirs.remove(key);
+                    }
+                    if (dir.equals(layout.root())) {
+                        invalidate();
+                        externalChangeListener.accept(null);
+                        return;
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Catalog closed
+        } catch (IOException e) {
+            System.err.println("Warning: Stopped watching " + layout.root() + ": " + e.getMessage());
+            invalidate();
+            externalChangeListener.accept(null);
+        }
+    }
+    
+    /**
+     * Adds an entry reported by the watcher unless it was deleted again since
+     * (events arrive late). Checked under the lock, so a delete that removes
+     * the file meanwhile is always followed by its removed() call.
+     */
+    private synchronized boolean addedOnDisk(String name) throws IOException {
+        return layout.locate(name) != null && added(name);
+    }
+    
+    private void directoryCreated(Path dir) throws IOException {
+        Path relative = layout.root().relativize(dir);
+        if (relative.getNameCount() == 1 && relative.toString().matches("\\d{4}")) {
+            // A new year; its months may have been created before we watched it
+            watch(dir);
+            try (DirectoryStream<Path> months = Files.newDirectoryStream(dir)) {
+                for (Path month : months) {
+                    directoryCreated(month);
+                }
+            }
+        } else {
+            YearMonth shard = layout.shardOf(dir);
+            if (shard != null) {
+                watch(dir);
+                shardCreated(shard);
+            }
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,59 @@
+package com.diary;
+
+import java.io.*;
+import java.time.LocalDateTime;
+
+/**
+ * Lightweight reference to an entry returned by keyword searches: the name,
+ * timestamp, stored size and a keyword-in-context snippet, cut while the
+ * entry was being matched. The body is only read when getContent() or load()
+ * is called, so holding thousands of hits does not hold thousands of entry
+ * bodies.
+ */
+public class EntryHandle {
+    private final String filename;
+    private final LocalDateTime timestamp;
+    private final long size;
+    private final Snippet snippet;
+    private final DiaryIndex.EntryReader reader;
+    
+    public EntryHandle(String filename, LocalDateTime timestamp, long size, Snippet snippet,
+                       DiaryIndex.EntryReader reader) {
+        this.filename = filename;
+        this.timestamp = timestamp;
+        this.size = size;
+        this.snippet = snippet;
+        this.reader = reader;
+    }
+    
+    /**
+     * Builds a handle from the raw UTF-8 body and the byte offset of the
+     * first keyword match, decoding only the bytes around it.
+     */
+    static EntryHandle of(String filename, LocalDateTime timestamp, byte[] content, int offset,
+                          String keyword, DiaryIndex.EntryReader reader) {
+        return new EntryHandle(filename, timestamp, content.length,
+                               Snippet.aroundKeyword(content, offset, keyword), reader);
+    }
+    
+    public String getFilename() { return filename; }
+    public LocalDateTime getTimestamp() { return timestamp; }
+    public Snippet getSnippet() { return snippet; }
+    
+    /** Size of the body in bytes. */
+    public long getSize() { return size; }
+    
+    /** Reads the body; it is not kept by the handle. */
+    public String getContent() throws IOException {
+        return reader.read(filename);
+    }
+    
+    public DiaryEntry load() throws IOException {
+        return new DiaryEntry(timestamp, getContent());
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("[%s] %s", DiaryEntry.formatTimestamp(timestamp), snippet);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,115 @@
+package com.diary;
+
+import java.io.*;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.*;
+
+/**
+ * Maps entry filenames to paths in the entries directory, either flat
+ * (entries/diary_...txt) or sharded by month (entries/yyyy/MM/diary_...txt).
+ *
+ * Lookups fall back to the other location, so a store stays fully usable
+ * while its entries are being moved from one layout to the other.
+ */
+public class EntryLayout {
+    static final String FLAT = "flat";
+    static final String SHARDED = "sharded";
+    
+    private final Path root;
+    private final boolean sharded;
+    
+    public EntryLayout(Path root, String layout) throws IOException {
+        if (!layout.equals(FLAT) && !layout.equals(SHARDED)) {
+            throw new IOException("Unknown entries layout: " + layout);
+        }
+        this.root = root;
+        this.sharded = layout.equals(SHARDED);
+    }
+    
+    public Path root() {
+        return root;
+    }
+    
+    public boolean isSharded() {
+        return sharded;
+    }
+    
+    /** Where a new or rewritten entry is stored in this layout. */
+    public Path pathFor(String filename) throws IOException {
+        return sharded ? shardPath(filename) : root.resolve(filename);
+    }
+    
+    /** The existing file for an entry in either layout, or null. */
+    public Path locate(String filename) throws IOException {
+        Path primary = pathFor(filename);
+        if (Files.exists(primary)) {
+            return primary;
+        }
+        Path secondary = sharded ? root.resolve(filename) : shardPath(filename);
+        return Files.exists(secondary) ? secondary : null;
+    }
+    
+    public Path shardDir(YearMonth month) {
+        return root.resolve(String.format("%04d", month.getYear()))
+                   .resolve(String.format("%02d", month.getMonthValue()));
+    }
+    
+    /** Month shards that exist on disk, newest first. */
+    public NavigableSet<YearMonth> shards() throws IOException {
+        NavigableSet<YearMonth> shards = new TreeSet<>(Comparator.reverseOrder());
+        try (DirectoryStream<Path> years = Files.newDirectoryStream(root, "[0-9][0-9][0-9][0-9]")) {
+            for (Path year : years) {
+                if (!Files.isDirectory(year)) continue;
+                try (DirectoryStream<Path> months = Files.newDirectoryStream(year, "[0-9][0-9]")) {
+                    for (Path month : months) {
+                        YearMonth shard = shardOf(month);
+                        if (shard != null) {
+                            shards.add(shard);
+                        }
+                    }
+                }
+            }
+        }
+        return shards;
+    }
+    
+    /** The month a shard directory stands for, or null if the path is not one. */
+    YearMonth shardOf(Path dir) {
+        Path relative = root.relativize(dir);
+        if (relative.getNameCount() != 2 || !Files.isDirectory(dir)) {
+            return null;
+        }
+        try {
+            int month = Integer.parseInt(relative.getName(1).toString());
+            if (month < 1 || month > 12) return null;
+            return YearMonth.of(Integer.parseInt(relative.getName(0).toString()), month);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Moves an entry to where this layout expects it with a single atomic
+     * rename. Returns false if it was already there or does not exist.
+     */
+    public boolean move(String filename) throws IOException {
+        Path current = locate(filename);
+        Path target = pathFor(filename);
+        if (current == null || current.equals(target)) {
+            return false;
+        }
+        Files.createDirectories(target.getParent());
+        Files.move(current, target, StandardCopyOption.ATOMIC_MOVE);
+        return true;
+    }
+    
+    private Path shardPath(String filename) throws IOException {
+        LocalDateTime timestamp = DiaryEntry.parseFilename(filename);
+        if (timestamp == null) {
+            throw new IOException("Not a diary entry filename: " + filename);
+        }
+        return shardDir(YearMonth.from(timestamp)).resolve(filename);
+    }
+}
\ No newline at end of file
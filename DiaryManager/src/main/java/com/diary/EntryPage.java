@@ -0,0 +1,32 @@
+package com.diary;
+
+import java.util.*;
+
+/**
+ * One page of entry names, newest first, plus the cursor for the next page.
+ *
+ * The cursor is the name of the last entry on the page, so following pages
+ * stay stable when entries are written or deleted in between.
+ */
+public class EntryPage {
+    private final List<String> entries;
+    private final String nextCursor;
+    
+    public EntryPage(List<String> entries, String nextCursor) {
+        this.entries = entries;
+        this.nextCursor = nextCursor;
+    }
+    
+    public List<String> getEntries() {
+        return entries;
+    }
+    
+    /** Cursor for the following page, or null if this is the last one. */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+    
+    public boolean hasNext() {
+        return nextCursor != null;
+    }
+}
\ No newline at end of file
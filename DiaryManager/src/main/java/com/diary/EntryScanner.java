@@ -0,0 +1,148 @@
+package com.diary;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Full-corpus keyword scan used when the search index is disabled, and to
+ * verify index candidates. Files are spread over the fork-join pool and
+ * matched case-insensitively on their raw UTF-8 bytes.
+ */
+public class EntryScanner {
+    private static final int FILES_PER_TASK = 32;
+    
+    /**
+     * Scans the given entries of a store snapshot and reports every match as
+     * soon as it is found. Entries not in the snapshot are skipped. The
+     * callback is invoked from pool threads and must be thread-safe.
+     */
+    public void scan(EntryStore.Snapshot snapshot, List<String> filenames, String keyword,
+                     MatchListener listener) {
+        KeywordMatcher matcher = new KeywordMatcher(keyword);
+        ForkJoinPool.commonPool().invoke(new ScanTask(snapshot, filenames, 0, filenames.size(), matcher, listener));
+    }
+    
+    @FunctionalInterface
+    public interface MatchListener {
+        /** offset is the byte offset of the first match in content. */
+        void onMatch(String filename, byte[] content, int offset);
+    }
+    
+    private static class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        private final EntryStore.Snapshot snapshot;
+        private final List<String> filenames;
+        private final int from;
+        private final int to;
+        private final KeywordMatcher matcher;
+        private final MatchListener listener;
+        
+        ScanTask(EntryStore.Snapshot snapshot, List<String> filenames, int from, int to,
+                 KeywordMatcher matcher, MatchListener listener) {
+            this.snapshot = snapshot;
+            this.filenames = filenames;
+            this.from = from;
+            this.to = to;
+            this.matcher = matcher;
+            this.listener = listener;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from > FILES_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new ScanTask(snapshot, filenames, from, mid, matcher, listener),
+                          new ScanTask(snapshot, filenames, mid, to, matcher, listener));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                String filename = filenames.get(i);
+                try {
+                    byte[] content = snapshot.read(filename);
+                    int offset = matcher.find(content);
+                    if (offset >= 0) {
+                        listener.onMatch(filename, content, offset);
+                    }
+                } catch (FileNotFoundException e) {
+                    // An index candidate added after the snapshot was taken
+                } catch (IOException e) {
+                    System.err.println("Warning: Could not read file " + filename + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Case-insensitive substring matcher over UTF-8 bytes. ASCII keywords are
+     * matched with a folded Horspool search directly on the bytes; keywords
+     * containing other characters fall back to a region match on the decoded
+     * text, which still avoids building lowercase copies.
+     */
+    static class KeywordMatcher {
+        private final String keyword;
+        private final byte[] pattern;
+        private final int[] shift;
+        
+        KeywordMatcher(String keyword) {
+            this.keyword = keyword;
+            byte[] bytes = keyword.getBytes(StandardCharsets.UTF_8);
+            boolean ascii = bytes.length == keyword.length();
+            if (ascii) {
+                pattern = new byte[bytes.length];
+                for (int i = 0; i < bytes.length; i++) {
+                    pattern[i] = fold(bytes[i]);
+                }
+                shift = new int[256];
+                Arrays.fill(shift, Math.max(pattern.length, 1));
+                for (int i = 0; i < pattern.length - 1; i++) {
+                    shift[pattern[i] & 0xFF] = pattern.length - 1 - i;
+                }
+            } else {
+                pattern = null;
+                shift = null;
+            }
+        }
+        
+        /** Byte offset of the first match, or -1. */
+        int find(byte[] content) {
+            if (pattern == null) {
+                String text = new String(content, StandardCharsets.UTF_8);
+                int index = indexInText(text);
+                return index < 0 ? -1 : text.substring(0, index).getBytes(StandardCharsets.UTF_8).length;
+            }
+            int m = pattern.length;
+            if (m == 0) {
+                return 0;
+            }
+            int last = m - 1;
+            for (int pos = 0; pos + m <= content.length; ) {
+                int i = last;
+                while (i >= 0 && fold(content[pos + i]) == pattern[i]) {
+                    i--;
+                }
+                if (i < 0) {
+                    return pos;
+                }
+                pos += shift[fold(content[pos + last]) & 0xFF];
+            }
+            return -1;
+        }
+        
+        private int indexInText(String text) {
+            int limit = text.length() - keyword.length();
+            for (int i = 0; i <= limit; i++) {
+                if (text.regionMatches(true, i, keyword, 0, keyword.length())) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        
+        private static byte fold(byte b) {
+            return (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,137 @@
+package com.diary;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Storage backend for entry contents, addressed by entry filename.
+ * DiaryFileHandler builds search, backup and indexing on top of it.
+ */
+public interface EntryStore extends Closeable {
+    
+    void write(String filename, byte[] content) throws IOException;
+    
+    /** Writes a batch of entries; stores can override this to make a batch cheaper than single writes. */
+    default void writeAll(Map<String, byte[]> entries) throws IOException {
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            write(entry.getKey(), entry.getValue());
+        }
+    }
+    
+    /** Forces everything written so far to stable storage. */
+    void sync() throws IOException;
+    
+    /**
+     * Returns the raw UTF-8 content of an entry, or throws
+     * FileNotFoundException if it does not exist.
+     */
+    byte[] read(String filename) throws IOException;
+    
+    boolean delete(String filename) throws IOException;
+    
+    /**
+     * A value that changes whenever the entry is rewritten (a modification
+     * time or log position), used to skip unchanged entries cheaply.
+     */
+    long version(String filename) throws IOException;
+    
+    boolean exists(String filename) throws IOException;
+    
+    /** Timestamp index of the entries in this store. */
+    EntryCatalog catalog();
+    
+    /** All entry names, newest first. */
+    default List<String> list() throws IOException {
+        return catalog().list();
+    }
+    
+    default List<String> page(int offset, int limit) throws IOException {
+        return catalog().page(offset, limit);
+    }
+    
+    default int size() throws IOException {
+        return catalog().size();
+    }
+    
+    /** Removes every entry; used after the contents were migrated to another store. */
+    void clear() throws IOException;
+    
+    /** Drops any cached state so changes made outside the application are picked up. */
+    void refresh() throws IOException;
+    
+    /** Moves entries into the store's configured on-disk layout; most stores have only one. */
+    default int relayout() throws IOException {
+        return 0;
+    }
+    
+    /**
+     * A read-only view of the entries as they were when it was taken, for
+     * reads that must not see changes half applied (backups, scans). Close
+     * it as soon as the read is done.
+     */
+    interface Snapshot extends Closeable {
+        /** Entry names in the snapshot, newest first. */
+        List<String> list() throws IOException;
+        
+        /** Content as of the snapshot; FileNotFoundException if the entry was not in it. */
+        byte[] read(String filename) throws IOException;
+        
+        long version(String filename) throws IOException;
+        
+        @Override
+        void close();
+    }
+    
+    /**
+     * Takes a snapshot. Stores opened through open() keep versions for it
+     * (see VersionedEntryStore); others return a live view, which only
+     * stays consistent while nothing writes to the store.
+     */
+    default Snapshot snapshot() throws IOException {
+        EntryStore store = this;
+        return new Snapshot() {
+            @Override
+            public List<String> list() throws IOException {
+                return store.list();
+            }
+            
+            @Override
+            public byte[] read(String filename) throws IOException {
+                return store.read(filename);
+            }
+            
+            @Override
+            public long version(String filename) throws IOException {
+                return store.version(filename);
+            }
+            
+            @Override
+            public void close() {
+            }
+        };
+    }
+    
+    /**
+     * Opens the backend for a storage mode. It is always wrapped in a
+     * VersionedEntryStore for snapshots, and that in a CompressingEntryStore
+     * so compressed entries stay readable even while the compression setting
+     * is off (and snapshots keep old versions in their compressed form).
+     */
+    static EntryStore open(String mode, Path entriesDir, DiaryConfig config) throws IOException {
+        EntryStore store = switch (mode) {
+            case FileEntryStore.MODE -> new FileEntryStore(entriesDir,
+                config.getSetting("entriesLayout", EntryLayout.FLAT));
+            case SegmentEntryStore.MODE -> new SegmentEntryStore(entriesDir,
+                Long.parseLong(config.getSetting("segmentSize", String.valueOf(SegmentEntryStore.DEFAULT_SEGMENT_SIZE))));
+            default -> throw new IOException("Unknown storage mode: " + mode);
+        };
+        String compression = config.getSetting("compression", "none");
+        if (!compression.equals("none") && !compression.equals("deflate")) {
+            store.close();
+            throw new IOException("Unknown compression: " + compression);
+        }
+        return new CompressingEntryStore(new VersionedEntryStore(store), entriesDir,
+            compression.equals("deflate"), Integer.parseInt(config.getSetting("compressionLevel", "-1")));
+    }
+}
\ No newline at end of file
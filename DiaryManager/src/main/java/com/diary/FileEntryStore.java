@@ -0,0 +1,198 @@
+package com.diary;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.YearMonth;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The original layout: one diary_*.txt file per entry, either directly in the
+ * entries directory or sharded into yyyy/MM subdirectories (see EntryLayout).
+ *
+ * Writes, deletes and moves of one entry are serialized by a striped lock,
+ * so different entries are written in parallel. Each write goes to a hidden
+ * temporary file that is renamed over the entry, so unlocked readers see
+ * either the old or the new content, never a partial file.
+ */
+public class FileEntryStore implements EntryStore {
+    static final String MODE = "files";
+    
+    private final EntryLayout layout;
+    private final EntryCatalog catalog;
+    private final StripedLocks locks = new StripedLocks(64);
+    private final Set<Path> unsynced = ConcurrentHashMap.newKeySet();
+    
+    public FileEntryStore(Path entriesDir) throws IOException {
+        this(entriesDir, EntryLayout.FLAT);
+    }
+    
+    public FileEntryStore(Path entriesDir, String layout) throws IOException {
+        Files.createDirectories(entriesDir);
+        this.layout = new EntryLayout(entriesDir, layout);
+        this.catalog = new EntryCatalog(this.layout);
+    }
+    
+    @Override
+    public void write(String filename, byte[] content) throws IOException {
+        ReentrantLock lock = locks.lockFor(filename);
+        lock.lock();
+        try {
+            // Rewrite in place if the entry has not been moved to this layout yet
+            Path filePath = layout.locate(filename);
+            if (filePath == null) {
+                filePath = layout.pathFor(filename);
+                Files.createDirectories(filePath.getParent());
+            }
+            Path tempPath = filePath.resolveSibling("." + filename + ".tmp");
+            Files.write(tempPath, content);
+            Files.move(tempPath, filePath, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            unsynced.add(filePath);
+            catalog.added(filename);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    @Override
+    public byte[] read(String filename) throws IOException {
+        Path filePath = layout.locate(filename);
+        if (filePath == null) {
+            throw new FileNotFoundException("Entry not found: " + filename);
+        }
+        try {
+            return Files.readAllBytes(filePath);
+        } catch (NoSuchFileException e) {
+            // Deleted after it was located; callers skip missing entries by this type
+            throw new FileNotFoundException("Entry not found: " + filename);
+        }
+    }
+    
+    @Override
+    public boolean delete(String filename) throws IOException {
+        ReentrantLock lock = locks.lockFor(filename);
+        lock.lock();
+        try {
+            Path filePath = layout.locate(filename);
+            boolean deleted = filePath != null && Files.deleteIfExists(filePath);
+            catalog.removed(filename);
+            return deleted;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    @Override
+    public long version(String filename) throws IOException {
+        Path filePath = layout.locate(filename);
+        if (filePath == null) {
+            throw new FileNotFoundException("Entry not found: " + filename);
+        }
+        try {
+            return Files.getLastModifiedTime(filePath).toMillis();
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException("Entry not found: " + filename);
+        }
+    }
+    
+    @Override
+    public boolean exists(String filename) throws IOException {
+        return layout.locate(filename) != null;
+    }
+    
+    /**
+     * Each entry is its own file, so this forces every file written since
+     * the last sync and then, once each, the directories holding them.
+     */
+    @Override
+    public void sync() throws IOException {
+        List<Path> files = new ArrayList<>(unsynced);
+        unsynced.removeAll(files);
+        Set<Path> dirs = new HashSet<>();
+        for (Path file : files) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            } catch (NoSuchFileException e) {
+                continue;
+            }
+            dirs.add(file.getParent());
+        }
+        for (Path dir : dirs) {
+            try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (IOException e) {
+                // Not every platform can open a directory; the files themselves are on disk
+            }
+        }
+    }
+    
+    @Override
+    public EntryCatalog catalog() {
+        return catalog;
+    }
+    
+    public EntryLayout layout() {
+        return layout;
+    }
+    
+    /**
+     * Moves entries left in the other layout to where this store's layout
+     * expects them. Runs online: each entry is moved atomically under its
+     * write lock, and reads find it in either place meanwhile.
+     */
+    @Override
+    public int relayout() throws IOException {
+        int moved = 0;
+        for (String filename : catalog.list()) {
+            ReentrantLock lock = locks.lockFor(filename);
+            lock.lock();
+            try {
+                if (!layout.move(filename)) {
+                    continue;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (++moved % 10000 == 0) {
+                System.out.println("Moved " + moved + " entries...");
+            }
+        }
+        if (!layout.isSharded()) {
+            // Drop the shard directories that are now empty
+            for (YearMonth shard : layout.shards()) {
+                deleteIfEmpty(layout.shardDir(shard));
+                deleteIfEmpty(layout.shardDir(shard).getParent());
+            }
+        }
+        return moved;
+    }
+    
+    private static void deleteIfEmpty(Path dir) throws IOException {
+        try {
+            Files.deleteIfExists(dir);
+        } catch (DirectoryNotEmptyException e) {
+            // Still holds files that are not entries
+        }
+    }
+    
+    @Override
+    public void clear() throws IOException {
+        for (String filename : catalog.list()) {
+            delete(filename);
+        }
+        catalog.invalidate();
+    }
+    
+    @Override
+    public void refresh() {
+        catalog.invalidate();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        catalog.close();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,149 @@
+package com.diary;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * The append-only file behind the search index, statistics and scan filters.
+ * The writer is kept open between appends rather than reopened for each
+ * one; callers serialize appends, rewrites and close themselves.
+ */
+class JournalFile implements Closeable {
+    private final Path path;
+    private BufferedWriter writer;
+    private boolean broken;
+    
+    JournalFile(Path path) {
+        this.path = path;
+    }
+    
+    /** Applies one record read back from the file. */
+    interface Replay {
+        /**
+         * Returns false, or throws IllegalArgumentException, if the record is
+         * malformed; either way it must leave the caller's state unchanged.
+         */
+        boolean replay(String record);
+    }
+    
+    /**
+     * Replays the records in the file and returns how many were applied, or
+     * -1 if a record before the last one is malformed and the caller should
+     * rebuild instead. A last record cut short by a crash during an append
+     * (no line end, or malformed) is skipped and cut off the file, so the
+     * next append starts on a line of its own.
+     */
+    long read(Replay replay) throws IOException {
+        long applied = 0;
+        long position = 0;
+        long goodEnd = 0;
+        boolean damaged = false;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1) {
+                position++;
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                if (damaged) {
+                    return -1;
+                }
+                String record = line.toString(StandardCharsets.UTF_8);
+                line.reset();
+                if (record.endsWith("\r")) {
+                    record = record.substring(0, record.length() - 1);
+                }
+                if (record.isEmpty() || applies(replay, record)) {
+                    applied += record.isEmpty() ? 0 : 1;
+                    goodEnd = position;
+                } else {
+                    damaged = true;
+                }
+            }
+        }
+        if (position > goodEnd) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(goodEnd);
+            }
+        }
+        return applied;
+    }
+    
+    private static boolean applies(Replay replay, String record) {
+        try {
+            return replay.replay(record);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Appends the records, flushed to the file before this returns. If that
+     * fails the file no longer matches what the caller holds, so it is
+     * deleted and later appends are skipped until a rewrite replaces it; a
+     * load then finds no file and rebuilds.
+     */
+    void append(List<String> records) throws IOException {
+        if (broken) {
+            return;
+        }
+        try {
+            if (writer == null) {
+                writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            for (String record : records) {
+                writer.write(record);
+                writer.newLine();
+            }
+            writer.flush();
+        } catch (IOException e) {
+            broken = true;
+            closeQuietly();
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException deleteFailure) {
+                e.addSuppressed(deleteFailure);
+            }
+            throw e;
+        }
+    }
+    
+    /** Replaces the whole file with the records, through a temporary file and an atomic move. */
+    void rewrite(Iterable<String> records) throws IOException {
+        close();
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+            for (String record : records) {
+                out.write(record);
+                out.newLine();
+            }
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+        broken = false;
+    }
+    
+    /** Closes the writer; a later append opens it again. */
+    @Override
+    public void close() throws IOException {
+        if (writer != null) {
+            BufferedWriter open = writer;
+            writer = null;
+            open.close();
+        }
+    }
+    
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException e) {
+            // Already failing; the original error is the one reported
+        }
+    }
+}
\ No newline at end of file
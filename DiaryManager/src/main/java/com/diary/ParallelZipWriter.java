@@ -0,0 +1,246 @@
+package com.diary;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * ZIP writer that deflates entries on a pool of worker threads and then
+ * writes the pre-compressed data into the archive in the order the entries
+ * were added. ZipOutputStream cannot take already-deflated data, so the
+ * local headers, central directory and (when needed) ZIP64 records are
+ * written here directly.
+ *
+ * Entries smaller than the store threshold, or that do not shrink, are
+ * stored uncompressed.
+ */
+public class ParallelZipWriter implements Closeable {
+    static final int STORE_THRESHOLD = 256;
+    
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL = 0x06054b50;
+    private static final int ZIP64_END_OF_CENTRAL = 0x06064b50;
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+    private static final int UTF8_FLAG = 0x0800;
+    private static final long MAX_32 = 0xFFFFFFFFL;
+    
+    private final DataOutputStream out;
+    private final ExecutorService pool;
+    private final int level;
+    private final int maxPending;
+    private final Deque<Future<CompressedEntry>> pending = new ArrayDeque<>();
+    private final List<CentralRecord> central = new ArrayList<>();
+    private final int dosTime;
+    private final int dosDate;
+    private long offset;
+    
+    public ParallelZipWriter(Path path, int threads, int level) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16));
+        this.level = level;
+        this.maxPending = threads * 8;
+        this.pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "diary-backup-compressor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        LocalDateTime now = LocalDateTime.now();
+        this.dosTime = (now.getHour() << 11) | (now.getMinute() << 5) | (now.getSecond() / 2);
+        this.dosDate = ((now.getYear() - 1980) << 9) | (now.getMonthValue() << 5) | now.getDayOfMonth();
+    }
+    
+    public void add(String name, byte[] content) throws IOException {
+        add(name, () -> content);
+    }
+    
+    /**
+     * Queues an entry whose content is loaded (and compressed) on a worker
+     * thread. Blocks while too many entries are waiting to be written.
+     */
+    public void add(String name, Callable<byte[]> loader) throws IOException {
+        while (pending.size() >= maxPending) {
+            writeNext();
+        }
+        pending.add(pool.submit(() -> compress(name, loader.call())));
+    }
+    
+    private CompressedEntry compress(String name, byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        CompressedEntry entry = new CompressedEntry(name, content.length, crc.getValue());
+        
+        if (content.length >= STORE_THRESHOLD) {
+            Deflater deflater = new Deflater(level, true);
+            try {
+                deflater.setInput(content);
+                deflater.finish();
+                ByteArrayOutputStream deflated = new ByteArrayOutputStream(content.length / 2 + 64);
+                byte[] buffer = new byte[8192];
+                while (!deflater.finished()) {
+                    deflated.write(buffer, 0, deflater.deflate(buffer));
+                }
+                if (deflated.size() < content.length) {
+                    entry.method = ZipEntry.DEFLATED;
+                    entry.data = deflated.toByteArray();
+                    return entry;
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+        entry.method = ZipEntry.STORED;
+        entry.data = content;
+        return entry;
+    }
+    
+    private void writeNext() throws IOException {
+        CompressedEntry entry;
+        try {
+            entry = pending.removeFirst().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Backup interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Could not compress backup entry", e.getCause());
+        }
+        
+        byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        central.add(new CentralRecord(name, entry.method, entry.crc, entry.data.length, entry.size, offset));
+        
+        out.writeInt(Integer.reverseBytes(LOCAL_HEADER));
+        writeShort(20);
+        writeShort(UTF8_FLAG);
+        writeShort(entry.method);
+        writeShort(dosTime);
+        writeShort(dosDate);
+        writeInt(entry.crc);
+        writeInt(entry.data.length);
+        writeInt(entry.size);
+        writeShort(name.length);
+        writeShort(0);
+        out.write(name);
+        out.write(entry.data);
+        offset += 30 + name.length + entry.data.length;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        try {
+            while (!pending.isEmpty()) {
+                writeNext();
+            }
+            writeCentralDirectory();
+        } finally {
+            pool.shutdownNow();
+            out.close();
+        }
+    }
+    
+    private void writeCentralDirectory() throws IOException {
+        long centralStart = offset;
+        for (CentralRecord record : central) {
+            boolean zip64 = record.offset >= MAX_32;
+            out.writeInt(Integer.reverseBytes(CENTRAL_HEADER));
+            writeShort(zip64 ? 45 : 20);
+            writeShort(zip64 ? 45 : 20);
+            writeShort(UTF8_FLAG);
+            writeShort(record.method);
+            writeShort(dosTime);
+            writeShort(dosDate);
+            writeInt(record.crc);
+            writeInt(record.compressedSize);
+            writeInt(record.size);
+            writeShort(record.name.length);
+            writeShort(zip64 ? 12 : 0);
+            writeShort(0);
+            writeShort(0);
+            writeShort(0);
+            writeInt(0);
+            writeInt(zip64 ? MAX_32 : record.offset);
+            out.write(record.name);
+            if (zip64) {
+                writeShort(0x0001);
+                writeShort(8);
+                out.writeLong(Long.reverseBytes(record.offset));
+            }
+            offset += 46 + record.name.length + (zip64 ? 12 : 0);
+        }
+        long centralSize = offset - centralStart;
+        
+        boolean zip64 = central.size() >= 0xFFFF || centralStart >= MAX_32 || centralSize >= MAX_32;
+        if (zip64) {
+            long zip64End = offset;
+            out.writeInt(Integer.reverseBytes(ZIP64_END_OF_CENTRAL));
+            out.writeLong(Long.reverseBytes(44));
+            writeShort(45);
+            writeShort(45);
+            writeInt(0);
+            writeInt(0);
+            out.writeLong(Long.reverseBytes(central.size()));
+            out.writeLong(Long.reverseBytes(central.size()));
+            out.writeLong(Long.reverseBytes(centralSize));
+            out.writeLong(Long.reverseBytes(centralStart));
+            
+            out.writeInt(Integer.reverseBytes(ZIP64_LOCATOR));
+            writeInt(0);
+            out.writeLong(Long.reverseBytes(zip64End));
+            writeInt(1);
+        }
+        
+        out.writeInt(Integer.reverseBytes(END_OF_CENTRAL));
+        writeShort(0);
+        writeShort(0);
+        writeShort(Math.min(central.size(), 0xFFFF));
+        writeShort(Math.min(central.size(), 0xFFFF));
+        writeInt(Math.min(centralSize, MAX_32));
+        writeInt(Math.min(centralStart, MAX_32));
+        writeShort(0);
+    }
+    
+    private void writeShort(int value) throws IOException {
+        out.writeShort(Short.reverseBytes((short) value));
+    }
+    
+    private void writeInt(long value) throws IOException {
+        out.writeInt(Integer.reverseBytes((int) value));
+    }
+    
+    private static final class CompressedEntry {
+        final String name;
+        final long size;
+        final long crc;
+        int method;
+        byte[] data;
+        
+        CompressedEntry(String name, long size, long crc) {
+            this.name = name;
+            this.size = size;
+            this.crc = crc;
+        }
+    }
+    
+    private static final class CentralRecord {
+        final byte[] name;
+        final int method;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final long offset;
+        
+        CentralRecord(byte[] name, int method, long crc, long compressedSize, long size, long offset) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+        }
+    }
+}
\ No newline at end of file
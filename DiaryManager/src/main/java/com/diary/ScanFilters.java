@@ -0,0 +1,373 @@
+package com.diary;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One small Bloom filter per entry, used when the search index is off so
+ * that a keyword scan only reads the entries that may contain the keyword.
+ *
+ * Keyword search matches substrings, not words, so the filters hold the
+ * three-byte windows (trigrams) of each entry's ASCII-folded UTF-8 bytes:
+ * an entry can only contain the keyword if it contains all of the keyword's
+ * trigrams. Keywords shorter than three bytes or with non-ASCII characters
+ * (which are matched with full Unicode case folding) are not filtered.
+ *
+ * A filter gets bitsPerTerm bits per distinct trigram of its entry. Like the
+ * search index, the filters are kept as an append-only journal of "b" (entry
+ * filter) and "x" (entry removed) records that is compacted once it grows
+ * well past the number of entries. Each filter records the store version of
+ * the content it was built from, and filters of entries changed while the
+ * application was closed are dropped on load.
+ */
+public class ScanFilters implements Closeable {
+    static final String FILTERS_FILE = ".diary_filters";
+    
+    private final Path filtersPath;
+    private final JournalFile journal;
+    private final int bitsPerTerm;
+    private final VersionReader versions;
+    private final Map<String, Filter> filters = new HashMap<>();
+    private long journalRecords;
+    private final AtomicLong checked = new AtomicLong();
+    private final AtomicLong passed = new AtomicLong();
+    private final AtomicLong matched = new AtomicLong();
+    
+    private ScanFilters(Path filtersPath, int bitsPerTerm, VersionReader versions) {
+        this.filtersPath = filtersPath;
+        this.journal = new JournalFile(filtersPath);
+        this.bitsPerTerm = Math.max(bitsPerTerm, 1);
+        this.versions = versions;
+    }
+    
+    /** Looks up the current store version of an entry (see EntryStore.version). */
+    @FunctionalInterface
+    public interface VersionReader {
+        long version(String filename) throws IOException;
+    }
+    
+    /**
+     * Loads the stored filters, or returns null if none exist yet or they are
+     * damaged. Filters of entries whose version no longer matches are dropped,
+     * so those entries are read by every scan until they are saved again.
+     */
+    public static ScanFilters load(Path entriesDir, int bitsPerTerm, VersionReader versions) throws IOException {
+        ScanFilters filters = new ScanFilters(entriesDir.resolve(FILTERS_FILE), bitsPerTerm, versions);
+        if (!Files.exists(filters.filtersPath)) {
+            return null;
+        }
+        filters.journalRecords = filters.journal.read(filters::replay);
+        if (filters.journalRecords < 0) {
+            return null;
+        }
+        int stale = 0;
+        for (Iterator<Map.Entry<String, Filter>> it = filters.filters.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Filter> entry = it.next();
+            if (!entry.getValue().isFor(versions, entry.getKey())) {
+                it.remove();
+                stale++;
+            }
+        }
+        if (stale > 0) {
+            filters.compact();
+        }
+        return filters;
+    }
+    
+    /** Builds filters for the given entries and writes them to disk. */
+    public static ScanFilters rebuild(Path entriesDir, List<String> filenames, DiaryIndex.EntryReader reader,
+                                      int bitsPerTerm, VersionReader versions) throws IOException {
+        ScanFilters filters = new ScanFilters(entriesDir.resolve(FILTERS_FILE), bitsPerTerm, versions);
+        for (String filename : filenames) {
+            try {
+                byte[] content = reader.read(filename).getBytes(StandardCharsets.UTF_8);
+                filters.filters.put(filename, Filter.of(content, filters.bitsPerTerm, versions.version(filename)));
+            } catch (FileNotFoundException e) {
+                // Deleted since it was listed
+            } catch (IOException e) {
+                System.err.println("Warning: Could not read file " + filename + " for scan filters: " + e.getMessage());
+            }
+        }
+        filters.compact();
+        return filters;
+    }
+    
+    /**
+     * Replaces the filters of a batch of entries with a single journal
+     * append. Called once the store holds the new contents, so their
+     * versions are current. The filters are built before the lock is taken.
+     */
+    public void update(Map<String, byte[]> contents) throws IOException {
+        Map<String, Filter> built = new LinkedHashMap<>();
+        List<String> records = new ArrayList<>(contents.size());
+        for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+            Filter filter = Filter.of(entry.getValue(), bitsPerTerm, versions.version(entry.getKey()));
+            built.put(entry.getKey(), filter);
+            records.add(filterRecord(entry.getKey(), filter));
+        }
+        synchronized (this) {
+            filters.putAll(built);
+            appendRecords(records);
+        }
+    }
+    
+    public synchronized void remove(String filename) throws IOException {
+        if (filters.remove(filename) != null) {
+            appendRecords(List.of("x\t" + filename));
+        }
+    }
+    
+    /**
+     * Keeps only the entries that may contain the keyword, in their original
+     * order. Entries without a filter are always kept.
+     */
+    public List<String> select(List<String> filenames, String keyword) {
+        int[] grams = trigrams(keyword);
+        if (grams == null) {
+            return filenames;
+        }
+        List<String> selected = new ArrayList<>();
+        long withFilter = 0;
+        long kept = 0;
+        synchronized (this) {
+            for (String filename : filenames) {
+                Filter filter = filters.get(filename);
+                if (filter == null) {
+                    selected.add(filename);
+                    continue;
+                }
+                withFilter++;
+                if (filter.mightContainAll(grams)) {
+                    selected.add(filename);
+                    kept++;
+                }
+            }
+        }
+        checked.addAndGet(withFilter);
+        passed.addAndGet(kept);
+        return selected;
+    }
+    
+    /** Whether select() decided on this entry with a filter, as opposed to keeping it unchecked. */
+    public synchronized boolean covers(String filename) {
+        return filters.containsKey(filename);
+    }
+    
+    /** Records how many filtered entries a scan found to really match. */
+    public void recordMatches(long count) {
+        matched.addAndGet(count);
+    }
+    
+    public synchronized int getEntryCount() {
+        return filters.size();
+    }
+    
+    /** Closes the journal file; a later change opens it again. */
+    @Override
+    public synchronized void close() throws IOException {
+        journal.close();
+    }
+    
+    public int getBitsPerTerm() {
+        return bitsPerTerm;
+    }
+    
+    /** Memory taken by the filter bits. */
+    public synchronized long getSizeInBytes() {
+        long bytes = 0;
+        for (Filter filter : filters.values()) {
+            bytes += filter.bits.length * 8L;
+        }
+        return bytes;
+    }
+    
+    /** Entries checked against a filter by scans since the filters were loaded. */
+    public long getChecked() {
+        return checked.get();
+    }
+    
+    /**
+     * Checked entries that were read although they did not contain the
+     * keyword, either through a filter collision or because they hold all of
+     * its trigrams in other places.
+     */
+    public long getFalsePositives() {
+        return Math.max(passed.get() - matched.get(), 0);
+    }
+    
+    /**
+     * Share of checked entries without the keyword that their filter failed
+     * to skip, or -1 before any scan was filtered.
+     */
+    public double getFalsePositiveRate() {
+        long negatives = checked.get() - matched.get();
+        return negatives <= 0 ? -1 : (double) getFalsePositives() / negatives;
+    }
+    
+    /** False-positive rate of a single trigram lookup at the configured size. */
+    public double getExpectedFalsePositiveRate() {
+        int hashes = Filter.hashes(bitsPerTerm);
+        return Math.pow(1 - Math.exp(-(double) hashes / bitsPerTerm), hashes);
+    }
+    
+    /**
+     * The distinct trigrams of the keyword, or null if the filters cannot be
+     * used for it.
+     */
+    static int[] trigrams(String keyword) {
+        if (keyword.length() < 3 || !keyword.chars().allMatch(c -> c < 0x80)) {
+            return null;
+        }
+        return trigrams(keyword.getBytes(StandardCharsets.US_ASCII));
+    }
+    
+    private static int[] trigrams(byte[] content) {
+        if (content.length < 3) {
+            return new int[0];
+        }
+        int[] grams = new int[content.length - 2];
+        int gram = (fold(content[0]) & 0xFF) << 8 | fold(content[1]) & 0xFF;
+        for (int i = 2; i < content.length; i++) {
+            gram = (gram << 8 | fold(content[i]) & 0xFF) & 0xFFFFFF;
+            grams[i - 2] = gram;
+        }
+        Arrays.sort(grams);
+        int distinct = 0;
+        for (int i = 0; i < grams.length; i++) {
+            if (i == 0 || grams[i] != grams[i - 1]) {
+                grams[distinct++] = grams[i];
+            }
+        }
+        return Arrays.copyOf(grams, distinct);
+    }
+    
+    /** Same folding as EntryScanner.KeywordMatcher, so a match always implies shared trigrams. */
+    private static byte fold(byte b) {
+        return (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+    }
+    
+    /** Applies one journal record; see JournalFile.Replay for malformed ones. */
+    private boolean replay(String line) {
+        String[] parts = line.split("\t", 5);
+        if (parts[0].equals("x") && parts.length == 2) {
+            filters.remove(parts[1]);
+            return true;
+        }
+        if (!parts[0].equals("b") || parts.length != 5) {
+            return false;
+        }
+        Filter filter = Filter.decode(Long.parseLong(parts[2]), Integer.parseInt(parts[3]), parts[4]);
+        if (filter == null) {
+            return false;
+        }
+        filters.put(parts[1], filter);
+        return true;
+    }
+    
+    private void appendRecords(List<String> records) throws IOException {
+        journal.append(records);
+        journalRecords += records.size();
+        if (journalRecords > 1000 && journalRecords > filters.size() * 2L) {
+            compact();
+        }
+    }
+    
+    private void compact() throws IOException {
+        journal.rewrite(() -> filters.entrySet().stream()
+            .map(entry -> filterRecord(entry.getKey(), entry.getValue())).iterator());
+        journalRecords = filters.size();
+    }
+    
+    private static String filterRecord(String filename, Filter filter) {
+        return "b\t" + filename + "\t" + filter.version + "\t" + filter.hashes + "\t" + filter.encode();
+    }
+    
+    /** Bloom filter over the trigrams of one entry, probed with double hashing. */
+    private static final class Filter {
+        private final long version;
+        private final int hashes;
+        private final long[] bits;
+        
+        private Filter(long version, int hashes, long[] bits) {
+            this.version = version;
+            this.hashes = hashes;
+            this.bits = bits;
+        }
+        
+        static Filter of(byte[] content, int bitsPerTerm, long version) {
+            int[] grams = trigrams(content);
+            long size = Math.max((long) grams.length * bitsPerTerm, 64);
+            Filter filter = new Filter(version, hashes(bitsPerTerm), new long[(int) ((size + 63) / 64)]);
+            for (int gram : grams) {
+                filter.add(gram);
+            }
+            return filter;
+        }
+        
+        /** Whether the entry still has the content this filter was built from. */
+        boolean isFor(VersionReader versions, String filename) throws IOException {
+            try {
+                return versions.version(filename) == version;
+            } catch (FileNotFoundException e) {
+                return false;
+            }
+        }
+        
+        /** The hash count that minimizes false positives at this many bits per term. */
+        static int hashes(int bitsPerTerm) {
+            return Math.max(1, (int) Math.round(bitsPerTerm * Math.log(2)));
+        }
+        
+        private void add(int gram) {
+            long hash = mix(gram);
+            long size = bits.length * 64L;
+            for (int i = 0; i < hashes; i++) {
+                long bit = ((hash + i * (hash >>> 32 | 1)) & Long.MAX_VALUE) % size;
+                bits[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+        
+        boolean mightContainAll(int[] grams) {
+            long size = bits.length * 64L;
+            for (int gram : grams) {
+                long hash = mix(gram);
+                for (int i = 0; i < hashes; i++) {
+                    long bit = ((hash + i * (hash >>> 32 | 1)) & Long.MAX_VALUE) % size;
+                    if ((bits[(int) (bit >>> 6)] & 1L << bit) == 0) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        
+        private static long mix(int gram) {
+            long hash = gram * 0x9E3779B97F4A7C15L;
+            hash ^= hash >>> 33;
+            hash *= 0xFF51AFD7ED558CCDL;
+            hash ^= hash >>> 33;
+            return hash;
+        }
+        
+        String encode() {
+            ByteBuffer buffer = ByteBuffer.allocate(bits.length * 8);
+            buffer.asLongBuffer().put(bits);
+            return Base64.getEncoder().encodeToString(buffer.array());
+        }
+        
+        /** Decodes a stored filter, or returns null if it is cut short. */
+        static Filter decode(long version, int hashes, String encoded) {
+            ByteBuffer buffer = ByteBuffer.wrap(Base64.getDecoder().decode(encoded));
+            if (hashes < 1 || buffer.remaining() == 0 || buffer.remaining() % 8 != 0) {
+                return null;
+            }
+            long[] bits = new long[buffer.remaining() / 8];
+            buffer.asLongBuffer().get(bits);
+            return new Filter(version, hashes, bits);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,68 @@
+package com.diary;
+
+import java.util.*;
+
+/**
+ * Least-recently-used cache of search results, bounded by the total number
+ * of hits held rather than the number of queries.
+ *
+ * Every result is stored with the store generation it was computed at (see
+ * DiaryFileHandler.generation()). Writes bump the generation, which makes
+ * all older results stale; they are dropped when next looked up or evicted.
+ */
+class SearchCache<V> {
+    private final long maxHits;
+    private final LinkedHashMap<String, Cached<V>> results = new LinkedHashMap<>(16, 0.75f, true);
+    private long hits;
+    
+    SearchCache(long maxHits) {
+        this.maxHits = maxHits;
+    }
+    
+    /** The result cached for the query at this generation, or null. */
+    synchronized V get(String query, long generation) {
+        Cached<V> cached = results.get(query);
+        if (cached == null) {
+            return null;
+        }
+        if (cached.generation != generation) {
+            results.remove(query);
+            hits -= cached.hits;
+            return null;
+        }
+        return cached.value;
+    }
+    
+    synchronized void put(String query, long generation, V value, long valueHits) {
+        if (valueHits > maxHits) {
+            return;
+        }
+        Cached<V> previous = results.put(query, new Cached<>(value, generation, valueHits));
+        if (previous != null) {
+            hits -= previous.hits;
+        }
+        hits += valueHits;
+        Iterator<Cached<V>> eldest = results.values().iterator();
+        while (hits > maxHits && eldest.hasNext()) {
+            hits -= eldest.next().hits;
+            eldest.remove();
+        }
+    }
+    
+    /** Collapses whitespace, which never changes what a ranked query matches. */
+    static String normalize(String query) {
+        return query.trim().replaceAll("\\s+", " ");
+    }
+    
+    private static final class Cached<V> {
+        final V value;
+        final long generation;
+        final long hits;
+        
+        Cached(V value, long generation, long hits) {
+            this.value = value;
+            this.generation = generation;
+            this.hits = hits;
+        }
+    }
+}
\ No newline at end of file
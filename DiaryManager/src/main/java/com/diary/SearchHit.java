@@ -0,0 +1,56 @@
+package com.diary;
+
+import java.time.LocalDateTime;
+
+/**
+ * One ranked search result: the entry name, its score and, once the hit has
+ * been returned in a page, a keyword-in-context snippet. The content itself
+ * is read when the entry is opened.
+ */
+public class SearchHit implements Comparable<SearchHit> {
+    private final String filename;
+    private final double score;
+    private final Snippet snippet;
+    
+    public SearchHit(String filename, double score) {
+        this(filename, score, null);
+    }
+    
+    public SearchHit(String filename, double score, Snippet snippet) {
+        this.filename = filename;
+        this.score = score;
+        this.snippet = snippet;
+    }
+    
+    public String getFilename() {
+        return filename;
+    }
+    
+    public double getScore() {
+        return score;
+    }
+    
+    public LocalDateTime getTimestamp() {
+        return DiaryEntry.parseFilename(filename);
+    }
+    
+    /** The snippet, or null if the hit did not come from SearchResults.nextPage. */
+    public Snippet getSnippet() {
+        return snippet;
+    }
+    
+    /** Best score first; equal scores newest first. */
+    @Override
+    public int compareTo(SearchHit other) {
+        int byScore = Double.compare(other.score, score);
+        return byScore != 0 ? byScore : other.filename.compareTo(filename);
+    }
+    
+    @Override
+    public String toString() {
+        LocalDateTime timestamp = getTimestamp();
+        return String.format("[%s] score %.2f%s",
+            timestamp == null ? filename : DiaryEntry.formatTimestamp(timestamp), score,
+            snippet == null ? "" : " " + snippet);
+    }
+}
\ No newline at end of file
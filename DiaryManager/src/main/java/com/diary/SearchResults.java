@@ -0,0 +1,158 @@
+package com.diary;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Ranked search results, taken page by page, best first.
+ *
+ * The scored candidates are heapified once (linear time) and hits are popped
+ * off as pages are requested, so getting the top page of a large result set
+ * costs O(n + k log n) rather than a full sort. Each returned hit is read
+ * once, for a snippet around the query terms and, when the query needs it
+ * (phrases), to verify the match; so entries are only read for the pages
+ * actually viewed. Snippets and failed verifications are remembered, so a
+ * restart() of cached results does not read the same entries again.
+ */
+public class SearchResults {
+    @FunctionalInterface
+    public interface Verifier {
+        boolean matches(String content);
+    }
+    
+    private final List<SearchHit> hits;
+    private final PriorityQueue<SearchHit> ranked;
+    private final Set<String> terms;
+    private final DiaryIndex.EntryReader reader;
+    private final Verifier verifier;
+    private final Map<String, Snippet> snippets;
+    private final Set<String> rejected;
+    private final boolean exact;
+    private SearchHit lookahead;
+    private int returned;
+    
+    /**
+     * terms are the query terms to highlight; verifier is null when every
+     * scored entry is known to match.
+     */
+    SearchResults(Map<String, Double> scores, Set<String> terms, DiaryIndex.EntryReader reader,
+                  Verifier verifier) {
+        this(toHits(scores), terms, reader, verifier, new ConcurrentHashMap<>(),
+             ConcurrentHashMap.newKeySet());
+    }
+    
+    private SearchResults(List<SearchHit> hits, Set<String> terms, DiaryIndex.EntryReader reader,
+                          Verifier verifier, Map<String, Snippet> snippets, Set<String> rejected) {
+        this.hits = hits;
+        this.ranked = new PriorityQueue<>(hits);
+        this.terms = terms;
+        this.reader = reader;
+        this.verifier = verifier;
+        this.snippets = snippets;
+        this.rejected = rejected;
+        this.exact = verifier == null;
+    }
+    
+    static SearchResults empty() {
+        return new SearchResults(Map.of(), Set.of(), null, null);
+    }
+    
+    private static List<SearchHit> toHits(Map<String, Double> scores) {
+        List<SearchHit> hits = new ArrayList<>(scores.size());
+        for (Map.Entry<String, Double> score : scores.entrySet()) {
+            hits.add(new SearchHit(score.getKey(), score.getValue()));
+        }
+        return Collections.unmodifiableList(hits);
+    }
+    
+    /** A new stream over the same results, starting again from the best hit. */
+    SearchResults restart() {
+        return new SearchResults(hits, terms, reader, verifier, snippets, rejected);
+    }
+    
+    /** Returns up to size further hits; an empty list once all were taken. */
+    public synchronized List<SearchHit> nextPage(int size) throws IOException {
+        List<SearchHit> page = new ArrayList<>(Math.min(size, ranked.size() + 1));
+        while (page.size() < size) {
+            SearchHit hit = next(true);
+            if (hit == null) break;
+            page.add(hit);
+        }
+        returned += page.size();
+        return page;
+    }
+    
+    /**
+     * Passes over up to count hits, as for a page offset, and returns how many
+     * were passed. No snippets are made for them, and entries are only read
+     * when the results are not exact and the hit has to be verified.
+     */
+    public synchronized int skip(int count) throws IOException {
+        int skipped = 0;
+        while (skipped < count && next(false) != null) {
+            skipped++;
+        }
+        return skipped;
+    }
+    
+    public synchronized boolean hasMore() throws IOException {
+        if (lookahead == null) {
+            lookahead = next(true);
+        }
+        return lookahead != null;
+    }
+    
+    /**
+     * Number of matching entries when isExact(), otherwise an upper bound
+     * (the candidates not yet verified may still drop out).
+     */
+    public int getMatchCount() {
+        return hits.size();
+    }
+    
+    public boolean isExact() {
+        return exact;
+    }
+    
+    public synchronized int getReturnedCount() {
+        return returned;
+    }
+    
+    /** The next matching hit, with its snippet if withSnippet is set. */
+    private SearchHit next(boolean withSnippet) throws IOException {
+        if (lookahead != null) {
+            SearchHit hit = lookahead;
+            lookahead = null;
+            return hit;
+        }
+        SearchHit hit;
+        while ((hit = ranked.poll()) != null) {
+            String filename = hit.getFilename();
+            if (rejected.contains(filename)) {
+                continue;
+            }
+            Snippet snippet = snippets.get(filename);
+            if (snippet == null && (withSnippet || verifier != null)) {
+                String content;
+                try {
+                    content = reader.read(filename);
+                } catch (FileNotFoundException e) {
+                    rejected.add(filename); // Deleted since it was indexed
+                    continue;
+                }
+                if (verifier != null && !verifier.matches(content)) {
+                    rejected.add(filename);
+                    continue;
+                }
+                if (!withSnippet) {
+                    return hit;
+                }
+                snippet = Snippet.aroundTerms(content, terms);
+                snippets.put(filename, snippet);
+            }
+            return new SearchHit(filename, hit.getScore(), snippet);
+        }
+        return null;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,485 @@
+package com.diary;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log storage: entries are appended to large segment files and
+ * located through an in-memory offset index. Edits append a new version and
+ * deletes append a tombstone; segments that are mostly dead records are
+ * rewritten by a background compaction thread.
+ *
+ * Record layout: crc32, type, name length, value length, name, value.
+ * When a segment is sealed a ".hint" file with the offset of every record is
+ * written next to it, so reopening the store does not read sealed segments.
+ * A hint file that is cut short or does not cover its segment end to end is
+ * ignored and the segment is scanned instead.
+ */
+public class SegmentEntryStore implements EntryStore {
+    static final String MODE = "segments";
+    static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+    
+    private static final String SEGMENT_PREFIX = "segment_";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String HINT_SUFFIX = ".hint";
+    private static final byte PUT = 1;
+    private static final byte TOMBSTONE = 2;
+    private static final int HEADER_SIZE = 4 + 1 + 2 + 4;
+    private static final double COMPACTION_THRESHOLD = 0.5;
+    
+    private final Path dir;
+    private final long maxSegmentSize;
+    private final Map<String, Location> locations = new HashMap<>();
+    private final EntryCatalog catalog = new EntryCatalog();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final ExecutorService compactor;
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    // Held by one compaction at a time, so a requested one and a scheduled one never copy the same segment
+    private final Object compactionLock = new Object();
+    private Segment active;
+    private ByteArrayOutputStream activeHints = new ByteArrayOutputStream();
+    
+    public SegmentEntryStore(Path dir, long maxSegmentSize) throws IOException {
+        this.dir = dir;
+        this.maxSegmentSize = maxSegmentSize;
+        Files.createDirectories(dir);
+        this.compactor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "diary-segment-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        load();
+    }
+    
+    static boolean isSegmentFile(String name) {
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+    }
+    
+    @Override
+    public synchronized void write(String filename, byte[] content) throws IOException {
+        append(PUT, filename, content);
+        scheduleCompactionIfNeeded();
+    }
+    
+    /** Appends the whole batch under one lock; with sync() that is one fsync per batch. */
+    @Override
+    public synchronized void writeAll(Map<String, byte[]> entries) throws IOException {
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            append(PUT, entry.getKey(), entry.getValue());
+        }
+        scheduleCompactionIfNeeded();
+    }
+    
+    @Override
+    public synchronized void sync() throws IOException {
+        if (active != null) {
+            active.channel.force(false);
+        }
+    }
+    
+    @Override
+    public byte[] read(String filename) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            Location location;
+            Segment segment;
+            synchronized (this) {
+                location = locations.get(filename);
+                if (location == null) {
+                    throw new FileNotFoundException("Entry not found: " + filename);
+                }
+                segment = segments.get(location.segmentId);
+            }
+            try {
+                return segment.read(location.valueOffset(), location.valueLength());
+            } catch (ClosedChannelException e) {
+                // Segment was compacted away after we looked it up; retry with the new location
+                if (attempt > 0) throw e;
+            }
+        }
+    }
+    
+    @Override
+    public synchronized boolean delete(String filename) throws IOException {
+        if (!locations.containsKey(filename)) {
+            return false;
+        }
+        append(TOMBSTONE, filename, new byte[0]);
+        scheduleCompactionIfNeeded();
+        return true;
+    }
+    
+    @Override
+    public synchronized long version(String filename) throws IOException {
+        Location location = locations.get(filename);
+        if (location == null) {
+            throw new FileNotFoundException("Entry not found: " + filename);
+        }
+        return ((long) location.segmentId << 40) | location.recordOffset;
+    }
+    
+    @Override
+    public synchronized boolean exists(String filename) {
+        return locations.containsKey(filename);
+    }
+    
+    @Override
+    public EntryCatalog catalog() {
+        return catalog;
+    }
+    
+    @Override
+    public synchronized void clear() throws IOException {
+        for (Segment segment : segments.values()) {
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+            Files.deleteIfExists(hintPath(segment.id));
+        }
+        segments.clear();
+        locations.clear();
+        catalog.clear();
+        activeHints = new ByteArrayOutputStream();
+        active = null;
+    }
+    
+    @Override
+    public void refresh() {
+        // The log is only written through this store, so there is nothing to reload
+    }
+    
+    /**
+     * Rewrites the live records of sealed segments whose dead-record ratio is
+     * above the threshold, then deletes those segments.
+     */
+    public void compact() throws IOException {
+        synchronized (compactionLock) {
+            List<Segment> candidates = new ArrayList<>();
+            synchronized (this) {
+                for (Segment segment : segments.values()) {
+                    if (segment != active && segment.garbageRatio() >= COMPACTION_THRESHOLD) {
+                        candidates.add(segment);
+                    }
+                }
+            }
+            for (Segment segment : candidates) {
+                compactSegment(segment);
+            }
+        }
+    }
+    
+    private void compactSegment(Segment segment) throws IOException {
+        segment.scan((type, name, recordOffset, recordLength) -> {
+            synchronized (this) {
+                if (type == PUT) {
+                    Location current = locations.get(name);
+                    if (current != null && current.segmentId == segment.id
+                            && current.recordOffset == recordOffset) {
+                        append(PUT, name, segment.read(current.valueOffset(), current.valueLength()));
+                    }
+                } else if (!locations.containsKey(name) && segments.firstKey() < segment.id) {
+                    // An older segment may still hold a put for this name, keep the tombstone
+                    append(TOMBSTONE, name, new byte[0]);
+                }
+            }
+        });
+        synchronized (this) {
+            // The copies must be durable before the only other copy is deleted; segments
+            // rolled while copying were already forced by rollSegment
+            if (active != null) {
+                active.channel.force(false);
+            }
+            segments.remove(segment.id);
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+            Files.deleteIfExists(hintPath(segment.id));
+        }
+    }
+    
+    private void scheduleCompactionIfNeeded() {
+        if (compactionScheduled.get()) {
+            return;
+        }
+        for (Segment segment : segments.values()) {
+            if (segment != active && segment.garbageRatio() >= COMPACTION_THRESHOLD) {
+                if (compactionScheduled.compareAndSet(false, true)) {
+                    compactor.submit(() -> {
+                        try {
+                            compact();
+                        } catch (IOException e) {
+                            System.err.println("Warning: Segment compaction failed: " + e.getMessage());
+                        } finally {
+                            compactionScheduled.set(false);
+                        }
+                    });
+                }
+                return;
+            }
+        }
+    }
+    
+    private void append(byte type, String name, byte[] value) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int recordLength = HEADER_SIZE + nameBytes.length + value.length;
+        if (active == null) {
+            active = openSegment(1);
+        } else if (active.size > 0 && active.size + recordLength > maxSegmentSize) {
+            rollSegment();
+        }
+        
+        ByteBuffer record = ByteBuffer.allocate(recordLength);
+        record.position(4);
+        record.put(type).putShort((short) nameBytes.length).putInt(value.length)
+              .put(nameBytes).put(value);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, recordLength - 4);
+        record.putInt(0, (int) crc.getValue());
+        record.flip();
+        
+        long offset = active.size;
+        while (record.hasRemaining()) {
+            active.channel.write(record, offset + record.position());
+        }
+        active.size += recordLength;
+        apply(type, name, new Location(active.id, offset, recordLength, nameBytes.length));
+        writeHint(activeHints, type, nameBytes, offset, recordLength);
+    }
+    
+    private void apply(byte type, String name, Location location) {
+        Location previous = type == PUT ? locations.put(name, location) : locations.remove(name);
+        if (previous != null) {
+            Segment segment = segments.get(previous.segmentId);
+            if (segment != null) {
+                segment.liveBytes -= previous.recordLength;
+            }
+        }
+        if (type == PUT) {
+            segments.get(location.segmentId).liveBytes += location.recordLength;
+            catalog.added(name);
+        } else {
+            catalog.removed(name);
+        }
+    }
+    
+    private void rollSegment() throws IOException {
+        // sync() only forces the active segment, so seal this one durably first
+        active.channel.force(false);
+        Path hintPath = hintPath(active.id);
+        Path tempPath = hintPath.resolveSibling(hintPath.getFileName() + ".tmp");
+        Files.write(tempPath, activeHints.toByteArray());
+        Files.move(tempPath, hintPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        activeHints = new ByteArrayOutputStream();
+        active = openSegment(active.id + 1);
+    }
+    
+    private void load() throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                ids.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                    name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        Collections.sort(ids);
+        
+        for (int i = 0; i < ids.size(); i++) {
+            Segment segment = openSegment(ids.get(i));
+            boolean last = i == ids.size() - 1;
+            Path hintPath = hintPath(segment.id);
+            if (last || !Files.exists(hintPath) || !loadHints(segment, hintPath)) {
+                long validLength = segment.scan((type, name, recordOffset, recordLength) -> {
+                    apply(type, name, new Location(segment.id, recordOffset, recordLength,
+                        name.getBytes(StandardCharsets.UTF_8).length));
+                    if (last) {
+                        writeHint(activeHints, type, name.getBytes(StandardCharsets.UTF_8),
+                                  recordOffset, recordLength);
+                    }
+                });
+                if (validLength < segment.size) {
+                    System.err.println("Warning: Truncating damaged tail of " + segment.path.getFileName());
+                    segment.channel.truncate(validLength);
+                    segment.size = validLength;
+                }
+            }
+            active = segment;
+        }
+    }
+    
+    /**
+     * Applies the records listed in a sealed segment's hint file. Returns
+     * false without applying any if the file is cut short or its records do
+     * not follow each other from the start of the segment to its end.
+     */
+    private boolean loadHints(Segment segment, Path hintPath) throws IOException {
+        List<Byte> types = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        List<Location> hinted = new ArrayList<>();
+        long end = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(hintPath)))) {
+            while (in.available() > 0) {
+                byte type = in.readByte();
+                byte[] nameBytes = new byte[in.readUnsignedShort()];
+                in.readFully(nameBytes);
+                long recordOffset = in.readLong();
+                int recordLength = in.readInt();
+                if (recordOffset != end || (type != PUT && type != TOMBSTONE)) {
+                    return false;
+                }
+                end += recordLength;
+                types.add(type);
+                names.add(new String(nameBytes, StandardCharsets.UTF_8));
+                hinted.add(new Location(segment.id, recordOffset, recordLength, nameBytes.length));
+            }
+        } catch (EOFException e) {
+            return false;
+        }
+        if (end != segment.size) {
+            return false;
+        }
+        for (int i = 0; i < hinted.size(); i++) {
+            apply(types.get(i), names.get(i), hinted.get(i));
+        }
+        return true;
+    }
+    
+    private static void writeHint(ByteArrayOutputStream hints, byte type, byte[] nameBytes,
+                                  long recordOffset, int recordLength) {
+        DataOutputStream out = new DataOutputStream(hints);
+        try {
+            out.writeByte(type);
+            out.writeShort(nameBytes.length);
+            out.write(nameBytes);
+            out.writeLong(recordOffset);
+            out.writeInt(recordLength);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    private Segment openSegment(int id) throws IOException {
+        Path path = dir.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+        Segment segment = new Segment(id, path);
+        segments.put(id, segment);
+        return segment;
+    }
+    
+    private Path hintPath(int id) {
+        return dir.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, id, HINT_SUFFIX));
+    }
+    
+    @Override
+    public void close() throws IOException {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+        }
+    }
+    
+    private static final class Location {
+        final int segmentId;
+        final long recordOffset;
+        final int recordLength;
+        final int nameLength;
+        
+        Location(int segmentId, long recordOffset, int recordLength, int nameLength) {
+            this.segmentId = segmentId;
+            this.recordOffset = recordOffset;
+            this.recordLength = recordLength;
+            this.nameLength = nameLength;
+        }
+        
+        long valueOffset() {
+            return recordOffset + HEADER_SIZE + nameLength;
+        }
+        
+        int valueLength() {
+            return recordLength - HEADER_SIZE - nameLength;
+        }
+    }
+    
+    @FunctionalInterface
+    private interface RecordVisitor {
+        void visit(byte type, String name, long recordOffset, int recordLength) throws IOException;
+    }
+    
+    private static final class Segment {
+        final int id;
+        final Path path;
+        final FileChannel channel;
+        long size;
+        long liveBytes;
+        
+        Segment(int id, Path path) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+        
+        double garbageRatio() {
+            return size == 0 ? 0 : (double) (size - liveBytes) / size;
+        }
+        
+        byte[] read(long offset, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new EOFException("Truncated record in " + path.getFileName());
+                }
+            }
+            return buffer.array();
+        }
+        
+        /**
+         * Visits every intact record in order and returns the length of the
+         * valid prefix of the segment.
+         */
+        long scan(RecordVisitor visitor) throws IOException {
+            long offset = 0;
+            long end = channel.size();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Files.newInputStream(path), 1 << 16))) {
+                while (offset + HEADER_SIZE <= end) {
+                    int storedCrc = in.readInt();
+                    byte type = in.readByte();
+                    int nameLength = in.readUnsignedShort();
+                    int valueLength = in.readInt();
+                    int recordLength = HEADER_SIZE + nameLength + valueLength;
+                    if (valueLength < 0 || offset + recordLength > end) {
+                        break;
+                    }
+                    byte[] body = new byte[nameLength + valueLength];
+                    in.readFully(body);
+                    
+                    CRC32 crc = new CRC32();
+                    crc.update(type);
+                    crc.update(ByteBuffer.allocate(6).putShort((short) nameLength).putInt(valueLength).array());
+                    crc.update(body);
+                    if ((int) crc.getValue() != storedCrc) {
+                        break;
+                    }
+                    visitor.visit(type, new String(body, 0, nameLength, StandardCharsets.UTF_8),
+                                  offset, recordLength);
+                    offset += recordLength;
+                }
+            } catch (EOFException e) {
+                // Partial record at the end of the segment
+            }
+            return offset;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,135 @@
+package com.diary;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A keyword-in-context window cut from an entry: a few words either side of
+ * the first match, with the character ranges of every match inside the
+ * window so callers can highlight them.
+ */
+public class Snippet {
+    static final int CONTEXT = 40;
+    
+    private final String text;
+    private final int[] starts;
+    private final int[] ends;
+    
+    private Snippet(String text, List<int[]> matches) {
+        this.text = text;
+        this.starts = new int[matches.size()];
+        this.ends = new int[matches.size()];
+        for (int i = 0; i < matches.size(); i++) {
+            starts[i] = matches.get(i)[0];
+            ends[i] = matches.get(i)[1];
+        }
+    }
+    
+    public String getText() {
+        return text;
+    }
+    
+    public int getMatchCount() {
+        return starts.length;
+    }
+    
+    public int getMatchStart(int i) {
+        return starts[i];
+    }
+    
+    public int getMatchEnd(int i) {
+        return ends[i];
+    }
+    
+    /** The text with every match wrapped in the given markers. */
+    public String highlight(String before, String after) {
+        StringBuilder out = new StringBuilder(text.length() + starts.length * (before.length() + after.length()));
+        int pos = 0;
+        for (int i = 0; i < starts.length; i++) {
+            out.append(text, pos, starts[i]).append(before).append(text, starts[i], ends[i]).append(after);
+            pos = ends[i];
+        }
+        return out.append(text, pos, text.length()).toString();
+    }
+    
+    @Override
+    public String toString() {
+        return text;
+    }
+    
+    /**
+     * Cuts the window around a keyword found at a byte offset, decoding only
+     * the bytes around it. Used by the keyword scan, which already knows
+     * where the first match is.
+     */
+    static Snippet aroundKeyword(byte[] content, int offset, String keyword) {
+        // 4 bytes per character is the UTF-8 worst case
+        int from = Math.max(0, offset - CONTEXT * 4);
+        int to = Math.min(content.length, offset + keyword.getBytes(StandardCharsets.UTF_8).length + CONTEXT * 4);
+        while (from > 0 && (content[from] & 0xC0) == 0x80) from++;
+        while (to < content.length && (content[to] & 0xC0) == 0x80) to--;
+        String region = new String(content, from, to - from, StandardCharsets.UTF_8);
+        int first = new String(content, from, offset - from, StandardCharsets.UTF_8).length();
+        
+        List<int[]> matches = new ArrayList<>();
+        for (int i = 0; i + keyword.length() <= region.length(); i++) {
+            if (region.regionMatches(true, i, keyword, 0, keyword.length())) {
+                matches.add(new int[] {i, i + keyword.length()});
+                i += Math.max(keyword.length(), 1) - 1;
+            }
+        }
+        return cut(region, from > 0, to < content.length, first, first + keyword.length(), matches);
+    }
+    
+    /**
+     * Cuts the window around the first occurrence of any of the terms (as
+     * produced by DiaryIndex.tokenize). Used for ranked results, which know
+     * the matching terms but not their positions.
+     */
+    static Snippet aroundTerms(String content, Set<String> terms) {
+        List<int[]> matches = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= content.length(); ) {
+            int cp = i < content.length() ? content.codePointAt(i) : ' ';
+            if (DiaryIndex.isTermChar(cp)) {
+                if (start < 0) start = i;
+            } else if (start >= 0) {
+                if (terms.contains(content.substring(start, i).toLowerCase())) {
+                    matches.add(new int[] {start, i});
+                }
+                start = -1;
+            }
+            i += i < content.length() ? Character.charCount(cp) : 1;
+        }
+        if (matches.isEmpty()) {
+            return cut(content, false, false, 0, 0, matches);
+        }
+        return cut(content, false, false, matches.get(0)[0], matches.get(0)[1], matches);
+    }
+    
+    /**
+     * Takes about CONTEXT characters either side of [matchStart, matchEnd),
+     * widened to whole words, and keeps the matches that fall inside.
+     * clippedLeft/Right say whether text was already dropped before or after.
+     */
+    private static Snippet cut(String text, boolean clippedLeft, boolean clippedRight,
+                               int matchStart, int matchEnd, List<int[]> matches) {
+        int from = Math.max(0, matchStart - CONTEXT);
+        int to = Math.min(text.length(), matchEnd + CONTEXT);
+        while (from > 0 && !Character.isWhitespace(text.charAt(from - 1)) && matchStart - from < CONTEXT + 15) from--;
+        while (to < text.length() && !Character.isWhitespace(text.charAt(to)) && to - matchEnd < CONTEXT + 15) to++;
+        if (from > 0 && Character.isLowSurrogate(text.charAt(from))) from--;
+        if (to < text.length() && Character.isLowSurrogate(text.charAt(to))) to++;
+        
+        String prefix = clippedLeft || from > 0 ? "..." : "";
+        String suffix = clippedRight || to < text.length() ? "..." : "";
+        String window = text.substring(from, to).replaceAll("\\s", " ");
+        List<int[]> inside = new ArrayList<>();
+        for (int[] match : matches) {
+            if (match[0] >= from && match[1] <= to) {
+                inside.add(new int[] {match[0] - from + prefix.length(), match[1] - from + prefix.length()});
+            }
+        }
+        return new Snippet(prefix + window + suffix, inside);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,37 @@
+package com.diary;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Copies every entry from one storage backend to another, e.g. when the
+ * storage mode is switched between one-file-per-entry and segment logs.
+ */
+public class StoreMigration {
+    
+    private StoreMigration() {
+    }
+    
+    /**
+     * Copies all entries from source to target and then clears the source.
+     * The source is left untouched if any entry fails to copy.
+     */
+    public static int migrate(EntryStore source, EntryStore target) throws IOException {
+        List<String> filenames = source.list();
+        int copied = 0;
+        for (String filename : filenames) {
+            target.write(filename, source.read(filename));
+            copied++;
+            if (copied % 10000 == 0) {
+                System.out.println("Migrated " + copied + " of " + filenames.size() + " entries...");
+            }
+        }
+        for (String filename : filenames) {
+            if (!target.exists(filename)) {
+                throw new IOException("Migration incomplete, entry missing in target: " + filename);
+            }
+        }
+        source.clear();
+        return copied;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,64 @@
+package com.diary;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks shared out by key hash, so writes to different
+ * entries rarely wait for each other while writes to the same entry are
+ * serialized, without keeping a lock per entry.
+ */
+class StripedLocks {
+    private final ReentrantLock[] locks;
+    
+    /** stripes is rounded up to a power of two. */
+    StripedLocks(int stripes) {
+        int size = Integer.highestOneBit(Math.max(stripes - 1, 1)) << 1;
+        locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+    
+    ReentrantLock lockFor(String key) {
+        return locks[stripe(key)];
+    }
+    
+    /**
+     * Locks the stripes of all keys, always in stripe order so that two
+     * batches cannot deadlock, and returns them for unlockAll.
+     */
+    List<ReentrantLock> lockAll(Collection<String> keys) {
+        SortedSet<Integer> stripes = new TreeSet<>();
+        for (String key : keys) {
+            stripes.add(stripe(key));
+        }
+        List<ReentrantLock> held = new ArrayList<>(stripes.size());
+        for (int stripe : stripes) {
+            locks[stripe].lock();
+            held.add(locks[stripe]);
+        }
+        return held;
+    }
+    
+    /** Locks every stripe, in stripe order, and returns them for unlockAll. */
+    List<ReentrantLock> lockEvery() {
+        List<ReentrantLock> held = new ArrayList<>(locks.length);
+        for (ReentrantLock lock : locks) {
+            lock.lock();
+            held.add(lock);
+        }
+        return held;
+    }
+    
+    private int stripe(String key) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (locks.length - 1);
+    }
+    
+    static void unlockAll(List<ReentrantLock> held) {
+        for (int i = held.size() - 1; i >= 0; i--) {
+            held.get(i).unlock();
+        }
+    }
+}
\ No newline at end of file
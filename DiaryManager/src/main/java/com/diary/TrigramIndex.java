@@ -0,0 +1,118 @@
+package com.diary;
+
+import java.util.*;
+
+/**
+ * Trigram index over the terms of the search index, used to find terms
+ * within a small edit distance of a (possibly misspelled) query word.
+ *
+ * Terms are padded with two spaces on each side, so a word of n characters
+ * has n + 2 trigrams and one edit destroys at most three of them. A term
+ * within distance d must therefore share at least (distinct trigrams of the
+ * word) - 3d trigrams with it; only terms passing that count (and the length
+ * filter) are checked with a bounded Levenshtein distance.
+ */
+class TrigramIndex {
+    private final Map<String, Set<String>> grams = new HashMap<>();
+    
+    TrigramIndex(Collection<String> terms) {
+        for (String term : terms) {
+            add(term);
+        }
+    }
+    
+    void add(String term) {
+        for (String gram : trigrams(term)) {
+            grams.computeIfAbsent(gram, k -> new HashSet<>()).add(term);
+        }
+    }
+    
+    void remove(String term) {
+        for (String gram : trigrams(term)) {
+            Set<String> terms = grams.get(gram);
+            if (terms != null) {
+                terms.remove(term);
+                if (terms.isEmpty()) {
+                    grams.remove(gram);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Terms within maxDistance edits of the word, with their distance.
+     * allTerms is only walked when the word is too short for the trigram
+     * filter to prune anything.
+     */
+    Map<String, Integer> similar(String word, int maxDistance, Collection<String> allTerms) {
+        Set<String> wordGrams = trigrams(word);
+        int threshold = wordGrams.size() - 3 * maxDistance;
+        Collection<String> candidates;
+        if (threshold <= 0) {
+            candidates = allTerms;
+        } else {
+            Map<String, Integer> shared = new HashMap<>();
+            for (String gram : wordGrams) {
+                Set<String> terms = grams.get(gram);
+                if (terms != null) {
+                    for (String term : terms) {
+                        shared.merge(term, 1, Integer::sum);
+                    }
+                }
+            }
+            candidates = new ArrayList<>();
+            for (Map.Entry<String, Integer> count : shared.entrySet()) {
+                if (count.getValue() >= threshold) {
+                    candidates.add(count.getKey());
+                }
+            }
+        }
+        
+        Map<String, Integer> result = new HashMap<>();
+        for (String term : candidates) {
+            if (Math.abs(term.length() - word.length()) > maxDistance) continue;
+            int distance = distance(word, term, maxDistance);
+            if (distance <= maxDistance) {
+                result.put(term, distance);
+            }
+        }
+        return result;
+    }
+    
+    private static Set<String> trigrams(String term) {
+        String padded = "  " + term + "  ";
+        Set<String> result = new HashSet<>();
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            result.add(padded.substring(i, i + 3));
+        }
+        return result;
+    }
+    
+    /**
+     * Levenshtein distance, giving up with max + 1 as soon as every cell of
+     * a row exceeds max.
+     */
+    static int distance(String a, String b, int max) {
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int rowMin = current[0];
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (rowMin > max) {
+                return max + 1;
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return Math.min(previous[b.length()], max + 1);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,354 @@
+package com.diary;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Wraps another store and gives long readers (backups, search scans)
+ * snapshots: consistent views of the entries as of one point in time, while
+ * writers go on changing the store without waiting for them.
+ *
+ * Every change is numbered from a logical clock and a snapshot remembers the
+ * clock value it was taken at. While any snapshot is open, a write or delete
+ * first keeps the entry's previous content (or the fact that it did not
+ * exist) in memory, tagged with the number of the change that replaced it.
+ * A snapshot reads an entry from the oldest kept version replaced after it
+ * was taken, or from the store if there is none. When a snapshot is closed,
+ * versions that no remaining snapshot can see are dropped, so memory is only
+ * held for what changed while snapshots were open.
+ */
+public class VersionedEntryStore implements EntryStore {
+    private final EntryStore delegate;
+    private final StripedLocks locks = new StripedLocks(64);
+    private final Map<String, Deque<Version>> retained = new ConcurrentHashMap<>();
+    private final TreeMap<Long, Integer> openSnapshots = new TreeMap<>();  // guarded by this
+    private final TreeSet<Long> runningChanges = new TreeSet<>();         // guarded by this
+    private long clock;                                                   // guarded by this
+    
+    public VersionedEntryStore(EntryStore delegate) {
+        this.delegate = delegate;
+    }
+    
+    @FunctionalInterface
+    private interface Change<T> {
+        T apply() throws IOException;
+    }
+    
+    @Override
+    public void write(String filename, byte[] content) throws IOException {
+        change(List.of(filename), () -> {
+            delegate.write(filename, content);
+            return null;
+        });
+    }
+    
+    @Override
+    public void writeAll(Map<String, byte[]> entries) throws IOException {
+        change(entries.keySet(), () -> {
+            delegate.writeAll(entries);
+            return null;
+        });
+    }
+    
+    @Override
+    public boolean delete(String filename) throws IOException {
+        return change(List.of(filename), () -> delegate.delete(filename));
+    }
+    
+    @Override
+    public void clear() throws IOException {
+        change(delegate.list(), () -> {
+            delegate.clear();
+            return null;
+        });
+    }
+    
+    /**
+     * Runs a change to the given entries under their locks, keeping their
+     * current content first if a snapshot is open.
+     */
+    private <T> T change(Collection<String> filenames, Change<T> change) throws IOException {
+        List<ReentrantLock> held = locks.lockAll(filenames);
+        try {
+            long number;
+            long newestSnapshot;
+            synchronized (this) {
+                number = ++clock;
+                newestSnapshot = openSnapshots.isEmpty() ? -1 : openSnapshots.lastKey();
+                runningChanges.add(number);
+            }
+            try {
+                if (newestSnapshot >= 0) {
+                    for (String filename : filenames) {
+                        retain(filename, number, newestSnapshot);
+                    }
+                }
+                return change.apply();
+            } finally {
+                synchronized (this) {
+                    runningChanges.remove(number);
+                    notifyAll();
+                }
+            }
+        } finally {
+            StripedLocks.unlockAll(held);
+        }
+    }
+    
+    private void retain(String filename, long replacedBy, long newestSnapshot) throws IOException {
+        Deque<Version> versions = retained.get(filename);
+        Version last = versions == null ? null : versions.peekLast();
+        if (last != null && last.replacedBy > newestSnapshot) {
+            return; // The current content was written after every open snapshot, so none can see it
+        }
+        Version version = delegate.exists(filename)
+            ? new Version(replacedBy, delegate.read(filename), delegate.version(filename))
+            : new Version(replacedBy, null, 0);
+        retained.compute(filename, (name, kept) -> {
+            Deque<Version> result = kept != null ? kept : new ConcurrentLinkedDeque<>();
+            result.addLast(version);
+            return result;
+        });
+        // The snapshots open when this change started may have closed before the version was kept
+        trim(filename, oldestSnapshot());
+    }
+    
+    /**
+     * Takes a snapshot of the store as it is now. Changes that are still
+     * being written when it is taken are waited for and included; changes
+     * started afterwards never wait for it.
+     */
+    @Override
+    public Snapshot snapshot() throws IOException {
+        long taken;
+        synchronized (this) {
+            taken = clock;
+            openSnapshots.merge(taken, 1, Integer::sum);
+            while (!runningChanges.isEmpty() && runningChanges.first() <= taken) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    release(taken);
+                    throw new InterruptedIOException("Snapshot interrupted");
+                }
+            }
+        }
+        return new VersionSnapshot(taken);
+    }
+    
+    /** Closes a snapshot and drops the versions no open snapshot can see any more. */
+    private void release(long taken) {
+        synchronized (this) {
+            openSnapshots.computeIfPresent(taken, (at, count) -> count > 1 ? count - 1 : null);
+        }
+        long oldest = oldestSnapshot();
+        for (String filename : retained.keySet()) {
+            trim(filename, oldest);
+        }
+    }
+    
+    /**
+     * Versions replaced at or before this are seen by no open snapshot. With
+     * none open it is the clock, not unbounded: a snapshot taken after this
+     * returns still needs the versions that later changes keep for it.
+     */
+    private synchronized long oldestSnapshot() {
+        return openSnapshots.isEmpty() ? clock : openSnapshots.firstKey();
+    }
+    
+    /** Drops an entry's versions replaced before the oldest open snapshot was taken. */
+    private void trim(String filename, long oldest) {
+        retained.computeIfPresent(filename, (name, versions) -> {
+            while (!versions.isEmpty() && versions.peekFirst().replacedBy <= oldest) {
+                versions.pollFirst();
+            }
+            return versions.isEmpty() ? null : versions;
+        });
+    }
+    
+    /** Number of entry versions currently kept for open snapshots. */
+    public int retainedVersions() {
+        int count = 0;
+        for (Deque<Version> versions : retained.values()) {
+            count += versions.size();
+        }
+        return count;
+    }
+    
+    @Override
+    public byte[] read(String filename) throws IOException {
+        return delegate.read(filename);
+    }
+    
+    @Override
+    public long version(String filename) throws IOException {
+        return delegate.version(filename);
+    }
+    
+    @Override
+    public boolean exists(String filename) throws IOException {
+        return delegate.exists(filename);
+    }
+    
+    @Override
+    public EntryCatalog catalog() {
+        return delegate.catalog();
+    }
+    
+    @Override
+    public List<String> list() throws IOException {
+        return delegate.list();
+    }
+    
+    @Override
+    public List<String> page(int offset, int limit) throws IOException {
+        return delegate.page(offset, limit);
+    }
+    
+    @Override
+    public int size() throws IOException {
+        return delegate.size();
+    }
+    
+    @Override
+    public void sync() throws IOException {
+        delegate.sync();
+    }
+    
+    @Override
+    public void refresh() throws IOException {
+        delegate.refresh();
+    }
+    
+    @Override
+    public int relayout() throws IOException {
+        return delegate.relayout();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+    
+    /** The content an entry had until change replacedBy; null content means it did not exist. */
+    private static final class Version {
+        final long replacedBy;
+        final byte[] content;
+        final long storeVersion;
+        
+        Version(long replacedBy, byte[] content, long storeVersion) {
+            this.replacedBy = replacedBy;
+            this.content = content;
+            this.storeVersion = storeVersion;
+        }
+    }
+    
+    private final class VersionSnapshot implements Snapshot {
+        private final long taken;
+        private boolean closed;
+        
+        VersionSnapshot(long taken) {
+            this.taken = taken;
+        }
+        
+        /** The version this snapshot sees, or null if the entry is unchanged since. */
+        private Version visible(String filename) {
+            Deque<Version> versions = retained.get(filename);
+            if (versions != null) {
+                for (Version version : versions) {
+                    if (version.replacedBy > taken) {
+                        return version;
+                    }
+                }
+            }
+            return null;
+        }
+        
+        @Override
+        public List<String> list() throws IOException {
+            List<String> current = delegate.list();
+            Set<String> names = new HashSet<>(current);
+            List<String> result = new ArrayList<>(current.size());
+            for (String filename : current) {
+                Version version = visible(filename);
+                if (version == null || version.content != null) {
+                    result.add(filename);
+                }
+            }
+            // Entries deleted since the snapshot was taken
+            boolean added = false;
+            for (String filename : retained.keySet()) {
+                Version version = visible(filename);
+                if (!names.contains(filename) && version != null && version.content != null) {
+                    result.add(filename);
+                    added = true;
+                }
+            }
+            if (added) {
+                result.sort(Comparator.reverseOrder());
+            }
+            return result;
+        }
+        
+        @Override
+        public byte[] read(String filename) throws IOException {
+            Version version = visible(filename);
+            if (version == null) {
+                byte[] content;
+                try {
+                    content = delegate.read(filename);
+                } catch (FileNotFoundException e) {
+                    content = null;
+                }
+                // A change made after the snapshot keeps the old version before it touches the store
+                version = visible(filename);
+                if (version == null) {
+                    if (content == null) {
+                        throw new FileNotFoundException("Entry not found: " + filename);
+                    }
+                    return content;
+                }
+            }
+            if (version.content == null) {
+                throw new FileNotFoundException("Entry not found: " + filename);
+            }
+            return version.content;
+        }
+        
+        @Override
+        public long version(String filename) throws IOException {
+            Version version = visible(filename);
+            if (version == null) {
+                long current;
+                try {
+                    current = delegate.version(filename);
+                } catch (FileNotFoundException e) {
+                    current = -1;
+                }
+                version = visible(filename);
+                if (version == null) {
+                    if (current < 0) {
+                        throw new FileNotFoundException("Entry not found: " + filename);
+                    }
+                    return current;
+                }
+            }
+            if (version.content == null) {
+                throw new FileNotFoundException("Entry not found: " + filename);
+            }
+            return version.storeVersion;
+        }
+        
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                release(taken);
+            }
+        }
+    }
+}
\ No newline at end of file
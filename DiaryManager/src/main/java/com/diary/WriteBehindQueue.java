@@ -0,0 +1,228 @@
+package com.diary;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Write-behind path for saves: entries are queued and a single writer thread
+ * commits them in groups, so a burst of saves costs one store batch (and,
+ * with "fsync" durability, one sync) instead of one synchronous write each.
+ *
+ * A batch is committed once it holds the configured number of entries or
+ * the linger time since its first entry has passed. Durability "fsync"
+ * completes a save's future only after its batch is on stable storage;
+ * "flush" completes it once the batch is written and leaves syncing to the
+ * operating system. Entries waiting in the queue are still readable through
+ * pending().
+ *
+ * Submits and flushes hold the shared side of a lock while they queue, and
+ * close() takes the exclusive side to queue a close marker, so nothing can
+ * be queued behind the marker and left waiting.
+ */
+public class WriteBehindQueue implements Closeable {
+    static final String DURABILITY_FSYNC = "fsync";
+    static final String DURABILITY_FLUSH = "flush";
+    
+    public interface BatchWriter {
+        void write(List<DiaryEntry> batch, boolean sync) throws IOException;
+    }
+    
+    private final BatchWriter writer;
+    private final int maxBatch;
+    private final long lingerNanos;
+    private final boolean sync;
+    private final BlockingQueue<Pending> queue;
+    private final Map<String, DiaryEntry> pending = new ConcurrentHashMap<>();
+    private final Thread thread;
+    private final ReentrantReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private final Pending closeMarker = new Pending(null);
+    private boolean closed;
+    
+    public WriteBehindQueue(BatchWriter writer, int maxBatch, long lingerMillis, String durability)
+            throws IOException {
+        if (!durability.equals(DURABILITY_FSYNC) && !durability.equals(DURABILITY_FLUSH)) {
+            throw new IOException("Unknown write durability: " + durability);
+        }
+        this.writer = writer;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, lingerMillis));
+        this.sync = durability.equals(DURABILITY_FSYNC);
+        // Bounded so a runaway producer waits for the writer instead of filling the heap
+        this.queue = new LinkedBlockingQueue<>(this.maxBatch * 16);
+        this.thread = new Thread(this::writeLoop, "diary-write-behind");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+    
+    /**
+     * Queues an entry; the future completes with it once its batch has been
+     * committed with the configured durability. Returns null if the queue is
+     * closed, so the caller can save the entry another way.
+     */
+    public CompletableFuture<DiaryEntry> submit(DiaryEntry entry) {
+        Pending item = new Pending(entry);
+        closeLock.readLock().lock();
+        try {
+            if (closed) {
+                return null;
+            }
+            pending.put(entry.getFilename(), entry);
+            queue.put(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pending.remove(entry.getFilename(), entry);
+            item.future.completeExceptionally(new InterruptedIOException("Save interrupted"));
+        } finally {
+            closeLock.readLock().unlock();
+        }
+        return item.future;
+    }
+    
+    /** The queued, not yet committed version of an entry, or null. */
+    public DiaryEntry pending(String filename) {
+        return pending.get(filename);
+    }
+    
+    /**
+     * Waits until everything queued before this call has been committed.
+     * Used before operations that must see every save, such as deletes,
+     * backups and switching stores.
+     */
+    public void flush() throws IOException {
+        Pending barrier = new Pending(null);
+        try {
+            boolean queued;
+            closeLock.readLock().lock();
+            try {
+                queued = !closed;
+                if (queued) {
+                    queue.put(barrier);
+                }
+            } finally {
+                closeLock.readLock().unlock();
+            }
+            if (!queued) {
+                // Everything queued before close() is committed by the time the writer stops
+                thread.join();
+                return;
+            }
+            barrier.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Flush interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Flush failed", e.getCause());
+        }
+    }
+    
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>(maxBatch);
+        try {
+            boolean closing = false;
+            while (!closing) {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + lingerNanos;
+                // A barrier closes the batch so flush() returns as soon as possible
+                while (batch.size() < maxBatch && batch.get(batch.size() - 1).entry != null) {
+                    Pending next = queue.poll();
+                    if (next == null) {
+                        long wait = deadline - System.nanoTime();
+                        if (wait <= 0 || (next = queue.poll(wait, TimeUnit.NANOSECONDS)) == null) {
+                            break;
+                        }
+                    }
+                    batch.add(next);
+                }
+                closing = batch.get(batch.size() - 1) == closeMarker;
+                commit(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // Not expected, the thread is never interrupted; fail what is left below
+        }
+        // Nothing is queued behind the marker, but no caller may be left waiting on a future
+        batch.addAll(queue);
+        for (Pending item : batch) {
+            if (item.entry != null) {
+                pending.remove(item.entry.getFilename(), item.entry);
+            }
+            item.future.completeExceptionally(new IOException("Write queue is closed"));
+        }
+    }
+    
+    private void commit(List<Pending> batch) {
+        List<DiaryEntry> entries = new ArrayList<>(batch.size());
+        for (Pending item : batch) {
+            if (item.entry != null) {
+                entries.add(item.entry);
+            }
+        }
+        Exception failure = null;
+        if (!entries.isEmpty()) {
+            try {
+                writer.write(entries, sync);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Warning: Could not save " + entries.size() + " queued entries: " + e.getMessage());
+                failure = e;
+            }
+        }
+        for (Pending item : batch) {
+            if (item.entry != null) {
+                pending.remove(item.entry.getFilename(), item.entry);
+            }
+            if (failure != null && item.entry != null) {
+                item.future.completeExceptionally(failure);
+            } else {
+                item.future.complete(item.entry);
+            }
+        }
+    }
+    
+    /**
+     * Commits everything still queued and stops the writer thread. The thread
+     * ends on a close marker rather than an interrupt, which would close the
+     * store's channels if it arrived during a write.
+     */
+    @Override
+    public void close() throws IOException {
+        closeLock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            // The writer keeps draining, so this cannot wait long; given up, the thread would never end
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    queue.put(closeMarker);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Close interrupted");
+        }
+    }
+    
+    private static final class Pending {
+        final DiaryEntry entry;
+        final CompletableFuture<DiaryEntry> future = new CompletableFuture<>();
+        
+        Pending(DiaryEntry entry) {
+            this.entry = entry;
+        }
+    }
+}
\ No newline at end of file
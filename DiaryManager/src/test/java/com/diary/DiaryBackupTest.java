@@ -0,0 +1,120 @@
+package com.diary;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DiaryBackupTest {
+    @TempDir
+    Path dir;
+    
+    @Test
+    void incrementalChainOfFileStoreRestores() throws Exception {
+        try (EntryStore store = new FileEntryStore(dir.resolve("entries"));
+             EntryStore restored = new FileEntryStore(dir.resolve("restored"))) {
+            assertChainRestores(store, restored);
+        }
+    }
+    
+    @Test
+    void incrementalChainOfSegmentStoreRestores() throws Exception {
+        try (EntryStore store = new SegmentEntryStore(dir.resolve("entries"),
+                                                      SegmentEntryStore.DEFAULT_SEGMENT_SIZE);
+             EntryStore restored = new SegmentEntryStore(dir.resolve("restored"),
+                                                         SegmentEntryStore.DEFAULT_SEGMENT_SIZE)) {
+            assertChainRestores(store, restored);
+        }
+    }
+    
+    /**
+     * Takes a full backup and three incrementals with edits, deletes, new
+     * entries, rewrites of the same content and deletes followed by
+     * re-creation in between. Every backup in the chain must restore exactly
+     * the entries it captured, both over the live store and into an empty one.
+     */
+    private void assertChainRestores(EntryStore store, EntryStore restored) throws Exception {
+        Path backupDir = Files.createDirectories(dir.resolve("backups"));
+        DiaryBackup backup = new DiaryBackup(store, backupDir, 2, 6);
+        Map<String, String> contents = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            put(store, contents, name(i), "entry " + i);
+        }
+        List<Path> archives = new ArrayList<>();
+        List<Map<String, String>> captured = new ArrayList<>();
+        archives.add(backup.createFull(DiaryBackup.ProgressListener.NONE));
+        captured.add(new HashMap<>(contents));
+        
+        for (int round = 1; round <= 3; round++) {
+            // File store versions are modification times in milliseconds
+            Thread.sleep(5);
+            for (int i = round; i < 100; i += 7) {
+                put(store, contents, name(i), "edited " + i + " in round " + round);
+            }
+            for (int i = round * 2; i < 100; i += 11) {
+                assertEquals(contents.remove(name(i)) != null, store.delete(name(i)));
+            }
+            for (int i = 0; i < 5; i++) {
+                put(store, contents, name(100 * round + 1000 + i), "added in round " + round);
+            }
+            // Deleted and saved again, once with new content and once with the old
+            String recreated = name(50 + round);
+            String before = contents.get(recreated);
+            store.delete(recreated);
+            put(store, contents, recreated, "recreated in round " + round);
+            String rewritten = name(60 + round);
+            if (contents.containsKey(rewritten)) {
+                String same = contents.get(rewritten);
+                store.delete(rewritten);
+                put(store, contents, rewritten, same);
+            }
+            assertNotEquals(before, contents.get(recreated));
+            
+            Path archive = backup.createIncremental(DiaryBackup.ProgressListener.NONE);
+            assertTrue(archive.getFileName().toString().contains("_incr"));
+            archives.add(archive);
+            captured.add(new HashMap<>(contents));
+        }
+        // Changes after the last backup must be undone by every restore
+        put(store, contents, name(5000), "never backed up");
+        store.delete(name(0));
+        
+        for (int b = archives.size() - 1; b >= 0; b--) {
+            String name = archives.get(b).getFileName().toString();
+            Map<String, String> expected = captured.get(b);
+            assertEquals(expected.size(), backup.restore(name));
+            assertHolds(store, expected);
+            
+            for (String filename : new ArrayList<>(restored.list())) {
+                restored.delete(filename);
+            }
+            assertEquals(expected.size(), new DiaryBackup(restored, backupDir).restore(name));
+            assertHolds(restored, expected);
+        }
+    }
+    
+    private static void put(EntryStore store, Map<String, String> contents, String name, String content)
+            throws IOException {
+        store.write(name, content.getBytes(StandardCharsets.UTF_8));
+        contents.put(name, content);
+    }
+    
+    private static void assertHolds(EntryStore store, Map<String, String> expected) throws IOException {
+        assertEquals(new TreeSet<>(expected.keySet()), new TreeSet<>(store.list()));
+        for (Map.Entry<String, String> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), new String(store.read(entry.getKey()), StandardCharsets.UTF_8),
+                         entry.getKey());
+        }
+    }
+    
+    private static String name(int second) {
+        return new DiaryEntry(LocalDateTime.of(2020, 1, 1, 0, 0).plusSeconds(second), "").getFilename();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,120 @@
+package com.diary;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DiaryManagerTest {
+    private static final int SAVES_PER_WRITER = 400;
+    
+    @TempDir
+    Path dir;
+    
+    @Test
+    void countsAgreeUnderConcurrentWritesSearchesAndSwaps() throws Exception {
+        for (int writers : new int[] {1, 2, 4, 8}) {
+            stress(dir.resolve("writers" + writers), writers);
+        }
+    }
+    
+    private void stress(Path runDir, int writers) throws Exception {
+        // Every tenth save also edits one entry and deletes another
+        long expected = writers * (SAVES_PER_WRITER - SAVES_PER_WRITER / 10L);
+        DiaryManager diaryManager = new DiaryManager(config(runDir));
+        ExecutorService pool = Executors.newFixedThreadPool(writers + 2);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        try {
+            // Loaded up front, so the swaps below make the new handler rebuild them while writers go on
+            diaryManager.getStatistics();
+            long started = System.nanoTime();
+            List<Future<?>> writes = new ArrayList<>();
+            for (int w = 0; w < writers; w++) {
+                LocalDateTime base = LocalDateTime.of(2020, 1, 1, 0, 0).plusDays(w);
+                String name = "writer" + w;
+                writes.add(pool.submit(() -> {
+                    for (int i = 0; i < SAVES_PER_WRITER; i++) {
+                        diaryManager.saveEntry(new DiaryEntry(base.plusSeconds(i), "stress note " + name + " " + i));
+                        if (i % 10 == 9) {
+                            diaryManager.saveEntry(new DiaryEntry(base.plusSeconds(i - 1), "stress edited " + name));
+                            assertTrue(diaryManager.deleteEntry(new DiaryEntry(base.plusSeconds(i - 2), "").getFilename()));
+                        }
+                    }
+                    return null;
+                }));
+            }
+            Future<Integer> searches = pool.submit(() -> {
+                int count = 0;
+                while (writing.get()) {
+                    diaryManager.searchEntries("stress");
+                    AtomicInteger streamed = new AtomicInteger();
+                    diaryManager.searchEntries("edited", match -> streamed.incrementAndGet());
+                    diaryManager.getStatistics();
+                    count += 2;
+                }
+                return count;
+            });
+            Future<?> swaps = pool.submit(() -> {
+                while (writing.get() && diaryManager.getTotalEntries() < expected / 2) {
+                    Thread.sleep(1);
+                }
+                // Index off and on again: the last handler starts without an index or statistics
+                diaryManager.toggleSearchIndex();
+                diaryManager.setBackupMode("incremental");
+                diaryManager.toggleSearchIndex();
+                return null;
+            });
+            for (Future<?> write : writes) {
+                write.get(2, TimeUnit.MINUTES);
+            }
+            double seconds = (System.nanoTime() - started) / 1e9;
+            writing.set(false);
+            swaps.get(1, TimeUnit.MINUTES);
+            int searched = searches.get(1, TimeUnit.MINUTES);
+            // Each tenth save adds an edit and a delete
+            long operations = writers * (SAVES_PER_WRITER + SAVES_PER_WRITER / 5L);
+            System.out.printf("%d writer(s): %d changes in %.2f s, %.0f changes/s, %d searches alongside%n",
+                              writers, operations, seconds, operations / seconds, searched);
+            
+            assertCountsAgree(diaryManager, writers, expected);
+        } finally {
+            writing.set(false);
+            pool.shutdownNow();
+            diaryManager.shutdown();
+        }
+        
+        // The journals written through the run must reload to the same counts
+        DiaryManager reopened = new DiaryManager(config(runDir));
+        try {
+            assertCountsAgree(reopened, writers, expected);
+        } finally {
+            reopened.shutdown();
+        }
+    }
+    
+    private static void assertCountsAgree(DiaryManager diaryManager, int writers, long expected) throws Exception {
+        assertEquals(expected, diaryManager.getTotalEntries());
+        DiaryStats stats = diaryManager.getStatistics();
+        assertEquals(expected, stats.getEntryCount());
+        assertEquals(expected, diaryManager.search("stress").getMatchCount());
+        assertEquals(expected, diaryManager.searchEntries("stress").size());
+        Map<String, Long> terms = new HashMap<>();
+        stats.topTerms(100).forEach(term -> terms.put(term.getKey(), term.getValue()));
+        assertEquals(expected, terms.get("stress"));
+        assertEquals(writers * SAVES_PER_WRITER / 10L, terms.get("edited"));
+    }
+    
+    private static DiaryConfig config(Path runDir) {
+        DiaryConfig config = new DiaryConfig();
+        config.setEntriesDirectory(runDir.resolve("entries").toString());
+        config.setBackupDirectory(runDir.resolve("backups").toString());
+        return config;
+    }
+}
\ No newline at end of file
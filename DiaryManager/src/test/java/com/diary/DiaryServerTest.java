@@ -0,0 +1,161 @@
+package com.diary;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.*;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DiaryServerTest {
+    @TempDir
+    Path dir;
+    
+    private DiaryManager diaryManager;
+    private DiaryServer server;
+    private HttpClient client;
+    private String base;
+    
+    @BeforeEach
+    void start() throws IOException {
+        DiaryConfig config = new DiaryConfig();
+        config.setEntriesDirectory(dir.resolve("entries").toString());
+        config.setBackupDirectory(dir.resolve("backups").toString());
+        diaryManager = new DiaryManager(config);
+        server = diaryManager.startServer(0);
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        base = "http://localhost:" + server.getPort();
+    }
+    
+    @AfterEach
+    void stop() {
+        server.close();
+        diaryManager.shutdown();
+    }
+    
+    @Test
+    void savesAndReadsAnEntry() throws Exception {
+        HttpResponse<String> saved = send("POST", "/entries",
+            "{\"content\":\"Hello \\\"world\\\"\\nsecond line\",\"timestamp\":\"2021-03-04T05:06:07\"}");
+        assertEquals(201, saved.statusCode());
+        assertTrue(saved.body().contains("diary_2021_03_04_05_06_07.txt"));
+        
+        HttpResponse<String> read = send("GET", "/entries/diary_2021_03_04_05_06_07.txt", null);
+        assertEquals(200, read.statusCode());
+        assertTrue(read.body().contains("\"content\":\"Hello \\\"world\\\"\\nsecond line\""));
+    }
+    
+    @Test
+    void rejectsBadRequests() throws Exception {
+        assertEquals(400, send("GET", "/entries/..%2F..%2Fetc%2Fpasswd", null).statusCode());
+        assertEquals(404, send("GET", "/entries/diary_2021_03_04_05_06_08.txt", null).statusCode());
+        assertEquals(400, send("POST", "/entries", "{\"nope\":\"x\"}").statusCode());
+        assertEquals(405, send("DELETE", "/entries", null).statusCode());
+        assertEquals(400, send("GET", "/search", null).statusCode());
+        assertEquals(400, send("GET", "/search?q=apple&offset=-1", null).statusCode());
+        assertEquals(400, send("GET", "/search?q=apple&offset=x", null).statusCode());
+    }
+    
+    @Test
+    void neverReplacesAnEntryPostedInTheSameSecond() throws Exception {
+        int created = 0;
+        int conflicts = 0;
+        // Entry names have one-second precision, so posting quickly soon collides
+        for (int i = 0; i < 1000 && conflicts == 0; i++) {
+            int status = send("POST", "/entries", "{\"content\":\"note " + i + "\"}").statusCode();
+            if (status == 201) {
+                created++;
+            } else {
+                assertEquals(409, status);
+                conflicts++;
+            }
+        }
+        assertTrue(conflicts > 0);
+        assertEquals(created, diaryManager.getTotalEntries());
+    }
+    
+    @Test
+    void savesBatchesAndPagesSearches() throws Exception {
+        StringBuilder batch = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            batch.append(String.format("{\"timestamp\":\"2022-01-01T00:%02d:%02d\",\"content\":\"batch apple %d\"}%n",
+                                       i / 60, i % 60, i));
+        }
+        HttpResponse<String> saved = send("POST", "/entries/batch", batch.toString());
+        assertEquals(200, saved.statusCode());
+        assertEquals("{\"saved\":500}", saved.body());
+        assertEquals(500, diaryManager.getTotalEntries());
+        
+        HttpResponse<String> page = send("GET", "/entries?limit=3", null);
+        assertEquals(200, page.statusCode());
+        assertTrue(page.body().contains("\"next\":\"diary_2022_01_01_00_08_17.txt\""));
+        
+        HttpResponse<String> search = send("GET", "/search?q=apple&offset=498&limit=10", null);
+        assertEquals(200, search.statusCode());
+        assertTrue(search.body().contains("\"matches\":500"));
+        assertTrue(search.body().contains("\"more\":false"));
+        
+        // Offsets past the end give an empty last page, ranked and scanned
+        for (int round = 0; round < 2; round++) {
+            HttpResponse<String> past = send("GET", "/search?q=apple&offset=2000000000&limit=10", null);
+            assertEquals(200, past.statusCode());
+            assertTrue(past.body().startsWith("{\"hits\":[]"));
+            assertTrue(past.body().contains("\"more\":false"));
+            diaryManager.toggleSearchIndex();
+        }
+        
+        assertEquals(400, send("POST", "/entries/batch", "{\"content\":\"no timestamp\"}\n").statusCode());
+        assertEquals(200, send("GET", "/stats", null).statusCode());
+        assertEquals(200, send("POST", "/backup", "").statusCode());
+    }
+    
+    @Test
+    void servesManyClientsAtOnce() throws Exception {
+        int clients = 50;
+        int requests = 20;
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        AtomicInteger failures = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            int id = c;
+            futures.add(pool.submit(() -> {
+                for (int r = 0; r < requests; r++) {
+                    HttpResponse<String> response = switch (r % 4) {
+                        case 0 -> send("POST", "/entries", String.format(
+                            "{\"content\":\"client %d note %d\",\"timestamp\":\"2023-01-01T%02d:%02d:%02d\"}",
+                            id, r, id / 60, id % 60, r));
+                        case 1 -> send("GET", "/search?q=client", null);
+                        case 2 -> send("GET", "/entries?limit=10", null);
+                        default -> send("GET", "/stats", null);
+                    };
+                    if (response.statusCode() >= 300) {
+                        failures.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(2, TimeUnit.MINUTES);
+        }
+        pool.shutdown();
+        assertEquals(0, failures.get());
+        assertEquals(clients * requests / 4, diaryManager.getTotalEntries());
+    }
+    
+    private HttpResponse<String> send(String method, String path, String body)
+            throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(base + path))
+            .method(method, body == null ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofString(body))
+            .build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+}
\ No newline at end of file
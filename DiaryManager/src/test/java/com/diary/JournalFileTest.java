@@ -0,0 +1,105 @@
+package com.diary;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JournalFileTest {
+    private static final DiaryEntry FIRST = new DiaryEntry(LocalDateTime.of(2021, 1, 1, 9, 0), "hello world");
+    private static final DiaryEntry SECOND = new DiaryEntry(LocalDateTime.of(2021, 1, 2, 9, 0), "hello again");
+    
+    @TempDir
+    Path dir;
+    
+    @Test
+    void tornLastIndexRecordIsDropped() throws Exception {
+        saveFirstAndIndex();
+        // Left by a crash part way through an append
+        append(DiaryIndex.INDEX_FILE, "+\t" + SECOND.getFilename() + "\thel");
+        
+        DiaryManager reopened = new DiaryManager(config());
+        try {
+            reopened.saveEntry(SECOND);
+            assertEquals(2, reopened.search("hello").getMatchCount());
+            assertEquals(2, reopened.searchEntries("hello").size());
+        } finally {
+            reopened.shutdown();
+        }
+        // The record saved after the torn one must have started on a line of its own
+        assertIndexedTwice();
+    }
+    
+    @Test
+    void damagedIndexIsRebuilt() throws Exception {
+        saveFirstAndIndex();
+        append(DiaryIndex.INDEX_FILE, "+\t" + SECOND.getFilename() + "\thel\n-\t" + FIRST.getFilename() + "\n");
+        
+        DiaryManager reopened = new DiaryManager(config());
+        try {
+            reopened.saveEntry(SECOND);
+            assertEquals(2, reopened.search("hello").getMatchCount());
+        } finally {
+            reopened.shutdown();
+        }
+        assertIndexedTwice();
+    }
+    
+    @Test
+    void tornLastStatisticsRecordsAreDropped() throws Exception {
+        saveFirstAndIndex();
+        append(DiaryStats.STATS_FILE, "t\thello:1 wor\ne\t" + SECOND.getFilename());
+        
+        DiaryManager reopened = new DiaryManager(config());
+        try {
+            reopened.saveEntry(SECOND);
+            assertEquals(2, reopened.getStatistics().getEntryCount());
+        } finally {
+            reopened.shutdown();
+        }
+        DiaryManager again = new DiaryManager(config());
+        try {
+            DiaryStats stats = again.getStatistics();
+            assertEquals(2, stats.getEntryCount());
+            assertEquals(4, stats.getTotalWords());
+        } finally {
+            again.shutdown();
+        }
+    }
+    
+    private void saveFirstAndIndex() throws Exception {
+        DiaryManager diaryManager = new DiaryManager(config());
+        try {
+            diaryManager.saveEntry(FIRST);
+            assertEquals(1, diaryManager.search("hello").getMatchCount());
+            assertEquals(1, diaryManager.getStatistics().getEntryCount());
+        } finally {
+            diaryManager.shutdown();
+        }
+    }
+    
+    private void assertIndexedTwice() throws Exception {
+        DiaryManager diaryManager = new DiaryManager(config());
+        try {
+            assertEquals(2, diaryManager.search("hello").getMatchCount());
+        } finally {
+            diaryManager.shutdown();
+        }
+    }
+    
+    private void append(String journal, String text) throws Exception {
+        Files.writeString(dir.resolve("entries").resolve(journal), text, StandardOpenOption.APPEND);
+    }
+    
+    private DiaryConfig config() {
+        DiaryConfig config = new DiaryConfig();
+        config.setEntriesDirectory(dir.resolve("entries").toString());
+        config.setBackupDirectory(dir.resolve("backups").toString());
+        return config;
+    }
+}
\ No newline at end of file
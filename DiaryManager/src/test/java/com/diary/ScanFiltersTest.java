@@ -0,0 +1,153 @@
+package com.diary;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDateTime;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ScanFiltersTest {
+    private static final String[] WORDS = ("apple river mountain coffee Garden window stone bright quiet letter "
+        + "summer winter friend market orange violet silver cloud forest ocean candle bridge museum pencil "
+        + "ticket jacket engine rocket planet").split(" ");
+    private static final String[] KEYWORDS = {
+        "apple7 ", "GARDEN4", "ocean49", "zebra", "ket3", "ab", "ür", "rocket12 planet"
+    };
+    
+    @TempDir
+    Path dir;
+    
+    @Test
+    void filteredScansFindWhatAFullScanFinds() throws Exception {
+        DiaryConfig config = config();
+        DiaryManager diaryManager = new DiaryManager(config);
+        Map<String, String> contents = new HashMap<>();
+        List<DiaryEntry> entries = new ArrayList<>();
+        try {
+            assertFalse(diaryManager.toggleSearchIndex());
+            Random random = new Random(1);
+            LocalDateTime start = LocalDateTime.of(2020, 1, 1, 0, 0);
+            for (int i = 0; i < 3000; i++) {
+                StringBuilder content = new StringBuilder();
+                for (int w = 0; w < 40; w++) {
+                    content.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(50)).append(' ');
+                }
+                entries.add(new DiaryEntry(start.plusMinutes(i), content.toString()));
+            }
+            diaryManager.saveEntries(entries);
+            entries.forEach(entry -> contents.put(entry.getFilename(), entry.getContent()));
+            assertSearchesMatch(diaryManager, contents);
+            
+            ScanFilters filters = diaryManager.getScanFilters();
+            assertEquals(entries.size(), filters.getEntryCount());
+            assertTrue(filters.getChecked() > 0);
+            
+            // Edits and deletes must keep the filters current
+            for (int i = 0; i < 200; i++) {
+                DiaryEntry entry = entries.get(i);
+                if (i % 2 == 0) {
+                    diaryManager.deleteEntry(entry.getFilename());
+                    contents.remove(entry.getFilename());
+                } else {
+                    DiaryEntry edited = new DiaryEntry(entry.getTimestamp(), "zebra crossing " + i);
+                    diaryManager.saveEntry(edited);
+                    contents.put(edited.getFilename(), edited.getContent());
+                }
+            }
+            assertSearchesMatch(diaryManager, contents);
+            assertEquals(contents.size(), diaryManager.getScanFilters().getEntryCount());
+        } finally {
+            diaryManager.shutdown();
+        }
+        
+        DiaryManager reopened = new DiaryManager(config);
+        try {
+            assertSearchesMatch(reopened, contents);
+            assertEquals(contents.size(), reopened.getScanFilters().getEntryCount());
+            
+            // The filters are not kept up to date while the index is on
+            assertTrue(reopened.toggleSearchIndex());
+            assertNull(reopened.getScanFilters());
+            assertFalse(Files.exists(dir.resolve("entries").resolve(ScanFilters.FILTERS_FILE)));
+            assertSearchesMatch(reopened, contents);
+        } finally {
+            reopened.shutdown();
+        }
+    }
+    
+    @Test
+    void entriesChangedWhileClosedAreNotSkipped() throws Exception {
+        DiaryConfig config = config();
+        DiaryEntry changed = new DiaryEntry(LocalDateTime.of(2021, 1, 1, 9, 0), "hello world");
+        DiaryEntry kept = new DiaryEntry(LocalDateTime.of(2021, 1, 2, 9, 0), "hello again");
+        DiaryManager diaryManager = new DiaryManager(config);
+        try {
+            assertFalse(diaryManager.toggleSearchIndex());
+            diaryManager.saveEntry(changed);
+            diaryManager.saveEntry(kept);
+            assertEquals(2, diaryManager.searchEntries("hello").size());
+            assertEquals(2, diaryManager.getScanFilters().getEntryCount());
+        } finally {
+            diaryManager.shutdown();
+        }
+        
+        Path file = dir.resolve("entries").resolve(changed.getFilename());
+        FileTime saved = Files.getLastModifiedTime(file);
+        Files.writeString(file, "zebra crossing");
+        Files.setLastModifiedTime(file, FileTime.fromMillis(saved.toMillis() + 10_000));
+        // And a record cut short by a crash part way through an append
+        Files.writeString(dir.resolve("entries").resolve(ScanFilters.FILTERS_FILE),
+                          "b\t" + kept.getFilename() + "\t12", StandardOpenOption.APPEND);
+        
+        DiaryManager reopened = new DiaryManager(config);
+        try {
+            assertEquals(1, reopened.searchEntries("zebra").size());
+            assertEquals(1, reopened.searchEntries("hello").size());
+            // Loaded, not rebuilt: the changed entry has no filter until it is saved again
+            assertEquals(1, reopened.getScanFilters().getEntryCount());
+            reopened.saveEntry(new DiaryEntry(changed.getTimestamp(), "zebra crossing again"));
+            assertEquals(2, reopened.getScanFilters().getEntryCount());
+            assertEquals(1, reopened.searchEntries("zebra").size());
+        } finally {
+            reopened.shutdown();
+        }
+    }
+    
+    @Test
+    void shortAndNonAsciiKeywordsAreNotFiltered() {
+        assertNull(ScanFilters.trigrams("ab"));
+        assertNull(ScanFilters.trigrams("ür"));
+        assertNull(ScanFilters.trigrams("grün"));
+        assertArrayEquals(ScanFilters.trigrams("abc"), ScanFilters.trigrams("ABC"));
+    }
+    
+    private DiaryConfig config() {
+        DiaryConfig config = new DiaryConfig();
+        config.setEntriesDirectory(dir.resolve("entries").toString());
+        config.setBackupDirectory(dir.resolve("backups").toString());
+        return config;
+    }
+    
+    /** Every keyword search must return exactly the entries a case-insensitive substring test picks. */
+    private static void assertSearchesMatch(DiaryManager diaryManager, Map<String, String> contents) throws Exception {
+        for (String keyword : KEYWORDS) {
+            Set<String> found = new TreeSet<>();
+            for (EntryHandle handle : diaryManager.searchEntries(keyword)) {
+                found.add(handle.getFilename());
+            }
+            Set<String> expected = new TreeSet<>();
+            for (Map.Entry<String, String> entry : contents.entrySet()) {
+                if (entry.getValue().toLowerCase(Locale.ROOT).contains(keyword.toLowerCase(Locale.ROOT))) {
+                    expected.add(entry.getKey());
+                }
+            }
+            assertEquals(expected, found, keyword);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,138 @@
+package com.diary;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SegmentEntryStoreTest {
+    private static final long SEGMENT_SIZE = 512;
+    
+    @TempDir
+    Path dir;
+    
+    @Test
+    void damagedTailIsCutOffOnReopen() throws Exception {
+        try (SegmentEntryStore store = open()) {
+            store.write(name(0), bytes("kept"));
+            store.write(name(1), bytes("first"));
+            store.write(name(1), bytes("second"));
+        }
+        // A crc that no longer matches drops the last record, so the earlier version is read again
+        Path active = segments().get(segments().size() - 1);
+        try (FileChannel channel = FileChannel.open(active, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(bytes("X")), channel.size() - 1);
+        }
+        try (SegmentEntryStore store = open()) {
+            assertEquals("kept", text(store.read(name(0))));
+            assertEquals("first", text(store.read(name(1))));
+        }
+        
+        // Half a record, as left by a crash part way through an append
+        long intact = Files.size(active);
+        Files.write(active, Arrays.copyOf(bytes("partial record"), 9), StandardOpenOption.APPEND);
+        try (SegmentEntryStore store = open()) {
+            assertEquals(intact, Files.size(active));
+            store.write(name(2), bytes("after the crash"));
+        }
+        try (SegmentEntryStore store = open()) {
+            assertEquals("kept", text(store.read(name(0))));
+            assertEquals("first", text(store.read(name(1))));
+            assertEquals("after the crash", text(store.read(name(2))));
+        }
+    }
+    
+    @Test
+    void outOfDateHintsAreIgnored() throws Exception {
+        Map<String, String> expected = new HashMap<>();
+        try (SegmentEntryStore store = open()) {
+            for (int i = 0; i < 40; i++) {
+                store.write(name(i), bytes("entry " + i));
+                expected.put(name(i), "entry " + i);
+            }
+        }
+        List<Path> hints;
+        try (Stream<Path> files = Files.list(dir)) {
+            hints = files.filter(path -> path.toString().endsWith(".hint")).sorted().toList();
+        }
+        assertTrue(hints.size() >= 3);
+        // One hint cut short, one listing none of its segment's records
+        byte[] hint = Files.readAllBytes(hints.get(0));
+        Files.write(hints.get(0), Arrays.copyOf(hint, hint.length - 5));
+        Files.write(hints.get(1), new byte[0]);
+        
+        try (SegmentEntryStore store = open()) {
+            assertStoreHolds(store, expected);
+        }
+    }
+    
+    @Test
+    void compactionKeepsDeletesAndRecreatesAcrossSegments() throws Exception {
+        Map<String, String> expected = new HashMap<>();
+        Random random = new Random(4);
+        SegmentEntryStore store = open();
+        try {
+            for (int op = 1; op <= 3000; op++) {
+                String name = name(random.nextInt(12));
+                if (random.nextInt(3) == 0) {
+                    assertEquals(expected.remove(name) != null, store.delete(name));
+                } else {
+                    String content = "v" + op;
+                    store.write(name, bytes(content));
+                    expected.put(name, content);
+                }
+                if (op % 97 == 0) {
+                    store.compact();
+                    assertStoreHolds(store, expected);
+                }
+                if (op % 500 == 0) {
+                    // Reloaded from the hints, the compacted copies and the tombstones kept for older segments
+                    store.close();
+                    store = open();
+                    assertStoreHolds(store, expected);
+                }
+            }
+        } finally {
+            store.close();
+        }
+    }
+    
+    private void assertStoreHolds(SegmentEntryStore store, Map<String, String> expected) throws IOException {
+        assertEquals(new TreeSet<>(expected.keySet()), new TreeSet<>(store.list()));
+        for (Map.Entry<String, String> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), text(store.read(entry.getKey())), entry.getKey());
+        }
+    }
+    
+    private SegmentEntryStore open() throws IOException {
+        return new SegmentEntryStore(dir, SEGMENT_SIZE);
+    }
+    
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(path -> SegmentEntryStore.isSegmentFile(path.getFileName().toString()))
+                .sorted().toList();
+        }
+    }
+    
+    private static String name(int second) {
+        return new DiaryEntry(LocalDateTime.of(2020, 1, 1, 0, 0).plusSeconds(second), "").getFilename();
+    }
+    
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+    
+    private static String text(byte[] content) {
+        return new String(content, StandardCharsets.UTF_8);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,154 @@
+package com.diary;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class VersionedEntryStoreTest {
+    private static final int PAIRS = 4;
+    private static final int TOKENS = 8;
+    
+    @TempDir
+    Path dir;
+    
+    @Test
+    void snapshotsOfFileStoreAreConsistent() throws Exception {
+        try (VersionedEntryStore store = new VersionedEntryStore(new FileEntryStore(dir))) {
+            assertSnapshotsConsistent(store);
+        }
+    }
+    
+    @Test
+    void snapshotsOfSegmentStoreAreConsistent() throws Exception {
+        try (VersionedEntryStore store = new VersionedEntryStore(
+                new SegmentEntryStore(dir, SegmentEntryStore.DEFAULT_SEGMENT_SIZE))) {
+            assertSnapshotsConsistent(store);
+        }
+    }
+    
+    /**
+     * Writers keep pairs of entries at the same counter (first entry written
+     * first) and move tokens between entries by writing the next one before
+     * deleting the last. No snapshot may see a pair torn, a token lost, or
+     * list an entry it cannot read.
+     */
+    private static void assertSnapshotsConsistent(VersionedEntryStore store) throws Exception {
+        for (int p = 0; p < PAIRS; p++) {
+            store.write(name(p * 2), bytes("r 0"));
+            store.write(name(p * 2 + 1), bytes("r 0"));
+        }
+        for (int t = 0; t < TOKENS; t++) {
+            store.write(name(1000 + t * 100), bytes("token"));
+        }
+        for (int i = 0; i < 300; i++) {
+            store.write(name(5000 + i), bytes("filler " + i));
+        }
+        
+        AtomicBoolean stop = new AtomicBoolean();
+        ExecutorService pool = Executors.newFixedThreadPool(PAIRS + TOKENS + 2);
+        List<Future<?>> writers = new ArrayList<>();
+        for (int p = 0; p < PAIRS; p++) {
+            int pair = p;
+            writers.add(pool.submit(() -> {
+                for (int n = 1; !stop.get(); n++) {
+                    store.write(name(pair * 2), bytes("r " + n));
+                    store.write(name(pair * 2 + 1), bytes("r " + n));
+                }
+                return null;
+            }));
+        }
+        for (int t = 0; t < TOKENS; t++) {
+            int base = 1000 + t * 100;
+            writers.add(pool.submit(() -> {
+                for (int at = 0; !stop.get(); at = (at + 1) % 100) {
+                    store.write(name(base + (at + 1) % 100), bytes("token"));
+                    store.delete(name(base + at));
+                }
+                return null;
+            }));
+        }
+        
+        AtomicInteger snapshots = new AtomicInteger();
+        AtomicInteger torn = new AtomicInteger();
+        AtomicInteger badTokens = new AtomicInteger();
+        AtomicInteger missing = new AtomicInteger();
+        long end = System.currentTimeMillis() + 2000;
+        List<Future<?>> readers = new ArrayList<>();
+        for (int r = 0; r < 2; r++) {
+            readers.add(pool.submit(() -> {
+                while (System.currentTimeMillis() < end) {
+                    try (EntryStore.Snapshot snapshot = store.snapshot()) {
+                        int tokens = 0;
+                        for (String filename : snapshot.list()) {
+                            try {
+                                if (text(snapshot.read(filename)).equals("token")) {
+                                    tokens++;
+                                }
+                                snapshot.version(filename);
+                            } catch (IOException e) {
+                                missing.incrementAndGet();
+                            }
+                        }
+                        // A token is briefly in two entries while it moves, never in none
+                        if (tokens < TOKENS || tokens > 2 * TOKENS) {
+                            badTokens.incrementAndGet();
+                        }
+                        for (int p = 0; p < PAIRS; p++) {
+                            int first = counter(snapshot.read(name(p * 2)));
+                            int second = counter(snapshot.read(name(p * 2 + 1)));
+                            if (first != second && first != second + 1) {
+                                torn.incrementAndGet();
+                            }
+                        }
+                        snapshots.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> reader : readers) {
+                reader.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            stop.set(true);
+            for (Future<?> writer : writers) {
+                writer.get(1, TimeUnit.MINUTES);
+            }
+            pool.shutdown();
+        }
+        
+        assertTrue(snapshots.get() > 0);
+        assertEquals(0, torn.get());
+        assertEquals(0, badTokens.get());
+        assertEquals(0, missing.get());
+        // Versions are only kept while a snapshot that can see them is open
+        assertEquals(0, store.retainedVersions());
+    }
+    
+    private static String name(int second) {
+        return new DiaryEntry(LocalDateTime.of(2020, 1, 1, 0, 0).plusSeconds(second), "").getFilename();
+    }
+    
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+    
+    private static String text(byte[] content) {
+        return new String(content, StandardCharsets.UTF_8);
+    }
+    
+    private static int counter(byte[] content) {
+        return Integer.parseInt(text(content).substring(2));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,120 @@
+package com.diary;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WriteBehindQueueTest {
+    @TempDir
+    Path dir;
+    
+    @Test
+    void closeLeavesNoSaveWaiting() throws Exception {
+        Set<String> written = ConcurrentHashMap.newKeySet();
+        WriteBehindQueue queue = new WriteBehindQueue((batch, sync) -> {
+            batch.forEach(entry -> written.add(entry.getFilename()));
+        }, 16, 1, WriteBehindQueue.DURABILITY_FLUSH);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<List<CompletableFuture<DiaryEntry>>>> producers = new ArrayList<>();
+        for (int p = 0; p < 4; p++) {
+            LocalDateTime base = LocalDateTime.of(2020, 1, 1, 0, 0).plusDays(p);
+            producers.add(pool.submit(() -> {
+                List<CompletableFuture<DiaryEntry>> futures = new ArrayList<>();
+                for (int i = 0; i < 2000; i++) {
+                    futures.add(queue.submit(new DiaryEntry(base.plusSeconds(i), "queued " + i)));
+                }
+                return futures;
+            }));
+        }
+        Thread.sleep(5);
+        queue.close();
+        
+        int saved = 0;
+        int refused = 0;
+        for (Future<List<CompletableFuture<DiaryEntry>>> producer : producers) {
+            for (CompletableFuture<DiaryEntry> future : producer.get(1, TimeUnit.MINUTES)) {
+                if (future == null) {
+                    refused++;
+                } else {
+                    assertTrue(written.contains(future.get(10, TimeUnit.SECONDS).getFilename()));
+                    saved++;
+                }
+            }
+        }
+        pool.shutdown();
+        assertEquals(4 * 2000, saved + refused);
+        assertEquals(saved, written.size());
+        // Flushing a closed queue returns rather than waiting on a writer that is gone
+        queue.flush();
+    }
+    
+    @Test
+    void savesCarryOnWhileWriteBehindIsToggled() throws Exception {
+        DiaryManager diaryManager = new DiaryManager(config());
+        ExecutorService pool = Executors.newFixedThreadPool(6);
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int w = 0; w < 4; w++) {
+                LocalDateTime base = LocalDateTime.of(2020, 1, 1, 0, 0).plusDays(w);
+                tasks.add(pool.submit(() -> {
+                    for (int i = 0; i < 300; i++) {
+                        DiaryEntry entry = new DiaryEntry(base.plusSeconds(i), "toggled " + i);
+                        if (i % 2 == 0) {
+                            diaryManager.saveEntry(entry);
+                        } else {
+                            diaryManager.saveEntryAsync(entry).get(1, TimeUnit.MINUTES);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            // Two togglers at once must not leave a queue running that nothing closes
+            for (int t = 0; t < 2; t++) {
+                tasks.add(pool.submit(() -> {
+                    for (int i = 0; i < 20; i++) {
+                        diaryManager.toggleWriteBehind();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> task : tasks) {
+                task.get(2, TimeUnit.MINUTES);
+            }
+            assertEquals(4 * 300, diaryManager.getTotalEntries());
+        } finally {
+            pool.shutdown();
+            diaryManager.shutdown();
+        }
+        long writers = Thread.getAllStackTraces().keySet().stream()
+            .filter(thread -> thread.getName().equals("diary-write-behind") && thread.isAlive()).count();
+        assertEquals(0, writers);
+    }
+    
+    @Test
+    void keywordSearchSeesQueuedSaves() throws Exception {
+        DiaryConfig config = config();
+        config.setSetting("writeBehind", "true");
+        config.setSetting("writeBatchMillis", "60000");
+        config.setSetting("writeBatchSize", "1000");
+        DiaryManager diaryManager = new DiaryManager(config);
+        try {
+            diaryManager.saveEntryAsync(new DiaryEntry(LocalDateTime.of(2021, 1, 1, 9, 0), "still queued"));
+            assertEquals(1, diaryManager.searchEntries("queued").size());
+        } finally {
+            diaryManager.shutdown();
+        }
+    }
+    
+    private DiaryConfig config() {
+        DiaryConfig config = new DiaryConfig();
+        config.setEntriesDirectory(dir.resolve("entries").toString());
+        config.setBackupDirectory(dir.resolve("backups").toString());
+        return config;
+    }
+}
\ No newline at end of file